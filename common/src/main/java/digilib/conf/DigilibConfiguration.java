@@ -37,7 +37,10 @@ import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
 import digilib.image.DocuImage;
+import digilib.image.ImageCodecPool;
 import digilib.image.DocuImageFactory;
+import digilib.image.ImageResampler;
+import digilib.image.TiledImageOps;
 import digilib.util.Parameter;
 import digilib.util.ParameterMap;
 
@@ -96,6 +99,32 @@ public class DigilibConfiguration extends ParameterMap {
         newParameter("iiif-prefix", "IIIF", null, 'f');
         // character to use as slash-replacement in IIIF identifier part
         newParameter("iiif-slash-replacement", "!", null, 'f');        
+        // maximum number of directories in the directory cache (0 means no limit)
+        newParameter("dircache-max-dirs", new Integer(0), null, 'f');
+        // maximum number of files in the directory cache (0 means no limit)
+        newParameter("dircache-max-files", new Integer(0), null, 'f');
+        // check cached directories for changes: "stat" (on every access), "watch" or "poll"
+        newParameter("dircache-invalidation", "stat", null, 'f');
+        // interval for polling directories for changes (s)
+        newParameter("dircache-poll-interval", new Integer(10), null, 'f');
+        // maximum number of nonexistent paths in the directory cache (0 means no cache)
+        newParameter("dircache-missing-size", new Integer(1000), null, 'f');
+        // time to live of nonexistent paths in the directory cache (s)
+        newParameter("dircache-missing-ttl", new Integer(60), null, 'f');
+        // minimum number of image files in a directory to keep it in compact form (0 means never)
+        newParameter("dircache-compact-threshold", new Integer(1000), null, 'f');
+        // read sizes and modification times of files with the directory
+        newParameter("dircache-prefetch-attributes", Boolean.FALSE, null, 'f');
+        // directory for the manifests of ManifestDocuDirectory (empty means in the image directories)
+        newParameter("manifest-dir", "", null, 'f');
+        // maximum number of idle ImageReaders or ImageWriters per format
+        newParameter("image-codec-pool-size", new Integer(8), null, 'f');
+        // number of threads for rendering large images in strips (0 means no tiling)
+        newParameter("tile-threads", new Integer(0), null, 'f');
+        // minimum size of an image for rendering in strips (megapixels)
+        newParameter("tile-min-size", new Integer(4), null, 'f');
+        // resampling filters for quality q0, q1, q2 ("java2d" scales with AffineTransformOp)
+        newParameter("scale-filters", "java2d, java2d, java2d", null, 'f');
     }
 
     /**
@@ -161,6 +190,18 @@ public class DigilibConfiguration extends ParameterMap {
     public void configure() {
         DigilibConfiguration config = this;
         setupLogger();
+        /*
+         * register ImageIO plugins (once) and set up reader/writer pool
+         */
+        ImageIO.scanForPlugins();
+        ImageCodecPool.setMaxPoolSize(config.getAsInt("image-codec-pool-size"));
+        ImageCodecPool.clear();
+        /*
+         * set up parallel rendering of large images
+         */
+        TiledImageOps.setMinPixels(config.getAsInt("tile-min-size") * 1024L * 1024L);
+        TiledImageOps.setParallelism(config.getAsInt("tile-threads"));
+        ImageResampler.setQualityFilters(config.getAsString("scale-filters"));
         /*
          * initialise static DocuImage class instance
          */
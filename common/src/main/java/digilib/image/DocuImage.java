@@ -72,6 +72,23 @@ public interface DocuImage {
      */
     public void loadSubimage(ImageInput ii, Rectangle region, int subsample) throws FileOpException;
 
+    /**
+     * Load only a subsampled region of the image file and scale it.
+     * 
+     * Same as loadSubimage() followed by scale() but implementations can
+     * process large images in parts.
+     * 
+     * @param ii
+     * @param region
+     * @param subsample
+     * @param scale
+     *            scaling factor after subsampling
+     * @throws FileOpException
+     * @throws ImageOpException
+     */
+    public void loadSubimageScaled(ImageInput ii, Rectangle region, int subsample, double scale)
+            throws FileOpException, ImageOpException;
+
     /**
      * Writes the current image to an OutputStream.
      * 
@@ -262,6 +279,29 @@ public interface DocuImage {
      */
     public void colorOp(ColorOp op) throws ImageOpException;
 
+    /**
+     * Changes the colors of the current image with enhanceRGB(), enhance() and
+     * colorOp() (in this order).
+     * 
+     * Operations are skipped if rgbm or rgba are null, if mult is 1 and add
+     * is 0 or if op is null. Implementations can combine the operations into
+     * a single pass over the image.
+     * 
+     * @param rgbm
+     *            multiplicative constants for red, green, blue
+     * @param rgba
+     *            additive constant for red, green, blue
+     * @param mult
+     *            multiplicative constant
+     * @param add
+     *            additive constant
+     * @param op
+     *            ColorOp
+     * @throws ImageOpException
+     */
+    public void enhanceAndColorOp(float[] rgbm, float[] rgba, float mult, float add, ColorOp op)
+            throws ImageOpException;
+
     /**
      * Returns the interpolation quality.
      * 
@@ -285,6 +325,15 @@ public interface DocuImage {
      */
     public void dispose();
 
+    /**
+     * Requests that a running load operation is stopped.
+     * 
+     * Can be called from another thread. The image contents are undefined
+     * afterwards.
+     * 
+     */
+    public void abort();
+
     /**
      * Check image size and type and store in ImageInput ii
      */
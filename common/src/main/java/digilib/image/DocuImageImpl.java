@@ -168,6 +168,12 @@ public abstract class DocuImageImpl implements DocuImage {
         // empty implementation
     }
 
+    public void loadSubimageScaled(ImageInput ii, Rectangle region, int subsample, double scale)
+            throws FileOpException, ImageOpException {
+        loadSubimage(ii, region, subsample);
+        scale(scale, scale);
+    }
+
     public void enhanceRGB(float[] rgbm, float[] rgba) throws ImageOpException {
         // emtpy implementation
     }
@@ -176,10 +182,27 @@ public abstract class DocuImageImpl implements DocuImage {
         // emtpy implementation
     }
 
+    public void enhanceAndColorOp(float[] rgbm, float[] rgba, float mult, float add, ColorOp op)
+            throws ImageOpException {
+        if (rgbm != null && rgba != null) {
+            enhanceRGB(rgbm, rgba);
+        }
+        if (mult != 1f || add != 0f) {
+            enhance(mult, add);
+        }
+        if (op != null) {
+            colorOp(op);
+        }
+    }
+
     public void dispose() {
         // emtpy implementation
     }
 
+    public void abort() {
+        // emtpy implementation
+    }
+
     public Iterator<String> getSupportedFormats() {
         List<String> empty = new LinkedList<String>();
         return empty.iterator();
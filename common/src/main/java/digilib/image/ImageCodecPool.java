@@ -0,0 +1,237 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageCodecPool -- pool of ImageReaders and ImageWriters.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of ImageReaders (by mime-type) and ImageWriters (by format
+ * name).
+ *
+ * The ImageIO service providers are looked up only once per format. Returned
+ * readers and writers are reset and reused. If the pool for a format is full
+ * they are disposed.
+ */
+public class ImageCodecPool {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageCodecPool.class);
+
+    /** maximum number of idle readers or writers per format */
+    protected static int maxPoolSize = 8;
+
+    /** reader service providers by mime-type */
+    protected static ConcurrentMap<String, ImageReaderSpi> readerSpis = new ConcurrentHashMap<String, ImageReaderSpi>();
+
+    /** writer service providers by format name */
+    protected static ConcurrentMap<String, ImageWriterSpi> writerSpis = new ConcurrentHashMap<String, ImageWriterSpi>();
+
+    /** idle readers by mime-type */
+    protected static ConcurrentMap<String, BlockingQueue<ImageReader>> readers = new ConcurrentHashMap<String, BlockingQueue<ImageReader>>();
+
+    /** idle writers by format name */
+    protected static ConcurrentMap<String, BlockingQueue<ImageWriter>> writers = new ConcurrentHashMap<String, BlockingQueue<ImageWriter>>();
+
+    /**
+     * Returns an ImageReader for the mime-type (or null if there is none).
+     *
+     * The reader should be returned with releaseReader.
+     *
+     * @param mimeType
+     * @return
+     * @throws IOException
+     */
+    public static ImageReader getReader(String mimeType) throws IOException {
+        ImageReader reader = getQueue(readers, mimeType).poll();
+        if (reader != null) {
+            return reader;
+        }
+        ImageReaderSpi spi = readerSpis.get(mimeType);
+        if (spi == null) {
+            Iterator<ImageReader> ri = ImageIO.getImageReadersByMIMEType(mimeType);
+            if (!ri.hasNext()) {
+                return null;
+            }
+            reader = ri.next();
+            spi = reader.getOriginatingProvider();
+            if (spi != null) {
+                readerSpis.putIfAbsent(mimeType, spi);
+            }
+            logger.debug("new ImageReader for " + mimeType + ": " + reader.getClass());
+            return reader;
+        }
+        return spi.createReaderInstance();
+    }
+
+    /**
+     * Returns the ImageReader for the mime-type to the pool.
+     *
+     * @param mimeType
+     * @param reader
+     */
+    public static void releaseReader(String mimeType, ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+        if (mimeType != null) {
+            try {
+                reader.reset();
+                if (getQueue(readers, mimeType).offer(reader)) {
+                    return;
+                }
+            } catch (Exception e) {
+                logger.warn("Unable to reset ImageReader: " + e.getMessage());
+            }
+        }
+        reader.dispose();
+    }
+
+    /**
+     * Returns an ImageWriter for the format name (or null if there is none).
+     *
+     * The writer should be returned with releaseWriter.
+     *
+     * @param formatName
+     * @return
+     * @throws IOException
+     */
+    public static ImageWriter getWriter(String formatName) throws IOException {
+        ImageWriter writer = getQueue(writers, formatName).poll();
+        if (writer != null) {
+            return writer;
+        }
+        ImageWriterSpi spi = writerSpis.get(formatName);
+        if (spi == null) {
+            Iterator<ImageWriter> wi = ImageIO.getImageWritersByFormatName(formatName);
+            if (!wi.hasNext()) {
+                return null;
+            }
+            writer = wi.next();
+            spi = writer.getOriginatingProvider();
+            if (spi != null) {
+                writerSpis.putIfAbsent(formatName, spi);
+            }
+            logger.debug("new ImageWriter for " + formatName + ": " + writer.getClass());
+            return writer;
+        }
+        return spi.createWriterInstance();
+    }
+
+    /**
+     * Returns the ImageWriter for the format name to the pool.
+     *
+     * @param formatName
+     * @param writer
+     */
+    public static void releaseWriter(String formatName, ImageWriter writer) {
+        if (writer == null) {
+            return;
+        }
+        if (formatName != null) {
+            try {
+                writer.reset();
+                if (getQueue(writers, formatName).offer(writer)) {
+                    return;
+                }
+            } catch (Exception e) {
+                logger.warn("Unable to reset ImageWriter: " + e.getMessage());
+            }
+        }
+        writer.dispose();
+    }
+
+    /**
+     * Disposes all idle readers and writers and forgets the service
+     * providers.
+     */
+    public static void clear() {
+        for (BlockingQueue<ImageReader> q : readers.values()) {
+            for (ImageReader r = q.poll(); r != null; r = q.poll()) {
+                r.dispose();
+            }
+        }
+        for (BlockingQueue<ImageWriter> q : writers.values()) {
+            for (ImageWriter w = q.poll(); w != null; w = q.poll()) {
+                w.dispose();
+            }
+        }
+        readers.clear();
+        writers.clear();
+        readerSpis.clear();
+        writerSpis.clear();
+    }
+
+    /**
+     * Returns the queue for the key (creating it if necessary).
+     *
+     * @param queues
+     * @param key
+     * @return
+     */
+    protected static <T> BlockingQueue<T> getQueue(ConcurrentMap<String, BlockingQueue<T>> queues, String key) {
+        BlockingQueue<T> q = queues.get(key);
+        if (q == null) {
+            BlockingQueue<T> nq = new ArrayBlockingQueue<T>(maxPoolSize);
+            q = queues.putIfAbsent(key, nq);
+            if (q == null) {
+                q = nq;
+            }
+        }
+        return q;
+    }
+
+    /**
+     * @return the maximum number of idle readers or writers per format
+     */
+    public static int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Sets the maximum number of idle readers or writers per format (only
+     * effective before the first use or after clear).
+     *
+     * @param maxPoolSize
+     */
+    public static void setMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize > 0) {
+            ImageCodecPool.maxPoolSize = maxPoolSize;
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageJobClassifier -- assigns priorities to image jobs.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import digilib.util.DigilibJobCenter.Priority;
+
+/**
+ * Assigns a Priority to an ImageJobDescription.
+ *
+ * The priority is taken from the configured mapping for the client or the
+ * path of the image, otherwise images up to the thumbnail size are
+ * Priority.THUMBNAIL and all other images Priority.INTERACTIVE.
+ *
+ * The mapping is a list of "key=priority" entries separated by whitespace or
+ * commas. Keys starting with "/" are path prefixes (the longest match wins),
+ * other keys are client names or addresses (a trailing "*" matches a prefix).
+ * Priorities are the lower case names of DigilibJobCenter.Priority, e.g.
+ * "192.168.1.*=prefetch, harvester=prefetch, /batch/=pdf".
+ */
+public class ImageJobClassifier {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageJobClassifier.class);
+
+    /** max width and height of thumbnails */
+    protected int thumbnailSize;
+
+    /** priorities by client */
+    protected Map<String, Priority> clientMap = new HashMap<String, Priority>();
+
+    /** priorities by client prefix */
+    protected Map<String, Priority> clientPrefixMap = new HashMap<String, Priority>();
+
+    /** priorities by path prefix */
+    protected Map<String, Priority> pathMap = new HashMap<String, Priority>();
+
+    /** path prefixes, longest first */
+    protected List<String> pathPrefixes = new ArrayList<String>();
+
+    /**
+     * Creates an ImageJobClassifier.
+     *
+     * @param mapping
+     *            the mapping of clients and paths to priorities
+     * @param thumbnailSize
+     *            max width and height of thumbnails
+     */
+    public ImageJobClassifier(String mapping, int thumbnailSize) {
+        this.thumbnailSize = thumbnailSize;
+        if (mapping == null) {
+            return;
+        }
+        for (String entry : mapping.split("[\\s,]+")) {
+            int eq = entry.indexOf('=');
+            if (eq < 1) {
+                if (!entry.isEmpty()) {
+                    logger.error("Invalid priority mapping: " + entry);
+                }
+                continue;
+            }
+            String key = entry.substring(0, eq).trim();
+            Priority prio;
+            try {
+                prio = Priority.valueOf(entry.substring(eq + 1).trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid priority in mapping: " + entry);
+                continue;
+            }
+            if (key.startsWith("/")) {
+                pathMap.put(key.substring(1), prio);
+            } else if (key.endsWith("*")) {
+                clientPrefixMap.put(key.substring(0, key.length() - 1), prio);
+            } else {
+                clientMap.put(key, prio);
+            }
+        }
+        pathPrefixes.addAll(pathMap.keySet());
+        // longest prefix first
+        Collections.sort(pathPrefixes, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return b.length() - a.length();
+            }
+        });
+    }
+
+    /**
+     * Returns the Priority of the job for the client.
+     *
+     * @param job
+     * @param client
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public Priority getPriority(ImageJobDescription job, String client) throws IOException, ImageOpException {
+        if (client != null) {
+            Priority prio = clientMap.get(client);
+            if (prio != null) {
+                return prio;
+            }
+            for (Map.Entry<String, Priority> e : clientPrefixMap.entrySet()) {
+                if (client.startsWith(e.getKey())) {
+                    return e.getValue();
+                }
+            }
+        }
+        if (!pathPrefixes.isEmpty()) {
+            String path = job.getFilePath();
+            if (path != null) {
+                for (String prefix : pathPrefixes) {
+                    if (path.startsWith(prefix)) {
+                        return pathMap.get(prefix);
+                    }
+                }
+            }
+        }
+        // size of the destination image
+        Rectangle2D area = job.getOuterUserImgArea();
+        double scale = job.getScaleXY();
+        if (area.getWidth() * scale <= thumbnailSize && area.getHeight() * scale <= thumbnailSize) {
+            return Priority.THUMBNAIL;
+        }
+        return Priority.INTERACTIVE;
+    }
+
+}
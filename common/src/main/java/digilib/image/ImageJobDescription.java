@@ -25,9 +25,12 @@ package digilib.image;
  * Author: Robert Casties (robcast@berlios.de)
  */
 
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
@@ -83,6 +86,8 @@ public class ImageJobDescription extends ParameterMap {
     protected Float paramWH = null;
     protected DocuDirCache dirCache = null;
 	protected ImageSize hiresSize = null;
+    protected String renderKey = null;
+    protected Long cost = null;
 
     /**
      * create empty ImageJobDescription.
@@ -724,6 +729,80 @@ public class ImageJobDescription extends ParameterMap {
         return outerUserImgArea;
     }
 
+    /**
+     * Returns the subsampling factor for loading the source image.
+     * 
+     * Images are loaded with subsampling when they are scaled down. For higher
+     * quality the factor is reduced by the subsample-minimum parameter.
+     * 
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public double getSubsampleFactor() throws IOException, ImageOpException {
+        double scale = getScaleXY();
+        if (scale >= 1) {
+            return 1d;
+        }
+        double subf = 1 / scale;
+        if (getScaleQual() > 0) {
+            return Math.max(Math.floor(subf / dlConfig.getAsFloat("subsample-minimum")), 1d);
+        } else {
+            return Math.floor(subf);
+        }
+    }
+
+    /**
+     * Returns the estimated cost of rendering the image in pixels.
+     * 
+     * The cost is the number of decoded pixels of the source area (after
+     * subsampling, the whole image if the DocuImage can not load subimages)
+     * plus the number of destination pixels for scaling and for each
+     * additional image operation (rotation counts twice).
+     * 
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public long getCost() throws IOException, ImageOpException {
+        if (cost == null) {
+            Rectangle2D area = getOuterUserImgArea();
+            double scale = getScaleXY();
+            long srcPixels;
+            if (docuImage != null && !docuImage.isSubimageSupported()) {
+                ImageSize is = getInput().getSize();
+                srcPixels = (long) is.getWidth() * (long) is.getHeight();
+            } else {
+                double subsamp = getSubsampleFactor();
+                srcPixels = (long) Math.ceil(area.getWidth() / subsamp) * (long) Math.ceil(area.getHeight() / subsamp);
+            }
+            long destPixels = (long) Math.ceil(area.getWidth() * scale) * (long) Math.ceil(area.getHeight() * scale);
+            // scaling
+            int ops = 1;
+            if (hasOption("hmir")) {
+                ops += 1;
+            }
+            if (hasOption("vmir")) {
+                ops += 1;
+            }
+            if (getAsFloat("rot") != 0) {
+                // rotated image is larger
+                ops += 2;
+            }
+            if (getRGBM() != null || getRGBA() != null) {
+                ops += 1;
+            }
+            if (getAsFloat("cont") != 0 || getAsFloat("brgt") != 0) {
+                ops += 1;
+            }
+            if (getColOp() != null) {
+                ops += 1;
+            }
+            cost = srcPixels + ops * destPixels;
+        }
+        return cost;
+    }
+
     public float[] getRGBM() {
         float[] paramRGBM = null;// {0f,0f,0f};
         Parameter p = params.get("rgbm");
@@ -803,6 +882,59 @@ public class ImageJobDescription extends ParameterMap {
         return true;
     }
 
+    /**
+     * Returns a canonical description of the rendering job.
+     *
+     * The key contains the resolved input file and its modification time,
+     * the source area, the scaling factor, all image operations and the
+     * output mime-type. Requests that result in the same image (e.g.
+     * different dw/dh/ww combinations or IIIF and classic syntax)
+     * have the same key.
+     *
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public String getRenderKey() throws IOException, ImageOpException {
+        if (renderKey == null) {
+            StringBuilder key = new StringBuilder();
+            // input file
+            ImageInput input = getInput();
+            if (input.hasFile()) {
+                File f = input.getFile();
+                key.append(f.getPath());
+                key.append('@');
+                key.append(f.lastModified());
+            } else {
+                key.append(input.toString());
+            }
+            // source area
+            Rectangle area = getOuterUserImgArea().getBounds();
+            key.append("|a=").append(area.x).append(',').append(area.y);
+            key.append(',').append(area.width).append(',').append(area.height);
+            // scale and quality
+            key.append("|s=").append(getScaleXY());
+            key.append("|q=").append(getScaleQual());
+            // image operations
+            if (hasOption("hmir")) {
+                key.append("|hmir");
+            }
+            if (hasOption("vmir")) {
+                key.append("|vmir");
+            }
+            key.append("|rot=").append(getAsFloat("rot"));
+            key.append("|rgbm=").append(Arrays.toString(getRGBM()));
+            key.append("|rgba=").append(Arrays.toString(getRGBA()));
+            key.append("|cont=").append(getAsFloat("cont"));
+            key.append("|brgt=").append(getAsFloat("brgt"));
+            key.append("|colop=").append(getColOp());
+            // output type
+            key.append("|mt=").append(getOutputMimeType());
+            renderKey = key.toString();
+        }
+        return renderKey;
+    }
+
     /**
      * @return the docuImage
      */
@@ -35,20 +35,34 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BandCombineOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
 import java.awt.image.ByteLookupTable;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.ConvolveOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
 import java.awt.image.Kernel;
 import java.awt.image.LookupOp;
 import java.awt.image.LookupTable;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.RescaleOp;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -57,6 +71,7 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadProgressListener;
 import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
@@ -80,6 +95,21 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     /** the reader object */
     protected ImageReader reader = null;
 
+    /** stop reading the image */
+    protected volatile boolean abortRequested = false;
+
+    /** mime-types of images that are read in strips in parallel */
+    public static Set<String> stripLoadingTypes = new HashSet<String>(Arrays.asList("image/tiff"));
+
+    /** the DocuImages loading strips of this image */
+    protected List<ImageLoaderDocuImage> stripImages = new ArrayList<ImageLoaderDocuImage>();
+
+    /** the mime-type the reader object was created for */
+    protected String readerMimeType = null;
+
+    /** the stream opened for the reader object */
+    protected ImageInputStream readerStream = null;
+
     /** try to reuse reader object */
     public boolean reuseReader = false;
 
@@ -169,7 +199,6 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
 
     public ImageLoaderDocuImage() {
         super();
-        ImageIO.scanForPlugins();
     }
 
     /**
@@ -206,10 +235,16 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             int w = 0;
             try {
                 if (img == null) {
-                    reader = getReader(input);
-                    // get size from ImageReader
-                    h = reader.getHeight(0);
-                    w = reader.getWidth(0);
+                    try {
+                        reader = getReader(input);
+                        // get size from ImageReader
+                        h = reader.getHeight(0);
+                        w = reader.getWidth(0);
+                    } finally {
+                        if (!reuseReader) {
+                            releaseReader();
+                        }
+                    }
                 } else {
                     // get size from image
                     h = img.getHeight();
@@ -265,8 +300,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.error("ImageLoaderDocuimage unable to identify:", e);
             return null;
         } finally {
-            if (!reuseReader && reader != null) {
-                reader.dispose();
+            if (!reuseReader) {
+                releaseReader();
             }
         }
     }
@@ -300,7 +335,12 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.debug("reuseing ImageReader");
             return reader;
         }
+        if (reader != null) {
+            // return unused reader
+            releaseReader();
+        }
         ImageInputStream istream = null;
+        boolean ownStream = false;
         if (input.hasImageInputStream()) {
             // ImageInputStream input
             istream = input.getImageInputStream();
@@ -308,10 +348,11 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // file only input
             RandomAccessFile rf = new RandomAccessFile(input.getFile(), "r");
             istream = new FileImageInputStream(rf);
+            ownStream = true;
         } else {
             throw new FileOpException("Unable to get data from ImageInput");
         }
-        Iterator<ImageReader> readers;
+        ImageReader reader = null;
         String mt = null;
         if (input.hasMimetype()) {
             // check hasMimetype first or we might get into a loop
@@ -322,24 +363,47 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         }
         if (mt == null) {
             logger.debug("No mime-type. Trying automagic.");
-            readers = ImageIO.getImageReaders(istream);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(istream);
+            if (readers.hasNext()) {
+                reader = readers.next();
+            }
         } else {
             logger.debug("File type:" + mt);
-            readers = ImageIO.getImageReadersByMIMEType(mt);
+            reader = ImageCodecPool.getReader(mt);
         }
-        if (!readers.hasNext()) {
+        if (reader == null) {
+            if (ownStream) {
+                istream.close();
+            }
             throw new FileOpException("Can't find Reader to load File!");
         }
-        ImageReader reader = readers.next();
         logger.debug("ImageIO: this reader: " + reader.getClass());
-        /*
-         * while (readers.hasNext()) { logger.debug("ImageIO: next reader: " +
-         * readers.next().getClass()); }
-         */
         reader.setInput(istream);
+        this.readerMimeType = mt;
+        this.readerStream = ownStream ? istream : null;
         return reader;
     }
 
+    /**
+     * Returns the current ImageReader to the pool and closes its input stream
+     * (if we opened it).
+     */
+    protected void releaseReader() {
+        if (reader != null) {
+            ImageCodecPool.releaseReader(readerMimeType, reader);
+            reader = null;
+            readerMimeType = null;
+        }
+        if (readerStream != null) {
+            try {
+                readerStream.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            readerStream = null;
+        }
+    }
+
     /* Load an image file into the Object. */
     public void loadSubimage(ImageInput ii, Rectangle region, int prescale) throws FileOpException {
         logger.debug("loadSubimage");
@@ -372,7 +436,19 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             }
             // read image
             logger.debug("loadSubimage: loading..");
-            img = reader.read(0, readParam);
+            if (abortRequested) {
+                throw new FileOpException("Loading image aborted!");
+            }
+            IIOReadProgressListener abortListener = new AbortListener();
+            reader.addIIOReadProgressListener(abortListener);
+            try {
+                img = reader.read(0, readParam);
+            } finally {
+                reader.removeIIOReadProgressListener(abortListener);
+            }
+            if (abortRequested) {
+                throw new FileOpException("Loading image aborted!");
+            }
             logger.debug("loadSubimage: loaded");
             // invalidate image size if it was set
             imageSize = null;
@@ -390,17 +466,211 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         } catch (IOException e) {
             throw new FileOpException("Unable to load File!", e);
         } finally {
-            if (!reuseReader && reader != null) {
-                reader.dispose();
+            if (!reuseReader) {
+                releaseReader();
+            }
+        }
+    }
+
+    /*
+     * Load a subsampled region of the image file and scale it.
+     * 
+     * Large images are scaled in horizontal strips in parallel (see
+     * TiledImageOps). Each strip uses enough extra source rows for
+     * interpolation and blurring. Strips of images in stripLoadingTypes are
+     * also read in parallel by their own ImageReader, other images are read
+     * once (their readers have to decode all rows before a region anyway).
+     * 
+     * If the quality uses an ImageResampler filter the strips are only read
+     * in parallel and the whole image is resampled afterwards.
+     */
+    @Override
+    public void loadSubimageScaled(final ImageInput ii, final Rectangle region, int subsample, final double scale)
+            throws FileOpException, ImageOpException {
+        final int ss = Math.max(subsample, 1);
+        // size of the subsampled region
+        int sw = (region.width + ss - 1) / ss;
+        final int sh = (region.height + ss - 1) / ss;
+        // resample the whole image afterwards or scale the strips
+        final boolean resample = (ImageResampler.getFilter(quality) != null);
+        final double stripScale = resample ? 1 : scale;
+        final AffineTransform scaleTrafo = AffineTransform.getScaleInstance(stripScale, stripScale);
+        final Rectangle destSize = TiledImageOps.getTransformedSize(scaleTrafo, sw, sh);
+        if (!TiledImageOps.isTiled(destSize.width, destSize.height)) {
+            super.loadSubimageScaled(ii, region, subsample, scale);
+            return;
+        }
+        String mt = ii.hasMimetype() ? ii.getMimetype() : null;
+        if (mt == null && ii.hasFile()) {
+            mt = FileOps.mimeForFile(ii.getFile());
+        }
+        final BufferedImage srcImg;
+        if (ii.hasFile() && stripLoadingTypes.contains(mt)) {
+            logger.debug("loadSubimageScaled: loading in strips");
+            this.input = ii;
+            srcImg = null;
+        } else if (resample) {
+            super.loadSubimageScaled(ii, region, subsample, scale);
+            return;
+        } else {
+            logger.debug("loadSubimageScaled: scaling in strips");
+            loadSubimage(ii, region, ss);
+            srcImg = img;
+        }
+        // for downscaling in high quality the strips are blurred first
+        final int blurRadius = ((stripScale <= 0.5) && (quality > 1)) ? (int) Math.floor(1 / stripScale) : 0;
+        // extra source rows for interpolation and blurring
+        final int margin = resample ? 0 : 3 + Math.max(blurRadius, 2);
+        final BufferedImage[] dest = new BufferedImage[1];
+        List<int[]> strips = TiledImageOps.getStrips(destSize.height);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(strips.size());
+        for (final int[] strip : strips) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    // source rows of the strip
+                    int sy0 = Math.max((int) Math.floor(strip[0] / stripScale) - margin, 0);
+                    int sy1 = Math.min((int) Math.ceil((strip[0] + strip[1]) / stripScale) + margin, sh);
+                    ImageLoaderDocuImage stripImage = new ImageLoaderDocuImage();
+                    stripImage.setQuality(quality);
+                    addStripImage(stripImage);
+                    try {
+                        if (srcImg == null) {
+                            // read the rows of the strip
+                            Rectangle stripRegion = new Rectangle(region.x, region.y + sy0 * ss, region.width,
+                                    Math.min((sy1 - sy0) * ss, region.height - sy0 * ss));
+                            stripImage.loadSubimage(ii, stripRegion, ss);
+                        } else {
+                            sy1 = Math.min(sy1, srcImg.getHeight());
+                            stripImage.img = srcImg.getSubimage(0, sy0, srcImg.getWidth(), sy1 - sy0);
+                        }
+                        if (blurRadius > 0) {
+                            stripImage.blur(blurRadius);
+                        }
+                        BufferedImage src = stripImage.img;
+                        if (resample) {
+                            // copy into the strip of the destination image
+                            synchronized (dest) {
+                                if (dest[0] == null) {
+                                    dest[0] = TiledImageOps.createCompatibleImage(src, destSize.width,
+                                            destSize.height);
+                                }
+                            }
+                            dest[0].getRaster().setRect(0, sy0, src.getRaster());
+                            return null;
+                        }
+                        // scale into the strip of the destination image
+                        AffineTransform t = AffineTransform.getTranslateInstance(0, -strip[0]);
+                        t.concatenate(scaleTrafo);
+                        t.translate(0, sy0);
+                        AffineTransformOp op = new AffineTransformOp(t, renderHint);
+                        BufferedImage destImg;
+                        synchronized (dest) {
+                            if (dest[0] == null) {
+                                // same type as AffineTransformOp would create
+                                AffineTransformOp scaleOp = new AffineTransformOp(scaleTrafo, renderHint);
+                                BufferedImage template = scaleOp.createCompatibleDestImage(src.getSubimage(0, 0, 1, 1),
+                                        null);
+                                dest[0] = TiledImageOps.createCompatibleImage(template, destSize.width,
+                                        destSize.height);
+                            }
+                            destImg = dest[0];
+                        }
+                        op.filter(src, destImg.getSubimage(0, strip[0], destSize.width, strip[1]));
+                    } finally {
+                        removeStripImage(stripImage);
+                        stripImage.dispose();
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            TiledImageOps.invokeAll(tasks);
+        } catch (ImageOpException e) {
+            if (abortRequested) {
+                throw new FileOpException("Loading image aborted!");
+            }
+            if (e.getCause() instanceof FileOpException) {
+                throw (FileOpException) e.getCause();
+            }
+            throw e;
+        }
+        img = dest[0];
+        // invalidate image size
+        imageSize = null;
+        if (resample) {
+            scale(scale, scale);
+        }
+        logger.debug("loaded and scaled to " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
+    }
+
+    /**
+     * Adds a DocuImage loading a strip of this image (to be aborted with
+     * this image).
+     * 
+     * @param stripImage
+     */
+    protected void addStripImage(ImageLoaderDocuImage stripImage) {
+        synchronized (stripImages) {
+            stripImages.add(stripImage);
+            if (abortRequested) {
+                stripImage.abort();
             }
         }
     }
 
+    /**
+     * Removes a DocuImage loading a strip of this image.
+     * 
+     * @param stripImage
+     */
+    protected void removeStripImage(ImageLoaderDocuImage stripImage) {
+        synchronized (stripImages) {
+            stripImages.remove(stripImage);
+        }
+    }
+
+    /**
+     * Returns the current image transformed by trafo.
+     * 
+     * Large images are transformed in strips in parallel.
+     * 
+     * @param trafo
+     * @return
+     * @throws ImageOpException
+     */
+    protected BufferedImage transform(AffineTransform trafo) throws ImageOpException {
+        if (TiledImageOps.isTiled(img)) {
+            return TiledImageOps.transform(trafo, renderHint, img);
+        }
+        AffineTransformOp op = new AffineTransformOp(trafo, renderHint);
+        return op.filter(img, null);
+    }
+
+    /**
+     * Filters the current image with the pixel-wise operation into dest
+     * (dest can be the current image or null).
+     * 
+     * Large images are filtered in strips in parallel.
+     * 
+     * @param op
+     * @param dest
+     * @return
+     * @throws ImageOpException
+     */
+    protected BufferedImage filter(BufferedImageOp op, BufferedImage dest) throws ImageOpException {
+        if (TiledImageOps.isTiled(img)) {
+            return TiledImageOps.filter(op, img, dest);
+        }
+        return op.filter(img, dest);
+    }
+
     /* write image of type mt to Stream */
     public void writeImage(String mt, OutputStream ostream) throws ImageOpException, FileOpException {
         logger.debug("writeImage");
         // setup output
         ImageWriter writer = null;
+        String format = null;
         ImageOutputStream imgout = null;
         try {
             imgout = ImageIO.createImageOutputStream(ostream);
@@ -416,7 +686,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                     rgbImg.createGraphics().drawImage(img, null, 0, 0);
                     img = rgbImg;
                 }
-                writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+                format = "jpeg";
+                writer = ImageCodecPool.getWriter(format);
                 if (writer == null) {
                     throw new ImageOpException("Unable to get JPEG writer");
                 }
@@ -432,7 +703,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 writer.write(null, new IIOImage(img, null, null), param);
             } else if (mt == "image/png") {
                 // render output
-                writer = ImageIO.getImageWritersByFormatName("png").next();
+                format = "png";
+                writer = ImageCodecPool.getWriter(format);
                 if (writer == null) {
                     throw new ImageOpException("Unable to get PNG writer");
                 }
@@ -443,24 +715,45 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 // unknown mime type
                 throw new ImageOpException("Unknown mime type: " + mt);
             }
+            // write remaining data to the output stream
+            imgout.flush();
 
         } catch (IOException e) {
             logger.error("Error writing image:", e);
             throw new FileOpException("Error writing image!", e);
+        } finally {
+            // return writer to the pool
+            ImageCodecPool.releaseWriter(format, writer);
+            if (imgout != null) {
+                try {
+                    imgout.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
         }
-        // TODO: should we: finally { writer.dispose(); }
     }
 
     public void scale(double scaleX, double scaleY) throws ImageOpException {
         logger.debug("scale: " + scaleX);
+        ImageResampler.Filter filter = ImageResampler.getFilter(quality);
+        if (filter != null && ImageResampler.isSupported(img)) {
+            /* resample with separable filter */
+            Rectangle size = TiledImageOps.getTransformedSize(AffineTransform.getScaleInstance(scaleX, scaleY),
+                    img.getWidth(), img.getHeight());
+            img = ImageResampler.resample(img, scaleX, scaleY, size.width, size.height, filter);
+            logger.debug("resampled (" + filter + ") to " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
+            // invalidate image size
+            imageSize = null;
+            return;
+        }
         /* for downscaling in high quality the image is blurred first */
         if ((scaleX <= 0.5) && (quality > 1)) {
             int bl = (int) Math.floor(1 / scaleX);
             blur(bl);
         }
         /* then scaled */
-        AffineTransformOp scaleOp = new AffineTransformOp(AffineTransform.getScaleInstance(scaleX, scaleY), renderHint);
-        img = scaleOp.filter(img, null);
+        img = transform(AffineTransform.getScaleInstance(scaleX, scaleY));
         logger.debug("scaled to " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
         // invalidate image size
         imageSize = null;
@@ -524,10 +817,9 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // move image back on screen
             logger.debug("move rotation: xoff=" + xoff + " yoff=" + yoff);
             trafo.preConcatenate(AffineTransform.getTranslateInstance(-xoff, -yoff));
-            rotOp = new AffineTransformOp(trafo, renderHint);
         }
         // transform image
-        img = rotOp.filter(img, null);
+        img = transform(trafo);
         logger.debug("rotated: " + img);
         // invalidate image size
         imageSize = null;
@@ -559,8 +851,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.error("invalid mirror angle " + angle);
             return;
         }
-        AffineTransformOp mirOp = new AffineTransformOp(new AffineTransform(mx, 0, 0, my, tx, ty), renderHint);
-        img = mirOp.filter(img, null);
+        img = transform(new AffineTransform(mx, 0, 0, my, tx, ty));
         // invalidate image size
         imageSize = null;
     }
@@ -593,7 +884,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         } else {
             op = new RescaleOp(mult, add, renderHint);
         }
-        op.filter(img, img);
+        filter(op, img);
     }
 
     public void enhanceRGB(float[] rgbm, float[] rgba) throws ImageOpException {
@@ -613,7 +904,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             rgba = new float[] { rgba[0], rgba[1], rgba[2], 0 };
         }
         RescaleOp scaleOp = new RescaleOp(rgbm, rgba, renderHint);
-        scaleOp.filter(img, img);
+        filter(scaleOp, img);
     }
 
     /*
@@ -636,7 +927,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             }
             ColorConvertOp op = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), renderHint);
             // let filter create new image
-            img = op.filter(img, null);
+            img = filter(op, null);
         } else if (colop == ColorOp.NTSC_GRAY) {
             /*
              * convert image to grayscale NTSC-style: luminance = 0.2989*red +
@@ -656,7 +947,11 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // BandCombineOp only works on Rasters so we create a
             // new image and use its Raster
             BufferedImage dest = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
-            op.filter(img.getRaster(), dest.getRaster());
+            if (TiledImageOps.isTiled(img)) {
+                TiledImageOps.filter(op, img.getRaster(), dest.getRaster());
+            } else {
+                op.filter(img.getRaster(), dest.getRaster());
+            }
             img = dest;
         } else if (colop == ColorOp.INVERT) {
             /*
@@ -679,7 +974,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             }
             LookupOp op = new LookupOp(invtbl, renderHint);
             logger.debug("colop: image=" + img);
-            op.filter(img, img);
+            filter(op, img);
         } else if (colop == ColorOp.MAP_GRAY_BGR) {
             /*
              * false color image from grayscale (0: blue, 128: green, 255: red)
@@ -698,23 +993,341 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 }
             }
             BufferedImage dest = new BufferedImage(img.getWidth(), img.getHeight(), destType);
-            img = grayOp.filter(img, dest);
+            img = filter(grayOp, dest);
             logger.debug("map_gray: image=" + img);
             // convert to false color
             LookupOp mapOp = new LookupOp(mapBgrByteTable, renderHint);
-            mapOp.filter(img, img);
+            filter(mapOp, img);
             logger.debug("mapped image=" + img);
         }
     }
 
-    public void dispose() {
-        if (reader != null) {
-            reader.dispose();
+    /*
+     * Changes the colors with enhanceRGB(), enhance() and colorOp().
+     * 
+     * For 8-bit RGB and gray images with a byte per sample or an int per
+     * pixel the enhancements, INVERT and NTSC_GRAY are combined into one
+     * lookup table per color band that is applied to the DataBuffer in one
+     * pass (in place, NTSC_GRAY writes into a new gray image). GRAYSCALE and
+     * MAP_GRAY_BGR are applied afterwards. Other images use the single
+     * operations.
+     * 
+     * @see digilib.image.DocuImageImpl#enhanceAndColorOp(float[], float[],
+     * float, float, digilib.image.DocuImage.ColorOp)
+     */
+    @Override
+    public void enhanceAndColorOp(float[] rgbm, float[] rgba, float mult, float add, ColorOp colop)
+            throws ImageOpException {
+        final int ncol = getLutBands(img);
+        if (ncol == 0) {
+            super.enhanceAndColorOp(rgbm, rgba, mult, add, colop);
+            return;
+        }
+        logger.debug("enhanceAndColorOp: img=" + img);
+        boolean rgb = (rgbm != null && rgba != null);
+        if (rgb && ((ncol != 3) || (rgbm.length != 3) || (rgba.length != 3))) {
+            logger.error("enhanceRGB: unknown number of color bands or coefficients (" + ncol + ")");
+            rgb = false;
+        }
+        boolean enh = (mult != 1f || add != 0f);
+        boolean invert = (colop == ColorOp.INVERT);
+        boolean ntsc = (colop == ColorOp.NTSC_GRAY && ncol == 3);
+        if (rgb || enh || invert || ntsc) {
+            // lookup tables for all operations on each band
+            final byte[][] lut = new byte[ncol][256];
+            for (int b = 0; b < ncol; ++b) {
+                for (int i = 0; i < 256; ++i) {
+                    int v = i;
+                    if (rgb) {
+                        v = rescale(v, rgbm[b], rgba[b]);
+                    }
+                    if (enh) {
+                        v = rescale(v, mult, add);
+                    }
+                    if (invert) {
+                        v = 255 - v;
+                    }
+                    lut[b][i] = (byte) v;
+                }
+            }
+            final BufferedImage src = img;
+            final BufferedImage dest;
+            if (ntsc) {
+                // luminance = 0.2989*red + 0.5870*green + 0.1140*blue
+                dest = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+            } else {
+                dest = img;
+            }
+            if (TiledImageOps.isTiled(src)) {
+                List<int[]> strips = TiledImageOps.getStrips(src.getHeight());
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(strips.size());
+                for (final int[] strip : strips) {
+                    tasks.add(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            applyLut(lut, src, dest, strip[0], strip[0] + strip[1]);
+                            return null;
+                        }
+                    });
+                }
+                TiledImageOps.invokeAll(tasks);
+            } else {
+                applyLut(lut, src, dest, 0, src.getHeight());
+            }
+            img = dest;
+        }
+        if (colop == ColorOp.GRAYSCALE || colop == ColorOp.MAP_GRAY_BGR) {
+            colorOp(colop);
+        }
+    }
+
+    /**
+     * Returns p*m+a cut to 0..255 (like RescaleOp).
+     * 
+     * @param p
+     * @param m
+     * @param a
+     * @return
+     */
+    protected static int rescale(int p, float m, float a) {
+        int v = (int) (p * m + a);
+        return (v < 0) ? 0 : ((v > 255) ? 255 : v);
+    }
+
+    /**
+     * Returns the number of color bands of the image if its DataBuffer can
+     * be changed with lookup tables (8-bit samples in a byte per sample or an
+     * int per pixel, not premultiplied), otherwise 0.
+     * 
+     * @param img
+     * @return
+     */
+    protected static int getLutBands(BufferedImage img) {
+        ColorModel cm = img.getColorModel();
+        if (cm instanceof IndexColorModel || cm.isAlphaPremultiplied()) {
+            return 0;
+        }
+        int ncol = cm.getNumColorComponents();
+        if (ncol != 1 && ncol != 3) {
+            return 0;
+        }
+        for (int i = 0; i < cm.getNumComponents(); ++i) {
+            if (cm.getComponentSize(i) != 8) {
+                return 0;
+            }
+        }
+        SampleModel sm = img.getSampleModel();
+        DataBuffer db = img.getRaster().getDataBuffer();
+        if (db.getNumBanks() != 1) {
+            return 0;
+        }
+        if ((sm instanceof PixelInterleavedSampleModel && db instanceof DataBufferByte)
+                || (sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt)) {
+            return ncol;
+        }
+        return 0;
+    }
+
+    /**
+     * Applies the lookup tables to the color bands of the rows y0 to y1 of
+     * src.
+     * 
+     * Writes into src if dest is src, otherwise writes the luminance into
+     * the gray image dest.
+     * 
+     * @param lut
+     * @param src
+     * @param dest
+     * @param y0
+     * @param y1
+     */
+    protected static void applyLut(byte[][] lut, BufferedImage src, BufferedImage dest, int y0, int y1) {
+        WritableRaster raster = src.getRaster();
+        int width = raster.getWidth();
+        // position of the raster in the DataBuffer
+        int tx = -raster.getSampleModelTranslateX();
+        int ty = -raster.getSampleModelTranslateY();
+        int ncol = lut.length;
+        byte[] grayData = null;
+        int grayStride = 0;
+        float[][] grayLut = null;
+        if (dest != src) {
+            grayData = ((DataBufferByte) dest.getRaster().getDataBuffer()).getData();
+            grayStride = ((ComponentSampleModel) dest.getSampleModel()).getScanlineStride();
+            // luminance of the values of each band
+            float[] weights = { 0.299f, 0.587f, 0.114f };
+            grayLut = new float[3][256];
+            for (int b = 0; b < 3; ++b) {
+                for (int i = 0; i < 256; ++i) {
+                    grayLut[b][i] = weights[b] * (lut[b][i] & 0xff);
+                }
+            }
+        }
+        if (raster.getDataBuffer() instanceof DataBufferByte) {
+            /*
+             * one byte per sample
+             */
+            PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int ps = sm.getPixelStride();
+            int ss = sm.getScanlineStride();
+            int[] bo = sm.getBandOffsets();
+            for (int y = y0; y < y1; ++y) {
+                int p = offset + (y + ty) * ss + tx * ps;
+                int pe = p + width * ps;
+                if (grayData != null) {
+                    int g = y * grayStride;
+                    float[] l0 = grayLut[0];
+                    float[] l1 = grayLut[1];
+                    float[] l2 = grayLut[2];
+                    int o0 = bo[0];
+                    int o1 = bo[1];
+                    int o2 = bo[2];
+                    for (; p < pe; p += ps) {
+                        grayData[g++] = (byte) (l0[data[p + o0] & 0xff] + l1[data[p + o1] & 0xff]
+                                + l2[data[p + o2] & 0xff]);
+                    }
+                } else if (ncol == 3) {
+                    byte[] l0 = lut[0];
+                    byte[] l1 = lut[1];
+                    byte[] l2 = lut[2];
+                    int o0 = bo[0];
+                    int o1 = bo[1];
+                    int o2 = bo[2];
+                    for (; p < pe; p += ps) {
+                        data[p + o0] = l0[data[p + o0] & 0xff];
+                        data[p + o1] = l1[data[p + o1] & 0xff];
+                        data[p + o2] = l2[data[p + o2] & 0xff];
+                    }
+                } else {
+                    byte[] l0 = lut[0];
+                    int o0 = bo[0];
+                    for (; p < pe; p += ps) {
+                        data[p + o0] = l0[data[p + o0] & 0xff];
+                    }
+                }
+            }
+        } else {
+            /*
+             * one int per pixel
+             */
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int ss = sm.getScanlineStride();
+            int[] bo = sm.getBitOffsets();
+            int[] bm = sm.getBitMasks();
+            // lookup tables with shifted values
+            int[][] ilut = new int[ncol][256];
+            int keep = -1;
+            for (int b = 0; b < ncol; ++b) {
+                keep &= ~bm[b];
+                for (int i = 0; i < 256; ++i) {
+                    ilut[b][i] = (lut[b][i] & 0xff) << bo[b];
+                }
+            }
+            for (int y = y0; y < y1; ++y) {
+                int p = offset + (y + ty) * ss + tx;
+                int pe = p + width;
+                if (grayData != null) {
+                    int g = y * grayStride;
+                    float[] l0 = grayLut[0];
+                    float[] l1 = grayLut[1];
+                    float[] l2 = grayLut[2];
+                    int s0 = bo[0];
+                    int s1 = bo[1];
+                    int s2 = bo[2];
+                    for (; p < pe; ++p) {
+                        int v = data[p];
+                        grayData[g++] = (byte) (l0[(v >>> s0) & 0xff] + l1[(v >>> s1) & 0xff]
+                                + l2[(v >>> s2) & 0xff]);
+                    }
+                } else if (ncol == 3) {
+                    int[] l0 = ilut[0];
+                    int[] l1 = ilut[1];
+                    int[] l2 = ilut[2];
+                    int s0 = bo[0];
+                    int s1 = bo[1];
+                    int s2 = bo[2];
+                    for (; p < pe; ++p) {
+                        int v = data[p];
+                        data[p] = (v & keep) | l0[(v >>> s0) & 0xff] | l1[(v >>> s1) & 0xff]
+                                | l2[(v >>> s2) & 0xff];
+                    }
+                } else {
+                    int[] l0 = ilut[0];
+                    int s0 = bo[0];
+                    for (; p < pe; ++p) {
+                        int v = data[p];
+                        data[p] = (v & keep) | l0[(v >>> s0) & 0xff];
+                    }
+                }
+            }
         }
+    }
+
+    public void dispose() {
+        releaseReader();
         // is this necessary?
         img = null;
     }
 
+    /**
+     * IIOReadProgressListener that aborts the ImageReader when abort() has
+     * been called.
+     */
+    protected class AbortListener implements IIOReadProgressListener {
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (abortRequested) {
+                source.abort();
+            }
+        }
+
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        public void imageComplete(ImageReader source) {
+        }
+
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+        public void readAborted(ImageReader source) {
+            logger.debug("ImageReader aborted");
+        }
+    }
+
+    /**
+     * Aborts the current read operation of the ImageReader.
+     * 
+     * The reader is aborted from the reading thread by a progress listener
+     * (ImageReaders must not be used from other threads).
+     * 
+     * @see digilib.image.DocuImageImpl#abort()
+     */
+    @Override
+    public void abort() {
+        logger.debug("aborting ImageReader");
+        abortRequested = true;
+        synchronized (stripImages) {
+            for (ImageLoaderDocuImage stripImage : stripImages) {
+                stripImage.abort();
+            }
+        }
+    }
+
     public Image getAwtImage() {
         return (Image) img;
     }
@@ -0,0 +1,525 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageResampler -- separable resampling of 8-bit images.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resamples 8-bit images with separable filters.
+ *
+ * The image is filtered horizontally and then vertically with precomputed
+ * tables of fixed-point weights for each destination column and row. When
+ * downscaling, the filters are widened to cover the source pixels of each
+ * destination pixel, so no blurring beforehand is needed. The samples are
+ * read from and written to byte or int rasters directly. Large images are
+ * resampled in strips of destination rows in parallel (see TiledImageOps).
+ *
+ * The filter for each scaling quality is set with setQualityFilters().
+ */
+public class ImageResampler {
+
+    protected static Logger logger = Logger.getLogger(ImageResampler.class);
+
+    /** Resampling filters. */
+    public static enum Filter {
+        /** nearest neighbour */
+        NEAREST(0),
+        /** average of the covered source pixels */
+        AREA(0),
+        /** linear interpolation (triangle) */
+        BILINEAR(1),
+        /** cubic interpolation (Catmull-Rom) */
+        BICUBIC(2),
+        /** windowed sinc with three lobes */
+        LANCZOS(3);
+
+        /** radius of the filter for scale 1 */
+        public final double radius;
+
+        Filter(double radius) {
+            this.radius = radius;
+        }
+
+        /**
+         * Returns the filter weight at distance x.
+         *
+         * @param x
+         * @return
+         */
+        public double weight(double x) {
+            x = Math.abs(x);
+            switch (this) {
+            case BILINEAR:
+                return (x < 1) ? 1 - x : 0;
+            case BICUBIC:
+                // a = -0.5
+                if (x < 1) {
+                    return (1.5 * x - 2.5) * x * x + 1;
+                } else if (x < 2) {
+                    return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                }
+                return 0;
+            case LANCZOS:
+                if (x < 1e-8) {
+                    return 1;
+                } else if (x < 3) {
+                    double px = Math.PI * x;
+                    return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+                }
+                return 0;
+            default:
+                return (x < 0.5) ? 1 : 0;
+            }
+        }
+    }
+
+    /** number of fractional bits of the weights */
+    protected static final int WEIGHT_BITS = 12;
+
+    /** number of fractional bits of the horizontally filtered samples */
+    protected static final int ROW_BITS = 8;
+
+    /** filters for the scaling qualities (null means AffineTransformOp) */
+    protected static volatile Filter[] qualityFilters = { null, null, null };
+
+    /**
+     * Sets the filters for the scaling qualities from a comma separated list
+     * of filter names for quality 0, 1, 2.
+     *
+     * "java2d" (or an empty entry) means scaling with AffineTransformOp.
+     *
+     * @param filters
+     */
+    public static void setQualityFilters(String filters) {
+        Filter[] qf = { null, null, null };
+        if (filters != null) {
+            String[] names = filters.split(",");
+            for (int i = 0; i < names.length && i < qf.length; ++i) {
+                String name = names[i].trim();
+                if (name.isEmpty() || name.equalsIgnoreCase("java2d")) {
+                    continue;
+                }
+                try {
+                    qf[i] = Filter.valueOf(name.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    logger.error("Invalid resampling filter: " + name);
+                }
+            }
+        }
+        logger.info("Resampling filters for q0, q1, q2: " + Arrays.toString(qf));
+        qualityFilters = qf;
+    }
+
+    /**
+     * Returns the filter for the scaling quality (null means
+     * AffineTransformOp).
+     *
+     * @param quality
+     * @return
+     */
+    public static Filter getFilter(int quality) {
+        Filter[] qf = qualityFilters;
+        if (quality < 0 || quality >= qf.length) {
+            return null;
+        }
+        return qf[quality];
+    }
+
+    /**
+     * Returns if the image can be resampled (8-bit samples in a byte per
+     * sample or an int per pixel, not premultiplied).
+     *
+     * @param img
+     * @return
+     */
+    public static boolean isSupported(BufferedImage img) {
+        ColorModel cm = img.getColorModel();
+        if (cm instanceof IndexColorModel || cm.isAlphaPremultiplied()) {
+            return false;
+        }
+        for (int i = 0; i < cm.getNumComponents(); ++i) {
+            if (cm.getComponentSize(i) != 8) {
+                return false;
+            }
+        }
+        SampleModel sm = img.getSampleModel();
+        DataBuffer db = img.getRaster().getDataBuffer();
+        if (db.getNumBanks() != 1 || sm.getNumBands() != cm.getNumComponents()) {
+            return false;
+        }
+        return (sm instanceof PixelInterleavedSampleModel && db instanceof DataBufferByte)
+                || (sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt);
+    }
+
+    /**
+     * Returns the image resampled to width x height with the filter.
+     *
+     * The scale factors determine the position of the destination pixels
+     * (like AffineTransformOp). The image must be supported (see
+     * isSupported()).
+     *
+     * @param src
+     * @param scaleX
+     * @param scaleY
+     * @param width
+     * @param height
+     * @param filter
+     * @return
+     * @throws ImageOpException
+     */
+    public static BufferedImage resample(BufferedImage src, double scaleX, double scaleY, int width, int height,
+            Filter filter) throws ImageOpException {
+        final int nb = src.getSampleModel().getNumBands();
+        final Weights hw = new Weights(filter, scaleX, src.getWidth(), width);
+        final Weights vw = new Weights(filter, scaleY, src.getHeight(), height);
+        final PixelAccess srcPixels = new PixelAccess(src);
+        final BufferedImage dest = TiledImageOps.createCompatibleImage(src, width, height);
+        final PixelAccess destPixels = new PixelAccess(dest);
+        List<int[]> strips;
+        if (TiledImageOps.isTiled(src)) {
+            strips = TiledImageOps.getStrips(height);
+        } else {
+            strips = new ArrayList<int[]>(1);
+            strips.add(new int[] { 0, height });
+        }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(strips.size());
+        for (final int[] strip : strips) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    resampleRows(srcPixels, destPixels, nb, hw, vw, strip[0], strip[0] + strip[1]);
+                    return null;
+                }
+            });
+        }
+        TiledImageOps.invokeAll(tasks);
+        return dest;
+    }
+
+    /**
+     * Computes the destination rows y0 to y1.
+     *
+     * Keeps the horizontally filtered source rows in a ring buffer with one
+     * row for each tap of the vertical filter.
+     *
+     * @param src
+     * @param dest
+     * @param nb
+     * @param hw
+     * @param vw
+     * @param y0
+     * @param y1
+     */
+    protected static void resampleRows(PixelAccess src, PixelAccess dest, int nb, Weights hw, Weights vw, int y0,
+            int y1) {
+        int dw = dest.width;
+        int taps = vw.taps;
+        int[] srcRow = new int[src.width * nb];
+        int[][] rows = new int[taps][dw * nb];
+        int[] rowIndex = new int[taps];
+        Arrays.fill(rowIndex, -1);
+        int[] acc = new int[dw * nb];
+        int[] destRow = new int[dw * nb];
+        int rowRound = 1 << (WEIGHT_BITS - ROW_BITS - 1);
+        int destShift = WEIGHT_BITS + ROW_BITS;
+        int destRound = 1 << (destShift - 1);
+        for (int y = y0; y < y1; ++y) {
+            Arrays.fill(acc, 0);
+            int start = vw.start[y];
+            int n = vw.count[y];
+            for (int k = 0; k < n; ++k) {
+                int sy = start + k;
+                int slot = sy % taps;
+                int[] row = rows[slot];
+                if (rowIndex[slot] != sy) {
+                    // filter source row horizontally
+                    src.getRow(sy, srcRow);
+                    filterRow(srcRow, row, nb, hw, rowRound);
+                    rowIndex[slot] = sy;
+                }
+                int w = vw.weights[y * taps + k];
+                for (int i = 0; i < acc.length; ++i) {
+                    acc[i] += w * row[i];
+                }
+            }
+            for (int i = 0; i < acc.length; ++i) {
+                int v = (acc[i] + destRound) >> destShift;
+                destRow[i] = (v < 0) ? 0 : ((v > 255) ? 255 : v);
+            }
+            dest.setRow(y, destRow);
+        }
+    }
+
+    /**
+     * Filters a row of samples horizontally.
+     *
+     * @param src
+     * @param dest
+     * @param nb
+     * @param hw
+     * @param round
+     */
+    protected static void filterRow(int[] src, int[] dest, int nb, Weights hw, int round) {
+        int taps = hw.taps;
+        int[] weights = hw.weights;
+        int shift = WEIGHT_BITS - ROW_BITS;
+        int dw = hw.start.length;
+        if (nb == 3) {
+            for (int x = 0; x < dw; ++x) {
+                int s = hw.start[x] * 3;
+                int wi = x * taps;
+                int n = hw.count[x];
+                int a0 = 0;
+                int a1 = 0;
+                int a2 = 0;
+                for (int k = 0; k < n; ++k) {
+                    int w = weights[wi + k];
+                    a0 += w * src[s];
+                    a1 += w * src[s + 1];
+                    a2 += w * src[s + 2];
+                    s += 3;
+                }
+                int d = x * 3;
+                dest[d] = (a0 + round) >> shift;
+                dest[d + 1] = (a1 + round) >> shift;
+                dest[d + 2] = (a2 + round) >> shift;
+            }
+        } else {
+            for (int x = 0; x < dw; ++x) {
+                int wi = x * taps;
+                int n = hw.count[x];
+                for (int b = 0; b < nb; ++b) {
+                    int s = hw.start[x] * nb + b;
+                    int a = 0;
+                    for (int k = 0; k < n; ++k) {
+                        a += weights[wi + k] * src[s];
+                        s += nb;
+                    }
+                    dest[x * nb + b] = (a + round) >> shift;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fixed-point filter weights for each destination pixel in one
+     * direction.
+     */
+    protected static class Weights {
+        /** max number of source pixels per destination pixel */
+        public int taps;
+        /** first source pixel for each destination pixel */
+        public int[] start;
+        /** number of source pixels for each destination pixel */
+        public int[] count;
+        /** weights for each destination pixel (taps per pixel) */
+        public int[] weights;
+
+        public Weights(Filter filter, double scale, int srcLength, int destLength) {
+            // widen the filter when downscaling
+            double fscale = Math.min(scale, 1);
+            double support = Math.max(filter.radius / fscale, 0.5);
+            if (filter == Filter.AREA) {
+                support = 0.5 / fscale + 0.5;
+            }
+            taps = (int) Math.ceil(2 * support) + 1;
+            start = new int[destLength];
+            count = new int[destLength];
+            weights = new int[destLength * taps];
+            double[] w = new double[taps];
+            for (int d = 0; d < destLength; ++d) {
+                // center of the destination pixel in the source
+                double center = (d + 0.5) / scale;
+                int first;
+                int n = 0;
+                if (filter == Filter.NEAREST) {
+                    first = Math.min((int) center, srcLength - 1);
+                    w[n++] = 1;
+                } else if (filter == Filter.AREA) {
+                    // overlap of the source pixels with the destination pixel
+                    double left = d / scale;
+                    double right = (d + 1) / scale;
+                    first = Math.max((int) Math.floor(left), 0);
+                    int last = Math.min((int) Math.ceil(right) - 1, srcLength - 1);
+                    for (int i = first; i <= last && n < taps; ++i) {
+                        w[n++] = Math.min(i + 1, right) - Math.max(i, left);
+                    }
+                } else {
+                    double c = center - 0.5;
+                    first = Math.max((int) Math.ceil(c - support), 0);
+                    int last = Math.min((int) Math.floor(c + support), srcLength - 1);
+                    for (int i = first; i <= last && n < taps; ++i) {
+                        w[n++] = filter.weight((i - c) * fscale);
+                    }
+                }
+                if (n == 0) {
+                    // outside the source: use the nearest pixel
+                    first = Math.max(Math.min((int) center, srcLength - 1), 0);
+                    w[n++] = 1;
+                }
+                start[d] = first;
+                count[d] = n;
+                setWeights(w, n, d * taps);
+            }
+        }
+
+        /**
+         * Stores the normalized weights in fixed point (adding the rounding
+         * error to the largest weight).
+         *
+         * @param w
+         * @param n
+         * @param offset
+         */
+        protected void setWeights(double[] w, int n, int offset) {
+            double sum = 0;
+            for (int i = 0; i < n; ++i) {
+                sum += w[i];
+            }
+            int one = 1 << WEIGHT_BITS;
+            int isum = 0;
+            int max = 0;
+            for (int i = 0; i < n; ++i) {
+                int iw = (int) Math.round(w[i] / sum * one);
+                weights[offset + i] = iw;
+                isum += iw;
+                if (iw > weights[offset + max]) {
+                    max = i;
+                }
+            }
+            weights[offset + max] += one - isum;
+        }
+    }
+
+    /**
+     * Reads and writes rows of samples of a byte or int raster.
+     */
+    protected static class PixelAccess {
+        public int width;
+        protected int nb;
+        protected byte[] bytes;
+        protected int[] ints;
+        protected int offset;
+        protected int scanline;
+        protected int pixelStride;
+        /** byte offsets or bit offsets of the bands */
+        protected int[] bandOffsets;
+        /** bits of an int pixel that are not in a band */
+        protected int keep = -1;
+
+        public PixelAccess(BufferedImage img) {
+            WritableRaster raster = img.getRaster();
+            width = raster.getWidth();
+            nb = raster.getNumBands();
+            int tx = -raster.getSampleModelTranslateX();
+            int ty = -raster.getSampleModelTranslateY();
+            if (raster.getDataBuffer() instanceof DataBufferByte) {
+                PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+                bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+                pixelStride = sm.getPixelStride();
+                scanline = sm.getScanlineStride();
+                bandOffsets = sm.getBandOffsets();
+            } else {
+                SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                ints = ((DataBufferInt) raster.getDataBuffer()).getData();
+                pixelStride = 1;
+                scanline = sm.getScanlineStride();
+                bandOffsets = sm.getBitOffsets();
+                for (int mask : sm.getBitMasks()) {
+                    keep &= ~mask;
+                }
+            }
+            offset = raster.getDataBuffer().getOffset() + ty * scanline + tx * pixelStride;
+        }
+
+        /**
+         * Reads the samples of row y (band interleaved).
+         *
+         * @param y
+         * @param row
+         */
+        public void getRow(int y, int[] row) {
+            int p = offset + y * scanline;
+            int i = 0;
+            if (bytes != null) {
+                for (int x = 0; x < width; ++x) {
+                    for (int b = 0; b < nb; ++b) {
+                        row[i++] = bytes[p + bandOffsets[b]] & 0xff;
+                    }
+                    p += pixelStride;
+                }
+            } else {
+                for (int x = 0; x < width; ++x) {
+                    int v = ints[p++];
+                    for (int b = 0; b < nb; ++b) {
+                        row[i++] = (v >>> bandOffsets[b]) & 0xff;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes the samples of row y (band interleaved).
+         *
+         * @param y
+         * @param row
+         */
+        public void setRow(int y, int[] row) {
+            int p = offset + y * scanline;
+            int i = 0;
+            if (bytes != null) {
+                for (int x = 0; x < width; ++x) {
+                    for (int b = 0; b < nb; ++b) {
+                        bytes[p + bandOffsets[b]] = (byte) row[i++];
+                    }
+                    p += pixelStride;
+                }
+            } else {
+                for (int x = 0; x < width; ++x) {
+                    int v = ints[p] & keep;
+                    for (int b = 0; b < nb; ++b) {
+                        v |= row[i++] << bandOffsets[b];
+                    }
+                    ints[p++] = v;
+                }
+            }
+        }
+    }
+
+}
@@ -45,7 +45,10 @@ public class ImageWorker implements Callable<DocuImage> {
     private ImageJobDescription jobinfo;
 
     /** flag for stopping the thread */
-    private boolean stopNow = false;
+    private volatile boolean stopNow = false;
+
+    /** the DocuImage that is being processed */
+    private volatile DocuImage activeImage = null;
 
     public ImageWorker(DigilibConfiguration dlConfig,
             ImageJobDescription jobinfo) {
@@ -74,6 +77,7 @@ public class ImageWorker implements Callable<DocuImage> {
                 throw new ImageOpException("Unable to get DocuImage instance!");
             }
         }
+        activeImage = docuImage;
 
         // set interpolation quality
         docuImage.setQuality(jobinfo.getScaleQual());
@@ -88,29 +92,23 @@ public class ImageWorker implements Callable<DocuImage> {
         // use subimage loading if possible
         if (docuImage.isSubimageSupported()) {
             logger.debug("Subimage: scale " + scaleXY + " = " + (1 / scaleXY));
-            double subf = 1d;
-            double subsamp = 1d;
+            double subsamp = jobinfo.getSubsampleFactor();
             if (scaleXY < 1) {
-                subf = 1 / scaleXY;
-                // for higher quality reduce subsample factor by minSubsample
-                if (jobinfo.getScaleQual() > 0) {
-                    subsamp = Math.max(Math.floor(subf / dlConfig.getAsFloat("subsample-minimum")), 1d);
-                } else {
-                    subsamp = Math.floor(subf);
-                }
                 // correct scaling factor by subsampling factor
                 scaleXY *= subsamp;
                 logger.debug("Using subsampling: " + subsamp + " rest " + scaleXY);
             }
-            // load region with subsampling
-            docuImage.loadSubimage(jobinfo.getInput(), loadRect, (int) subsamp);
-            logger.debug("SUBSAMP: " + subsamp + ": " + jobinfo.getInput().getSize() + " -> " + docuImage.getSize());
-            if (stopNow) {
-                logger.debug("ImageWorker stopping (after loading and cropping)");
-                return null;
+            // load region with subsampling and scale
+            try {
+                docuImage.loadSubimageScaled(jobinfo.getInput(), loadRect, (int) subsamp, scaleXY);
+            } catch (FileOpException e) {
+                if (stopNow) {
+                    logger.debug("ImageWorker stopping (while loading)");
+                    return null;
+                }
+                throw e;
             }
-            // and scale
-            docuImage.scale(scaleXY, scaleXY);
+            logger.debug("SUBSAMP: " + subsamp + ": " + jobinfo.getInput().getSize() + " -> " + docuImage.getSize());
         } else {
             // else load and crop the whole file
             docuImage.loadImage(jobinfo.getInput());
@@ -170,6 +168,7 @@ public class ImageWorker implements Callable<DocuImage> {
         // color modification
         float[] paramRGBM = jobinfo.getRGBM();
         float[] paramRGBA = jobinfo.getRGBA();
+        float[] rgbMult = null;
         if ((paramRGBM != null) || (paramRGBA != null)) {
             // make sure we actually have two arrays
             if (paramRGBM == null) {
@@ -179,33 +178,20 @@ public class ImageWorker implements Callable<DocuImage> {
                 paramRGBA = new float[3];
             }
             // calculate "contrast" values (c=2^x)
-            float[] mult = new float[3];
+            rgbMult = new float[3];
             for (int i = 0; i < 3; i++) {
-                mult[i] = (float) Math.pow(2, (float) paramRGBM[i]);
+                rgbMult[i] = (float) Math.pow(2, (float) paramRGBM[i]);
             }
-            docuImage.enhanceRGB(mult, paramRGBA);
-        }
-
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after enhanceRGB)");
-            return null;
         }
         // contrast and brightness enhancement
         float paramCONT = jobinfo.getAsFloat("cont");
         float paramBRGT = jobinfo.getAsFloat("brgt");
-        if ((paramCONT != 0f) || (paramBRGT != 0f)) {
-            float mult = (float) Math.pow(2, paramCONT);
-            docuImage.enhance(mult, paramBRGT);
-        }
-
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after enhance)");
-            return null;
-        }
+        float mult = (float) Math.pow(2, paramCONT);
         // color operation
         DocuImage.ColorOp colop = jobinfo.getColOp();
-        if (colop != null) {
-            docuImage.colorOp(colop);
+        if ((rgbMult != null) || (paramCONT != 0f) || (paramBRGT != 0f) || (colop != null)) {
+            // all color changes in one go
+            docuImage.enhanceAndColorOp(rgbMult, paramRGBA, mult, paramBRGT, colop);
         }
 
         logger.debug("rendered in " + (System.currentTimeMillis() - startTime)
@@ -216,9 +202,15 @@ public class ImageWorker implements Callable<DocuImage> {
 
     /**
      * Set the stopNow flag. Thread stops at the next occasion.
+     * 
+     * Aborts loading the image if it is in progress.
      */
     public void stopNow() {
         this.stopNow = true;
+        DocuImage di = activeImage;
+        if (di != null) {
+            di.abort();
+        }
     }
     
 }
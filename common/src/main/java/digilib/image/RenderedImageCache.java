@@ -0,0 +1,526 @@
+package digilib.image;
+
+/*
+ * #%L
+ * RenderedImageCache -- cache for encoded images.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.io.DocuDirectory;
+import digilib.io.FileOps;
+
+/**
+ * Two-tier (heap and disk) cache for encoded images.
+ *
+ * Entries are keyed by the render key of an ImageJobDescription and store the
+ * encoded image data together with the modification time of the image
+ * directory. An entry with a different modification time is invalid. Both
+ * tiers are bounded in size and evict the least recently used entries.
+ */
+public class RenderedImageCache {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(RenderedImageCache.class);
+
+    /** file name suffix of disk cache files */
+    protected static final String FILE_SUFFIX = ".dlc";
+
+    /** magic number for disk cache files */
+    protected static final int FILE_MAGIC = 0x444c4331;
+
+    /**
+     * Cache entry: encoded image data.
+     */
+    public static class Entry {
+        protected byte[] data;
+        protected String mimeType;
+        protected long mtime;
+
+        public Entry(byte[] data, String mimeType, long mtime) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.mtime = mtime;
+        }
+
+        /**
+         * @return the encoded image data
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the mime-type of the data
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return the directory modification time
+         */
+        public long getMTime() {
+            return mtime;
+        }
+    }
+
+    /** heap cache (in access order) */
+    protected LinkedHashMap<String, Entry> heapMap = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    /** current size of the heap cache in bytes */
+    protected long heapSize = 0;
+
+    /** maximum size of the heap cache in bytes */
+    protected long maxHeapSize;
+
+    /** disk cache directory */
+    protected File diskDir;
+
+    /** index of disk cache files with sizes (in access order) */
+    protected LinkedHashMap<String, Long> diskMap = new LinkedHashMap<String, Long>(64, 0.75f, true);
+
+    /** current size of the disk cache in bytes */
+    protected long diskSize = 0;
+
+    /** maximum size of the disk cache in bytes */
+    protected long maxDiskSize;
+
+    /** number of cache hits */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of cache hits from the disk */
+    protected AtomicInteger diskHits = new AtomicInteger(0);
+
+    /** number of cache misses */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /** number of invalidated entries */
+    protected AtomicInteger invalidations = new AtomicInteger(0);
+
+    /**
+     * Create a RenderedImageCache.
+     *
+     * @param maxHeapSize
+     *            maximum size of the heap cache in bytes (0 means no heap cache)
+     * @param diskDir
+     *            disk cache directory (null means no disk cache)
+     * @param maxDiskSize
+     *            maximum size of the disk cache in bytes
+     */
+    public RenderedImageCache(long maxHeapSize, File diskDir, long maxDiskSize) {
+        this.maxHeapSize = maxHeapSize;
+        this.maxDiskSize = maxDiskSize;
+        if (diskDir != null && maxDiskSize > 0) {
+            if (!diskDir.exists()) {
+                diskDir.mkdirs();
+            }
+            if (diskDir.isDirectory() && diskDir.canWrite()) {
+                this.diskDir = diskDir;
+                readDiskIndex();
+            } else {
+                logger.error("Unable to use render cache directory " + diskDir);
+            }
+        }
+    }
+
+    /**
+     * Fills the disk index with the files in the cache directory (oldest
+     * first).
+     */
+    protected void readDiskIndex() {
+        File[] files = diskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+            }
+        });
+        synchronized (diskMap) {
+            for (File f : files) {
+                String fn = f.getName();
+                if (fn.endsWith(FILE_SUFFIX)) {
+                    long fs = f.length();
+                    diskMap.put(fn, fs);
+                    diskSize += fs;
+                } else if (fn.endsWith(".tmp")) {
+                    // remove incomplete files
+                    f.delete();
+                }
+            }
+            trimDisk();
+        }
+        logger.info("Render cache directory " + diskDir + " contains " + diskMap.size() + " files (" + diskSize
+                + " bytes)");
+    }
+
+    /**
+     * Returns the cache entry for the image job if it exists and is still
+     * valid. Returns null otherwise.
+     * 
+     * @param jobTicket
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public Entry get(ImageJobDescription jobTicket) throws IOException, ImageOpException {
+        return get(jobTicket.getRenderKey(), getMTime(jobTicket));
+    }
+
+    /**
+     * Stores the encoded image data for the image job in the cache.
+     * 
+     * @param jobTicket
+     * @param mimeType
+     * @param data
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public void put(ImageJobDescription jobTicket, String mimeType, byte[] data) throws IOException,
+            ImageOpException {
+        put(jobTicket.getRenderKey(), getMTime(jobTicket), mimeType, data);
+    }
+
+    /**
+     * Returns the modification time of the directory of the image job.
+     * 
+     * @param jobTicket
+     * @return
+     * @throws IOException
+     */
+    protected static long getMTime(ImageJobDescription jobTicket) throws IOException {
+        DocuDirectory dd = jobTicket.getFileDirectory();
+        return dd.getDirMTime();
+    }
+
+    /**
+     * Returns the cache entry for the key if it exists and its modification
+     * time matches mtime. Returns null otherwise.
+     *
+     * @param key
+     * @param mtime
+     * @return
+     */
+    public Entry get(String key, long mtime) {
+        Entry entry = null;
+        if (maxHeapSize > 0) {
+            synchronized (heapMap) {
+                entry = heapMap.get(key);
+                if (entry != null && entry.mtime != mtime) {
+                    // stale entry
+                    heapMap.remove(key);
+                    heapSize -= entry.data.length;
+                    invalidations.incrementAndGet();
+                    entry = null;
+                }
+            }
+        }
+        if (entry == null && diskDir != null) {
+            entry = readDiskEntry(key, mtime);
+            if (entry != null) {
+                diskHits.incrementAndGet();
+                putHeap(key, entry);
+            }
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the encoded image data in the cache.
+     *
+     * @param key
+     * @param mtime
+     * @param mimeType
+     * @param data
+     */
+    public void put(String key, long mtime, String mimeType, byte[] data) {
+        Entry entry = new Entry(data, mimeType, mtime);
+        putHeap(key, entry);
+        if (diskDir != null) {
+            writeDiskEntry(key, entry);
+        }
+    }
+
+    /**
+     * Removes all entries from the heap cache.
+     */
+    public void clear() {
+        synchronized (heapMap) {
+            heapMap.clear();
+            heapSize = 0;
+        }
+    }
+
+    /**
+     * Stores the entry in the heap cache.
+     *
+     * @param key
+     * @param entry
+     */
+    protected void putHeap(String key, Entry entry) {
+        long len = entry.data.length;
+        // don't let single entries take over the cache
+        if (len > maxHeapSize / 4) {
+            return;
+        }
+        synchronized (heapMap) {
+            Entry old = heapMap.put(key, entry);
+            if (old != null) {
+                heapSize -= old.data.length;
+            }
+            heapSize += len;
+            // remove least recently used entries
+            Iterator<Map.Entry<String, Entry>> i = heapMap.entrySet().iterator();
+            while (heapSize > maxHeapSize && i.hasNext()) {
+                Entry e = i.next().getValue();
+                heapSize -= e.data.length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads the entry for the key from the disk cache.
+     *
+     * @param key
+     * @param mtime
+     * @return
+     */
+    protected Entry readDiskEntry(String key, long mtime) {
+        String fn = FileOps.getHash(key) + FILE_SUFFIX;
+        synchronized (diskMap) {
+            if (diskMap.get(fn) == null) {
+                return null;
+            }
+        }
+        File f = new File(diskDir, fn);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Invalid cache file");
+            }
+            String fkey = in.readUTF();
+            long fmtime = in.readLong();
+            String mt = in.readUTF();
+            int len = in.readInt();
+            if (!fkey.equals(key) || fmtime != mtime) {
+                // different or stale entry
+                in.close();
+                in = null;
+                removeDiskEntry(fn);
+                invalidations.incrementAndGet();
+                return null;
+            }
+            byte[] data = new byte[len];
+            in.readFully(data);
+            return new Entry(data, mt, fmtime);
+        } catch (IOException e) {
+            logger.warn("Unable to read render cache file " + f + ": " + e.getMessage());
+            if (in != null) {
+                try {
+                    in.close();
+                    in = null;
+                } catch (IOException e1) {
+                    // nothing to do
+                }
+            }
+            removeDiskEntry(fn);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the entry to the disk cache.
+     *
+     * @param key
+     * @param entry
+     */
+    protected void writeDiskEntry(String key, Entry entry) {
+        String fn = FileOps.getHash(key) + FILE_SUFFIX;
+        File tf = new File(diskDir, fn + "." + Thread.currentThread().getId() + ".tmp");
+        File f = new File(diskDir, fn);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tf)));
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(key);
+            out.writeLong(entry.mtime);
+            out.writeUTF(entry.mimeType);
+            out.writeInt(entry.data.length);
+            out.write(entry.data);
+            out.close();
+            out = null;
+            synchronized (diskMap) {
+                if (f.exists()) {
+                    f.delete();
+                }
+                if (!tf.renameTo(f)) {
+                    throw new IOException("Unable to rename " + tf);
+                }
+                Long old = diskMap.put(fn, f.length());
+                if (old != null) {
+                    diskSize -= old;
+                }
+                diskSize += f.length();
+                trimDisk();
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write render cache file " + f + ": " + e.getMessage());
+            tf.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                tf.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes a file from the disk cache.
+     *
+     * @param fn
+     */
+    protected void removeDiskEntry(String fn) {
+        synchronized (diskMap) {
+            Long fs = diskMap.remove(fn);
+            if (fs != null) {
+                diskSize -= fs;
+            }
+            new File(diskDir, fn).delete();
+        }
+    }
+
+    /**
+     * Removes the least recently used files until the disk cache is below its
+     * maximum size. Must be called with the lock on diskMap.
+     */
+    protected void trimDisk() {
+        Iterator<Map.Entry<String, Long>> i = diskMap.entrySet().iterator();
+        while (diskSize > maxDiskSize && i.hasNext()) {
+            Map.Entry<String, Long> e = i.next();
+            diskSize -= e.getValue();
+            new File(diskDir, e.getKey()).delete();
+            i.remove();
+        }
+    }
+
+    /**
+     * @return number of cache hits
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of cache hits from the disk
+     */
+    public int getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * @return number of cache misses
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of invalidated (stale) entries
+     */
+    public int getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return number of entries in the heap cache
+     */
+    public int getHeapEntries() {
+        synchronized (heapMap) {
+            return heapMap.size();
+        }
+    }
+
+    /**
+     * @return size of the heap cache in bytes
+     */
+    public long getHeapSize() {
+        synchronized (heapMap) {
+            return heapSize;
+        }
+    }
+
+    /**
+     * @return number of files in the disk cache
+     */
+    public int getDiskEntries() {
+        synchronized (diskMap) {
+            return diskMap.size();
+        }
+    }
+
+    /**
+     * @return size of the disk cache in bytes
+     */
+    public long getDiskSize() {
+        synchronized (diskMap) {
+            return diskSize;
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+package digilib.image;
+
+/*
+ * #%L
+ * TiledImageOps -- image operations on strips of an image in parallel.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.RasterOp;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs image operations on horizontal strips of large images in parallel on a
+ * ForkJoinPool.
+ *
+ * Each strip of the destination image is computed by its own task, so a
+ * single large image is rendered by several cores. Tiling is off until
+ * setParallelism() is called with a positive number of threads. Only images
+ * with at least minPixels pixels are tiled.
+ */
+public class TiledImageOps {
+
+    protected static Logger logger = Logger.getLogger(TiledImageOps.class);
+
+    /** minimum height of a strip */
+    public static final int MIN_STRIP_HEIGHT = 64;
+
+    /** number of strips per thread */
+    public static final int STRIPS_PER_THREAD = 2;
+
+    /** pool for the strip tasks (null means no tiling) */
+    protected static volatile ForkJoinPool pool = null;
+
+    /** minimum number of pixels of a tiled image */
+    protected static volatile long minPixels = 4L * 1024L * 1024L;
+
+    /**
+     * Sets the number of threads for tiled operations (0 means no tiling).
+     *
+     * Shuts down the previous pool.
+     *
+     * @param threads
+     */
+    public static synchronized void setParallelism(int threads) {
+        ForkJoinPool oldPool = pool;
+        if (threads > 0) {
+            pool = new ForkJoinPool(threads);
+            logger.info("Tiled image operations with " + threads + " threads for images from " + minPixels
+                    + " pixels");
+        } else {
+            pool = null;
+        }
+        if (oldPool != null) {
+            oldPool.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of threads for tiled operations (0 means no tiling)
+     */
+    public static int getParallelism() {
+        ForkJoinPool p = pool;
+        return (p != null) ? p.getParallelism() : 0;
+    }
+
+    /**
+     * @return the minimum number of pixels of a tiled image
+     */
+    public static long getMinPixels() {
+        return minPixels;
+    }
+
+    /**
+     * Sets the minimum number of pixels of a tiled image.
+     *
+     * @param minPixels
+     */
+    public static void setMinPixels(long minPixels) {
+        TiledImageOps.minPixels = minPixels;
+    }
+
+    /**
+     * Returns if an image of the given size should be processed in strips.
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    public static boolean isTiled(int width, int height) {
+        return pool != null && (long) width * (long) height >= minPixels && height >= 2 * MIN_STRIP_HEIGHT;
+    }
+
+    /**
+     * Returns if the image should be processed in strips.
+     *
+     * @param img
+     * @return
+     */
+    public static boolean isTiled(BufferedImage img) {
+        return isTiled(img.getWidth(), img.getHeight());
+    }
+
+    /**
+     * Returns the strips (y offset and height) for an image of the given
+     * height.
+     *
+     * @param height
+     * @return
+     */
+    public static List<int[]> getStrips(int height) {
+        ForkJoinPool p = pool;
+        int n = (p != null) ? p.getParallelism() * STRIPS_PER_THREAD : 1;
+        n = Math.max(Math.min(n, height / MIN_STRIP_HEIGHT), 1);
+        List<int[]> strips = new ArrayList<int[]>(n);
+        for (int i = 0; i < n; ++i) {
+            int y0 = (int) ((long) height * i / n);
+            int y1 = (int) ((long) height * (i + 1) / n);
+            strips.add(new int[] { y0, y1 - y0 });
+        }
+        return strips;
+    }
+
+    /**
+     * Runs the tasks on the pool and waits until all are finished.
+     *
+     * Exceptions of the tasks are thrown as ImageOpException.
+     *
+     * @param tasks
+     * @throws ImageOpException
+     */
+    public static void invokeAll(List<Callable<Object>> tasks) throws ImageOpException {
+        ForkJoinPool p = pool;
+        try {
+            if (p == null || tasks.size() == 1) {
+                // run in this thread
+                for (Callable<Object> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            List<Future<Object>> results = p.invokeAll(tasks);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ImageOpException) {
+                throw (ImageOpException) cause;
+            }
+            throw new ImageOpException("Error processing image strip!", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImageOpException("Interrupted processing image strips!", e);
+        } catch (ImageOpException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ImageOpException("Error processing image strip!", e);
+        }
+    }
+
+    /**
+     * Returns the size of the destination image of an AffineTransformOp
+     * with the transform for a source image of the given size (like
+     * AffineTransformOp.createCompatibleDestImage()).
+     *
+     * @param trafo
+     * @param width
+     * @param height
+     * @return
+     */
+    public static Rectangle getTransformedSize(AffineTransform trafo, int width, int height) {
+        float[] pts = { 0, 0, width, 0, width, height, 0, height };
+        trafo.transform(pts, 0, pts, 0, 4);
+        float minX = pts[0];
+        float minY = pts[1];
+        float maxX = pts[0];
+        float maxY = pts[1];
+        for (int i = 2; i < 8; i += 2) {
+            minX = Math.min(minX, pts[i]);
+            maxX = Math.max(maxX, pts[i]);
+            minY = Math.min(minY, pts[i + 1]);
+            maxY = Math.max(maxY, pts[i + 1]);
+        }
+        Rectangle r = new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY).getBounds();
+        return new Rectangle(0, 0, r.x + r.width, r.y + r.height);
+    }
+
+    /**
+     * Returns a new image with the color model and the sample layout of the
+     * template image.
+     *
+     * @param template
+     * @param width
+     * @param height
+     * @return
+     */
+    public static BufferedImage createCompatibleImage(BufferedImage template, int width, int height) {
+        ColorModel cm = template.getColorModel();
+        WritableRaster raster = template.getRaster().createCompatibleWritableRaster(width, height);
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns the image transformed by trafo (like
+     * AffineTransformOp.filter(src, null)).
+     *
+     * Each strip of the destination image is computed by its own task.
+     *
+     * @param trafo
+     * @param hints
+     * @param src
+     * @return
+     * @throws ImageOpException
+     */
+    public static BufferedImage transform(final AffineTransform trafo, final RenderingHints hints,
+            final BufferedImage src) throws ImageOpException {
+        AffineTransformOp op = new AffineTransformOp(trafo, hints);
+        final BufferedImage dest = op.createCompatibleDestImage(src, null);
+        List<int[]> strips = getStrips(dest.getHeight());
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(strips.size());
+        for (final int[] strip : strips) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    // move the strip to the top of its destination
+                    AffineTransform t = AffineTransform.getTranslateInstance(0, -strip[0]);
+                    t.concatenate(trafo);
+                    AffineTransformOp op = new AffineTransformOp(t, hints);
+                    op.filter(src, dest.getSubimage(0, strip[0], dest.getWidth(), strip[1]));
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+        return dest;
+    }
+
+    /**
+     * Filters the image with the pixel-wise operation into dest (like
+     * op.filter(src, dest)).
+     *
+     * If dest is null a compatible image is created. src and dest can be the
+     * same image. Each strip is filtered by its own task.
+     *
+     * @param op
+     * @param src
+     * @param dest
+     * @return
+     * @throws ImageOpException
+     */
+    public static BufferedImage filter(final BufferedImageOp op, final BufferedImage src, BufferedImage dest)
+            throws ImageOpException {
+        if (dest == null) {
+            dest = op.createCompatibleDestImage(src, null);
+        }
+        final BufferedImage dst = dest;
+        List<int[]> strips = getStrips(src.getHeight());
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(strips.size());
+        for (final int[] strip : strips) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    int w = src.getWidth();
+                    BufferedImage s = src.getSubimage(0, strip[0], w, strip[1]);
+                    BufferedImage d = (dst == src) ? s : dst.getSubimage(0, strip[0], w, strip[1]);
+                    op.filter(s, d);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+        return dest;
+    }
+
+    /**
+     * Filters the raster with the pixel-wise operation into dest (like
+     * op.filter(src, dest)).
+     *
+     * Each strip is filtered by its own task.
+     *
+     * @param op
+     * @param src
+     * @param dest
+     * @throws ImageOpException
+     */
+    public static void filter(final RasterOp op, final WritableRaster src, final WritableRaster dest)
+            throws ImageOpException {
+        List<int[]> strips = getStrips(src.getHeight());
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(strips.size());
+        for (final int[] strip : strips) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    int w = src.getWidth();
+                    WritableRaster s = src.createWritableChild(src.getMinX(), src.getMinY() + strip[0], w, strip[1],
+                            0, 0, null);
+                    WritableRaster d = dest.createWritableChild(dest.getMinX(), dest.getMinY() + strip[0], w,
+                            strip[1], 0, 0, null);
+                    op.filter(s, d);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+}
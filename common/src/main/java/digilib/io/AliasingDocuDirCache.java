@@ -82,6 +82,8 @@ public class AliasingDocuDirCache extends DocuDirCache {
 				putName(FileOps.normalName(linkdir.getKey()), destDir);
 				// add the real dir
 				putDir(destDir);
+				// aliased dirs are never evicted
+				pin(destDir.getDirName());
 			}
 		}
 	}
@@ -97,6 +99,8 @@ public class AliasingDocuDirCache extends DocuDirCache {
             logger.warn("Duplicate key in AliasingDocuDirCache.put -- ignored!");
         } else {
             map.put(name, newdir);
+            // alias names are never evicted
+            pin(name);
         }
     }
 
@@ -27,7 +27,14 @@ package digilib.io;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
@@ -42,10 +49,23 @@ import digilib.meta.MetaFactory;
  */
 public class BaseDirDocuDirectory extends DocuDirectory {
 
+    /** executor for reading the parallel dirs */
+    protected static final ExecutorService scaledDirReader = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "digilib.scaleddirreader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     /** array of parallel dirs for scaled images */
     protected Directory[] dirs = null;
     /** list of base directories */
     protected String[] baseDirNames = null;
+    /** minimum number of image files for a CompactSnapshot (0 means never) */
+    protected int compactThreshold = 0;
+    /** read file sizes and modification times with the directory */
+    protected boolean prefetchAttributes = false;
 
     /**
      * Configure object with digilib directory path and a parent DocuDirCache.
@@ -66,10 +86,11 @@ public class BaseDirDocuDirectory extends DocuDirectory {
         this.dirName = path;
         this.fileClass = fileClass;
         this.baseDirNames = (String[]) dlConfig.getValue("basedir-list");
+        this.compactThreshold = dlConfig.getAsInt("dircache-compact-threshold");
+        this.prefetchAttributes = dlConfig.getAsBoolean("dircache-prefetch-attributes");
         String baseDirName = baseDirNames[0];
         // clear directory list
-        files = new ArrayList<DocuDirent>();
-        dirMTime = 0;
+        snapshot = EMPTY_SNAPSHOT;
         // the first directory has to exist
         dir = new File(baseDirName, path);
         isValid = dir.isDirectory();
@@ -83,22 +104,35 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     		return false;
     	}
     	// re-check modification time because the thread may have slept
-    	if (dir.lastModified() <= dirMTime) {
+    	long mtime = getCurrentMTime();
+    	if (mtime <= snapshot.mtime) {
     		return true;
     	}
+    	return readFiles(mtime);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see digilib.io.DocuDirectory#rereadDir()
+     */
+    @Override
+    public synchronized boolean rereadDir() {
+        if (!isValid) {
+            return false;
+        }
+        return readFiles(getCurrentMTime());
+    }
+
+    /**
+     * Reads the files of the directory and the parallel directories.
+     * 
+     * @param mtime
+     *            modification time for the new list
+     * @return
+     */
+    protected boolean readFiles(long mtime) {
     	// read all filenames
     	logger.debug("reading directory "+this+" = "+dir.getPath());
-    	File[] allFiles = null;
-    	/*
-    	 * using ReadableFileFilter is safer (we won't get directories with file
-    	 * extensions) but slower.
-    	 */
-    	// allFiles = dir.listFiles(new FileOps.ReadableFileFilter());
-    	allFiles = dir.listFiles();
-    	if (allFiles == null) {
-    		// not a directory
-    		return false;
-    	}
     	// init parallel directories
     	if (dirs == null) {
     		// number of base dirs
@@ -113,41 +147,295 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     			File d = new File(baseDirNames[j], dirName);
     			if (d.isDirectory()) {
     				dirs[j] = new Directory(d);
-    				logger.debug("  reading scaled directory " + d.getPath());
-    				dirs[j].readDir();
     			}
     		}
     	}
-    
-    	File[] fileList = FileOps.listFiles(allFiles, FileOps.filterForClass(fileClass));
+    	// read the parallel directories in the background
+    	List<Future<?>> scaledReads = null;
+    	if (fileClass == FileClass.IMAGE) {
+    	    scaledReads = readScaledDirs();
+    	}
+    	// read the sorted names (and attributes) of the files of our class
+    	DirectoryListing listing = DirectoryListing.read(dir, fileClass, prefetchAttributes);
+    	// wait for the parallel directories
+    	waitForScaledDirs(scaledReads);
+    	if (listing == null) {
+    		// not a directory
+    		clearScaledDirs();
+    		return false;
+    	}
+    	String[] names = listing.getNames();
     	// number of files in the directory
-    	int numFiles = fileList.length;
-    	if (numFiles > 0) {
-    		// create new list
-    		ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(numFiles);
-    		files = dl;
-    		for (File f : fileList) {
-    			DocuDirent df = FileOps.fileForClass(fileClass, f, dirs);
-    			df.setParent(this);
-    			// add the file to our list
-    			dl.add(df);
-    		}
-    		/*
-    		 * we sort the ArrayList (the list of files) for binarySearch to work 
-    		 * (DocuDirent's natural sort order is by filename)
-    		 */
-    		Collections.sort(dl);
+    	int numFiles = names.length;
+    	// names and attributes of the files in all directories [dir][file]
+    	String[][] scaledNames = new String[dirs.length][];
+    	long[][] lengths = null;
+    	long[][] mtimes = null;
+    	if (listing.getLengths() != null) {
+    	    lengths = new long[dirs.length][];
+    	    mtimes = new long[dirs.length][];
+    	    lengths[0] = listing.getLengths();
+    	    mtimes[0] = listing.getMTimes();
+    	}
+    	if (fileClass == FileClass.IMAGE) {
+    	    // find the matching files in the parallel directories
+    	    for (int j = 1; j < dirs.length; ++j) {
+    	        Directory d = dirs[j];
+    	        if (d == null || d.getFilenames() == null) {
+    	            continue;
+    	        }
+    	        String[] dirFiles = d.getFilenames();
+    	        int[] matches = ImageFileSet.matchScaledFiles(names, dirFiles);
+    	        String[] sn = new String[numFiles];
+    	        long[] dirLengths = d.getFileLengths();
+    	        long[] dirMTimes = d.getFileMTimes();
+    	        long[] ln = null;
+    	        long[] mt = null;
+    	        if (lengths != null && dirLengths != null) {
+    	            ln = new long[numFiles];
+    	            mt = new long[numFiles];
+    	            lengths[j] = ln;
+    	            mtimes[j] = mt;
+    	        }
+    	        for (int i = 0; i < numFiles; ++i) {
+    	            int k = matches[i];
+    	            if (k >= 0) {
+    	                sn[i] = dirFiles[k];
+    	            }
+    	            if (ln != null) {
+    	                ln[i] = (k >= 0) ? dirLengths[k] : -1;
+    	                mt[i] = (k >= 0) ? dirMTimes[k] : -1;
+    	            }
+    	        }
+    	        scaledNames[j] = sn;
+    	    }
     	}
     	// clear the scaled directories
-    	for (Directory d: dirs) {
-    		if (d != null) {
-    			d.clearFilenames();
-    		}
+    	clearScaledDirs();
+    	if (fileClass == FileClass.IMAGE && compactThreshold > 0 && numFiles >= compactThreshold) {
+    	    // keep only names for big directories
+    	    for (String[] sn : scaledNames) {
+    	        if (sn != null) {
+    	            for (int i = 0; i < numFiles; ++i) {
+    	                sn[i] = CompactSnapshot.encodeScaledName(names[i], sn[i]);
+    	            }
+    	        }
+    	    }
+    	    snapshot = new CompactSnapshot(names, mtime, this, dirs, scaledNames, lengths, mtimes);
+    	    // read metadata as well
+    	    readMeta();
+    	    return isValid;
+    	}
+    	// create new list
+    	ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(numFiles);
+    	for (int i = 0; i < numFiles; ++i) {
+    	    DocuDirent df;
+    	    File f = new File(dir, names[i]);
+    	    if (fileClass == FileClass.IMAGE) {
+    	        String[] sn = new String[dirs.length];
+    	        long[] ln = (lengths != null) ? new long[dirs.length] : null;
+    	        long[] mt = (lengths != null) ? new long[dirs.length] : null;
+    	        for (int j = 0; j < dirs.length; ++j) {
+    	            if (j > 0 && scaledNames[j] != null) {
+    	                sn[j] = scaledNames[j][i];
+    	            }
+    	            if (ln != null) {
+    	                ln[j] = (lengths[j] != null) ? lengths[j][i] : -1;
+    	                mt[j] = (mtimes[j] != null) ? mtimes[j][i] : -1;
+    	            }
+    	        }
+    	        df = new ImageFileSet(f, dirs, sn, ln, mt, null, -1);
+    	    } else {
+    	        df = FileOps.fileForClass(fileClass, f, dirs);
+    	    }
+    	    df.setParent(this);
+    	    // add the file to our list
+    	    dl.add(df);
     	}
-    	dirMTime = dir.lastModified();
+    	/*
+    	 * the list is sorted by name for binarySearch to work 
+    	 * (DocuDirent's natural sort order is by filename)
+    	 */
+    	// publish the new list
+    	setSnapshot(dl, mtime);
     	// read metadata as well
     	readMeta();
     	return isValid;
     }
 
+    /**
+     * Sets the list of files from a DirectoryManifest.
+     * 
+     * The files, their matching files in the parallel directories and the
+     * image sizes and types are taken from the manifest without reading the
+     * directories.
+     * 
+     * @param manifest
+     * @param mtime
+     *            modification time for the new list
+     */
+    public synchronized void setManifest(DirectoryManifest manifest, long mtime) {
+        List<DirectoryManifest.Entry> entries = manifest.getEntries();
+        int nb = baseDirNames.length;
+        if (dirs == null) {
+            dirs = new Directory[nb];
+            dirs[0] = this;
+            for (int j = 1; j < nb; j++) {
+                dirs[j] = new Directory(new File(baseDirNames[j], dirName));
+            }
+        }
+        // count the files in the first directory
+        int numFiles = 0;
+        for (DirectoryManifest.Entry e : entries) {
+            if (e.dirIdx == 0) {
+                ++numFiles;
+            }
+        }
+        String[] names = new String[numFiles];
+        String[][] scaledNames = new String[nb][];
+        long[][] lengths = new long[nb][];
+        long[][] mtimes = new long[nb][];
+        // first pass: names and files
+        int i = -1;
+        for (DirectoryManifest.Entry e : entries) {
+            if (e.dirIdx < 0 || e.dirIdx >= nb) {
+                continue;
+            }
+            if (e.dirIdx == 0) {
+                names[++i] = e.name;
+            } else if (i < 0 || !e.name.equals(names[i]) || dirs[e.dirIdx] == null) {
+                // no file in the first directory
+                continue;
+            }
+            int j = e.dirIdx;
+            if (lengths[j] == null) {
+                if (j > 0) {
+                    scaledNames[j] = new String[numFiles];
+                }
+                lengths[j] = new long[numFiles];
+                mtimes[j] = new long[numFiles];
+                Arrays.fill(lengths[j], -1);
+                Arrays.fill(mtimes[j], -1);
+            }
+            if (j > 0) {
+                scaledNames[j][i] = CompactSnapshot.encodeScaledName(names[i], e.fileName);
+            }
+            lengths[j][i] = e.length;
+            mtimes[j][i] = e.mtime;
+        }
+        CompactSnapshot cs = new CompactSnapshot(names, mtime, this, dirs, scaledNames, lengths, mtimes);
+        // second pass: image sizes and types
+        i = -1;
+        for (DirectoryManifest.Entry e : entries) {
+            if (e.dirIdx < 0 || e.dirIdx >= nb) {
+                continue;
+            }
+            if (e.dirIdx == 0) {
+                ++i;
+            } else if (i < 0 || !e.name.equals(names[i]) || dirs[e.dirIdx] == null) {
+                continue;
+            }
+            if (e.width > 0 && e.mimeType != null) {
+                cs.storeSize(i, e.dirIdx, e.width, e.height, e.mimeType);
+            }
+        }
+        snapshot = cs;
+        // read metadata as well
+        readMeta();
+    }
+
+    /**
+     * Returns a DirectoryManifest with the current list of image files and
+     * the known image sizes and types.
+     * 
+     * @return the manifest or null if the directory has not been read
+     */
+    public DirectoryManifest getManifest() {
+        Snapshot s = snapshot;
+        if (s.getMTime() == 0 || fileClass != FileClass.IMAGE) {
+            return null;
+        }
+        if (s instanceof CompactSnapshot) {
+            return ((CompactSnapshot) s).getManifest();
+        }
+        List<DirectoryManifest.Entry> entries = new ArrayList<DirectoryManifest.Entry>();
+        for (int i = 0; i < s.size(); ++i) {
+            DocuDirent f = s.get(i);
+            if (!(f instanceof ImageFileSet)) {
+                return null;
+            }
+            if (!((ImageFileSet) f).addManifestEntries(entries)) {
+                return null;
+            }
+        }
+        return new DirectoryManifest(entries);
+    }
+
+    /**
+     * Starts reading the parallel directories in the background.
+     * 
+     * @return
+     */
+    protected List<Future<?>> readScaledDirs() {
+        List<Future<?>> reads = new ArrayList<Future<?>>(dirs.length);
+        for (int j = 1; j < dirs.length; ++j) {
+            final Directory d = dirs[j];
+            if (d != null) {
+                logger.debug("  reading scaled directory " + d.getDir().getPath());
+                try {
+                    reads.add(scaledDirReader.submit(new Runnable() {
+                        public void run() {
+                            d.readDir(prefetchAttributes);
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // executor has been shut down
+                    d.readDir(prefetchAttributes);
+                }
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * Stops the threads for reading the parallel directories.
+     * 
+     * Parallel directories are read in the calling thread afterwards.
+     */
+    public static void shutdownScaledDirReader() {
+        scaledDirReader.shutdown();
+    }
+
+    /**
+     * Waits until the parallel directories are read.
+     * 
+     * @param reads
+     */
+    protected void waitForScaledDirs(List<Future<?>> reads) {
+        if (reads == null) {
+            return;
+        }
+        for (Future<?> r : reads) {
+            try {
+                r.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Error reading scaled directory: " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Clears the file names of the parallel directories.
+     */
+    protected void clearScaledDirs() {
+        for (int j = 1; j < dirs.length; ++j) {
+            if (dirs[j] != null) {
+                dirs[j].clearFilenames();
+            }
+        }
+    }
+
 }
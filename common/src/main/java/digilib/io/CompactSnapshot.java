@@ -0,0 +1,292 @@
+package digilib.io;
+
+/*
+ * #%L
+ * CompactSnapshot -- memory saving list of image files of a directory.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import digilib.meta.MetadataMap;
+import digilib.util.ImageSize;
+
+/**
+ * Snapshot of a directory with many image files.
+ *
+ * Only the sorted file names, the names of the matching files in the parallel
+ * directories and the sizes and types of checked images are kept in arrays.
+ * The ImageFileSets are created when they are requested and are only weakly
+ * referenced. File metadata from the directory is kept only for the files
+ * that have metadata.
+ */
+public class CompactSnapshot extends DocuDirectory.Snapshot {
+
+    /** the directory */
+    protected final DocuDirectory parentDir;
+
+    /** parallel directories (first is parentDir) */
+    protected final Directory[] dirs;
+
+    /**
+     * names of the matching files in the parallel directories [dir][file]
+     * (see encodeScaledName)
+     */
+    protected final String[][] scaledNames;
+
+    /** sizes of the files [dir][file] (or null) */
+    protected final long[][] lengths;
+
+    /** modification times of the files [dir][file] (or null) */
+    protected final long[][] mtimes;
+
+    /** widths and heights of checked images [dir][2*file] */
+    protected final int[][] sizes;
+
+    /** mime-types of checked images [dir][file] */
+    protected final String[][] mimeTypes;
+
+    /** file metadata from the directory by file name */
+    protected final Map<String, MetadataMap> fileMetas = new HashMap<String, MetadataMap>();
+
+    /** weakly referenced ImageFileSets */
+    protected final AtomicReferenceArray<WeakReference<ImageFileSet>> cache;
+
+    /**
+     * Creates a CompactSnapshot.
+     *
+     * @param sortedNames
+     *            sorted file names
+     * @param mtime
+     *            modification time of the directory
+     * @param parentDir
+     *            the directory
+     * @param dirs
+     *            parallel directories (first is parentDir)
+     * @param scaledNames
+     *            names of the matching files in the parallel directories
+     *            [dir][file] from encodeScaledName (entries for missing
+     *            directories are null)
+     * @param lengths
+     *            sizes of the files [dir][file] (or null)
+     * @param mtimes
+     *            modification times of the files [dir][file] (or null)
+     */
+    public CompactSnapshot(String[] sortedNames, long mtime, DocuDirectory parentDir, Directory[] dirs,
+            String[][] scaledNames, long[][] lengths, long[][] mtimes) {
+        super(sortedNames, mtime);
+        this.parentDir = parentDir;
+        this.dirs = dirs;
+        this.scaledNames = scaledNames;
+        this.lengths = lengths;
+        this.mtimes = mtimes;
+        this.sizes = new int[dirs.length][];
+        this.mimeTypes = new String[dirs.length][];
+        this.cache = new AtomicReferenceArray<WeakReference<ImageFileSet>>(sortedNames.length);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see digilib.io.DocuDirectory.Snapshot#get(int)
+     */
+    @Override
+    public DocuDirent get(int index) {
+        if (index < 0 || index >= names.length) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        WeakReference<ImageFileSet> ref = cache.get(index);
+        ImageFileSet fs = (ref != null) ? ref.get() : null;
+        if (fs == null) {
+            String[] sn = new String[dirs.length];
+            sn[0] = names[index];
+            long[] ln = (lengths != null) ? new long[dirs.length] : null;
+            long[] mt = (lengths != null) ? new long[dirs.length] : null;
+            for (int i = 0; i < dirs.length; ++i) {
+                if (i > 0 && scaledNames[i] != null) {
+                    sn[i] = decodeScaledName(names[index], scaledNames[i][index]);
+                }
+                if (ln != null) {
+                    ln[i] = (lengths[i] != null) ? lengths[i][index] : -1;
+                    mt[i] = (mtimes[i] != null) ? mtimes[i][index] : -1;
+                }
+            }
+            fs = new ImageFileSet(new File(parentDir.getDir(), names[index]), dirs, sn, ln, mt, this, index);
+            fs.setParent(parentDir);
+            cache.set(index, new WeakReference<ImageFileSet>(fs));
+        }
+        return fs;
+    }
+
+    /**
+     * Returns the name of a matching file in a parallel directory in compact
+     * form.
+     *
+     * The same name is returned as the same String object, a name that only
+     * differs in the extension as the (interned) extension.
+     *
+     * @param name
+     * @param scaledName
+     *            name from ImageFileSet.findScaledName (or null)
+     * @return
+     */
+    public static String encodeScaledName(String name, String scaledName) {
+        if (scaledName == null || scaledName.equals(name)) {
+            return (scaledName == null) ? null : name;
+        }
+        return scaledName.substring(FileOps.basename(scaledName).length()).intern();
+    }
+
+    /**
+     * Returns the name of a matching file from its compact form.
+     *
+     * @param name
+     * @param encoded
+     * @return
+     */
+    protected static String decodeScaledName(String name, String encoded) {
+        if (encoded == null || encoded.equals(name)) {
+            return encoded;
+        }
+        return FileOps.basename(name) + encoded;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see digilib.io.DocuDirectory.Snapshot#setFileMeta(int, digilib.meta.MetadataMap)
+     */
+    @Override
+    public void setFileMeta(int index, MetadataMap fileMeta) {
+        synchronized (fileMetas) {
+            fileMetas.put(names[index], fileMeta);
+        }
+        WeakReference<ImageFileSet> ref = cache.get(index);
+        ImageFileSet fs = (ref != null) ? ref.get() : null;
+        if (fs != null) {
+            fs.getMeta().setFileMeta(fileMeta);
+        }
+    }
+
+    /**
+     * Returns the file metadata from the directory for the file at the index
+     * (or null).
+     *
+     * @param index
+     * @return
+     */
+    public MetadataMap getFileMeta(int index) {
+        synchronized (fileMetas) {
+            return fileMetas.get(names[index]);
+        }
+    }
+
+    /**
+     * Remembers size and mime-type of the checked image of the file at the
+     * index in the directory dirIdx.
+     *
+     * @param index
+     * @param dirIdx
+     * @param input
+     */
+    public synchronized void storeInput(int index, int dirIdx, ImageInput input) {
+        ImageSize is = input.getSize();
+        String mt = input.getMimetype();
+        if (is == null || mt == null) {
+            return;
+        }
+        storeSize(index, dirIdx, is.getWidth(), is.getHeight(), mt);
+    }
+
+    /**
+     * Remembers size and mime-type of the image of the file at the index in
+     * the directory dirIdx (e.g. from a manifest).
+     * 
+     * @param index
+     * @param dirIdx
+     * @param width
+     * @param height
+     * @param mimeType
+     */
+    public synchronized void storeSize(int index, int dirIdx, int width, int height, String mimeType) {
+        if (sizes[dirIdx] == null) {
+            sizes[dirIdx] = new int[2 * names.length];
+            mimeTypes[dirIdx] = new String[names.length];
+        }
+        sizes[dirIdx][2 * index] = width;
+        sizes[dirIdx][2 * index + 1] = height;
+        mimeTypes[dirIdx][index] = mimeType.intern();
+    }
+
+    /**
+     * Returns a DirectoryManifest with the files and the known image sizes and
+     * types.
+     * 
+     * @return
+     */
+    public synchronized DirectoryManifest getManifest() {
+        List<DirectoryManifest.Entry> entries = new ArrayList<DirectoryManifest.Entry>(names.length);
+        for (int i = 0; i < names.length; ++i) {
+            for (int j = 0; j < dirs.length; ++j) {
+                String fn = names[i];
+                if (j > 0) {
+                    if (dirs[j] == null || scaledNames[j] == null || scaledNames[j][i] == null) {
+                        continue;
+                    }
+                    fn = decodeScaledName(names[i], scaledNames[j][i]);
+                }
+                long length = (lengths != null && lengths[j] != null) ? lengths[j][i] : -1;
+                long mtime = (mtimes != null && mtimes[j] != null) ? mtimes[j][i] : -1;
+                int width = 0;
+                int height = 0;
+                String mt = null;
+                if (sizes[j] != null && mimeTypes[j][i] != null) {
+                    width = sizes[j][2 * i];
+                    height = sizes[j][2 * i + 1];
+                    mt = mimeTypes[j][i];
+                }
+                entries.add(new DirectoryManifest.Entry(names[i], j, fn, length, mtime, width, height, mt));
+            }
+        }
+        return new DirectoryManifest(entries);
+    }
+
+    /**
+     * Sets size and mime-type of the image of the file at the index in the
+     * directory dirIdx if it was checked before.
+     *
+     * @param index
+     * @param dirIdx
+     * @param input
+     */
+    public synchronized void restoreInput(int index, int dirIdx, ImageInput input) {
+        if (sizes[dirIdx] == null || mimeTypes[dirIdx][index] == null) {
+            return;
+        }
+        input.setSize(new ImageSize(sizes[dirIdx][2 * index], sizes[dirIdx][2 * index + 1]));
+        input.setMimetype(mimeTypes[dirIdx][index]);
+    }
+
+}
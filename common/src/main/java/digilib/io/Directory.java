@@ -47,6 +47,10 @@ public class Directory {
 	protected Directory parent = null;
 	/** list of filenames in the directory */
 	protected String[] list = null;
+	/** sizes of the files in the order of list (or null) */
+	protected long[] lengths = null;
+	/** modification times of the files in the order of list (or null) */
+	protected long[] mtimes = null;
 
 	/** Default constructor.
 	 * 
@@ -98,6 +102,27 @@ public class Directory {
 		}
 		return (list != null);
 	}
+
+	/** Reads the names and (optionally) the sizes and modification times of 
+	 * the files in the directory.
+	 * Returns if the operation was successful.
+	 * 
+	 * @param withAttributes
+	 * @return
+	 */
+	public boolean readDir(boolean withAttributes) {
+		if (dir != null) {
+			DirectoryListing dl = DirectoryListing.read(dir, null, withAttributes);
+			if (dl != null) {
+				list = dl.getNames();
+				lengths = dl.getLengths();
+				mtimes = dl.getMTimes();
+				return true;
+			}
+			list = null;
+		}
+		return false;
+	}
 	
 	/**
 	 * @return
@@ -142,7 +167,23 @@ public class Directory {
 		this.list = filenames;
 	}
 	
+	/**
+	 * @return Returns the file sizes in the order of the filenames (or null).
+	 */
+	public long[] getFileLengths() {
+		return lengths;
+	}
+
+	/**
+	 * @return Returns the file modification times in the order of the filenames (or null).
+	 */
+	public long[] getFileMTimes() {
+		return mtimes;
+	}
+
 	public void clearFilenames() {
 		this.list = null;
+		this.lengths = null;
+		this.mtimes = null;
 	}
 }
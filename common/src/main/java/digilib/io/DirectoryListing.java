@@ -0,0 +1,174 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DirectoryListing -- sorted file names and attributes of a directory.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import digilib.io.FileOps.FileClass;
+
+/**
+ * Sorted names and (optionally) sizes and modification times of the files in
+ * a directory.
+ *
+ * The directory is read in one pass with java.nio.file without creating File
+ * objects for the entries.
+ */
+public class DirectoryListing {
+
+    /** sorted file names */
+    protected String[] names;
+
+    /** file sizes (or null) */
+    protected long[] lengths;
+
+    /** file modification times (or null) */
+    protected long[] mtimes;
+
+    /**
+     * Entry for sorting.
+     */
+    protected static class Entry implements Comparable<Entry> {
+        String name;
+        long length;
+        long mtime;
+
+        Entry(String name, long length, long mtime) {
+            this.name = name;
+            this.length = length;
+            this.mtime = mtime;
+        }
+
+        public int compareTo(Entry o) {
+            return name.compareTo(o.name);
+        }
+    }
+
+    /**
+     * Reads the directory.
+     *
+     * Only files of the FileClass fc are listed (all files if fc is null). If
+     * withAttributes is true sizes and modification times are read as well
+     * and subdirectories are skipped. Symbolic links are followed.
+     *
+     * @param dir
+     * @param fc
+     * @param withAttributes
+     * @return the listing or null if the directory can not be read
+     */
+    public static DirectoryListing read(File dir, final FileClass fc, boolean withAttributes) {
+        DirectoryListing dl = new DirectoryListing();
+        try {
+            if (withAttributes) {
+                final List<Entry> entries = new ArrayList<Entry>();
+                final Path dp = dir.toPath();
+                Files.walkFileTree(dp, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory()) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        String fn = file.getFileName().toString();
+                        if (fc == null || FileOps.classForFilename(fn) == fc) {
+                            entries.add(new Entry(fn, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        if (file.equals(dp)) {
+                            // the directory itself
+                            throw e;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                Entry[] ea = entries.toArray(new Entry[entries.size()]);
+                Arrays.sort(ea);
+                int n = ea.length;
+                dl.names = new String[n];
+                dl.lengths = new long[n];
+                dl.mtimes = new long[n];
+                for (int i = 0; i < n; ++i) {
+                    dl.names[i] = ea[i].name;
+                    dl.lengths[i] = ea[i].length;
+                    dl.mtimes[i] = ea[i].mtime;
+                }
+            } else {
+                List<String> nl = new ArrayList<String>();
+                DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath());
+                try {
+                    for (Path p : ds) {
+                        String fn = p.getFileName().toString();
+                        if (fc == null || FileOps.classForFilename(fn) == fc) {
+                            nl.add(fn);
+                        }
+                    }
+                } finally {
+                    ds.close();
+                }
+                dl.names = nl.toArray(new String[nl.size()]);
+                Arrays.sort(dl.names);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return dl;
+    }
+
+    /**
+     * @return the sorted file names
+     */
+    public String[] getNames() {
+        return names;
+    }
+
+    /**
+     * @return the file sizes in the order of the names (or null)
+     */
+    public long[] getLengths() {
+        return lengths;
+    }
+
+    /**
+     * @return the modification times in the order of the names (or null)
+     */
+    public long[] getMTimes() {
+        return mtimes;
+    }
+
+}
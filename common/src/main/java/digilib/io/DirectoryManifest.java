@@ -0,0 +1,236 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DirectoryManifest -- precomputed list of the image files of a directory.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Manifest of the image files of a directory with the matching files in the
+ * parallel (scaled) directories and their sizes and types.
+ *
+ * The manifest is a UTF-8 text file with the header line "#digilib-manifest 1"
+ * and one tab separated line per file:
+ *
+ * <pre>
+ * name  dir-index  file-name  length  mtime  width  height  mime-type
+ * </pre>
+ *
+ * name is the file name in the first base directory and file-name the name of
+ * the matching file in the base directory dir-index. A width of 0 means the
+ * image could not be identified. Lines are sorted by name and dir-index.
+ */
+public class DirectoryManifest {
+
+    /** first line of a manifest */
+    public static final String HEADER = "#digilib-manifest 1";
+
+    /** name of manifest files */
+    public static final String FILE_NAME = "digilib.manifest";
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** entries sorted by name and dir-index */
+    protected List<Entry> entries;
+
+    /**
+     * Manifest entry for one file in one base directory.
+     */
+    public static class Entry implements Comparable<Entry> {
+        public final String name;
+        public final int dirIdx;
+        public final String fileName;
+        public final long length;
+        public final long mtime;
+        public final int width;
+        public final int height;
+        public final String mimeType;
+
+        public Entry(String name, int dirIdx, String fileName, long length, long mtime, int width, int height,
+                String mimeType) {
+            this.name = name;
+            this.dirIdx = dirIdx;
+            this.fileName = fileName;
+            this.length = length;
+            this.mtime = mtime;
+            this.width = width;
+            this.height = height;
+            this.mimeType = mimeType;
+        }
+
+        public int compareTo(Entry o) {
+            int c = name.compareTo(o.name);
+            return (c != 0) ? c : dirIdx - o.dirIdx;
+        }
+
+        /**
+         * @return if the file has the same name, size and modification time
+         */
+        public boolean isSameFile(Entry o) {
+            return o != null && dirIdx == o.dirIdx && fileName.equals(o.fileName) && length == o.length
+                    && mtime == o.mtime;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry o = (Entry) obj;
+            return isSameFile(o) && name.equals(o.name) && width == o.width && height == o.height
+                    && (mimeType == null ? o.mimeType == null : mimeType.equals(o.mimeType));
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + dirIdx;
+        }
+    }
+
+    /**
+     * Creates a manifest with the given entries.
+     *
+     * @param entries
+     */
+    public DirectoryManifest(List<Entry> entries) {
+        this.entries = entries;
+        Collections.sort(this.entries);
+    }
+
+    /**
+     * Returns the manifest file for the directory path.
+     *
+     * The manifest is in the directory in the first base directory if
+     * manifestDir is empty or in the same path under manifestDir.
+     *
+     * @param manifestDir
+     * @param baseDir
+     * @param path
+     * @return
+     */
+    public static File getManifestFile(String manifestDir, String baseDir, String path) {
+        if (manifestDir == null || manifestDir.isEmpty()) {
+            return new File(new File(baseDir, path), FILE_NAME);
+        }
+        return new File(new File(manifestDir, path), FILE_NAME);
+    }
+
+    /**
+     * Reads a manifest file.
+     *
+     * @param file
+     * @return the manifest or null if the file can not be read
+     */
+    public static DirectoryManifest read(File file) {
+        List<Entry> entries = new ArrayList<Entry>();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line = in.readLine();
+                if (!HEADER.equals(line)) {
+                    return null;
+                }
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String[] f = line.split("\t", -1);
+                    if (f.length != 8) {
+                        return null;
+                    }
+                    String mt = f[7].isEmpty() ? null : f[7];
+                    entries.add(new Entry(f[0], Integer.parseInt(f[1]), f[2], Long.parseLong(f[3]),
+                            Long.parseLong(f[4]), Integer.parseInt(f[5]), Integer.parseInt(f[6]), mt));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new DirectoryManifest(entries);
+    }
+
+    /**
+     * Writes the manifest to a file.
+     *
+     * The file is replaced atomically (if the file system supports it).
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        File tmp = File.createTempFile(FILE_NAME, ".tmp", dir);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+            try {
+                out.write(HEADER);
+                out.write('\n');
+                for (Entry e : entries) {
+                    out.write(e.name + "\t" + e.dirIdx + "\t" + e.fileName + "\t" + e.length + "\t" + e.mtime
+                            + "\t" + e.width + "\t" + e.height + "\t" + ((e.mimeType != null) ? e.mimeType : "")
+                            + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return the entries sorted by name and dir-index
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+}
@@ -0,0 +1,260 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DirectoryWatcher -- invalidates cached directories on changes.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Marks DocuDirectories as changed when their directory changes on disk.
+ *
+ * Directories are registered with a WatchService. Directories that can not be
+ * watched (or all directories if there is no WatchService) are checked for
+ * changes by polling their modification time in the background.
+ */
+public class DirectoryWatcher {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DirectoryWatcher.class);
+
+    /** the WatchService (null means polling only) */
+    protected WatchService watchService = null;
+
+    /** watched directories by WatchKey */
+    protected ConcurrentMap<WatchKey, DocuDirectory> watchedDirs = new ConcurrentHashMap<WatchKey, DocuDirectory>();
+
+    /** WatchKeys by watched directory */
+    protected ConcurrentMap<DocuDirectory, WatchKey> watchKeys = new ConcurrentHashMap<DocuDirectory, WatchKey>();
+
+    /** polled directories */
+    protected ConcurrentMap<DocuDirectory, Boolean> polledDirs = new ConcurrentHashMap<DocuDirectory, Boolean>();
+
+    /** thread for watch events */
+    protected Thread watchThread = null;
+
+    /** background poller */
+    protected ScheduledExecutorService poller = null;
+
+    /** number of invalidated directories */
+    protected AtomicInteger invalidations = new AtomicInteger(0);
+
+    /**
+     * Creates a DirectoryWatcher. Uses a WatchService if useWatchService is
+     * true and polls every pollInterval seconds.
+     *
+     * @param useWatchService
+     * @param pollInterval
+     */
+    public DirectoryWatcher(boolean useWatchService, int pollInterval) {
+        if (useWatchService) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                watchThread = new Thread(new Runnable() {
+                    public void run() {
+                        processEvents();
+                    }
+                }, "digilib.dirwatcher");
+                watchThread.setDaemon(true);
+                watchThread.start();
+            } catch (IOException e) {
+                logger.warn("Unable to use WatchService, polling directories instead: " + e.getMessage());
+                watchService = null;
+            }
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "digilib.dirpoller");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        if (pollInterval < 1) {
+            pollInterval = 1;
+        }
+        poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, pollInterval, pollInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts watching the directory.
+     *
+     * @param dd
+     */
+    public void add(DocuDirectory dd) {
+        if (watchKeys.containsKey(dd) || polledDirs.containsKey(dd)) {
+            return;
+        }
+        dd.setWatched(true);
+        if (watchService != null) {
+            try {
+                Path p = dd.getDir().toPath();
+                WatchKey key = p.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirs.put(key, dd);
+                watchKeys.put(dd, key);
+                // check once for changes before the key was registered
+                dd.invalidate();
+                return;
+            } catch (Exception e) {
+                logger.debug("Unable to watch " + dd.getDir() + ", polling instead: " + e.getMessage());
+            }
+        }
+        polledDirs.put(dd, Boolean.TRUE);
+    }
+
+    /**
+     * Stops watching the directory.
+     *
+     * @param dd
+     */
+    public void remove(DocuDirectory dd) {
+        WatchKey key = watchKeys.remove(dd);
+        if (key != null) {
+            watchedDirs.remove(key);
+            key.cancel();
+        }
+        polledDirs.remove(dd);
+        dd.setWatched(false);
+    }
+
+    /**
+     * Processes the events of the WatchService.
+     */
+    protected void processEvents() {
+        WatchService ws = watchService;
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                // we don't need the events themselves
+                key.pollEvents();
+                DocuDirectory dd = watchedDirs.get(key);
+                if (dd != null) {
+                    dd.invalidate();
+                    invalidations.incrementAndGet();
+                    if (!key.reset()) {
+                        // directory is gone
+                        watchedDirs.remove(key);
+                        watchKeys.remove(dd);
+                        dd.setWatched(false);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        } catch (ClosedWatchServiceException e) {
+            // shut down
+        }
+    }
+
+    /**
+     * Checks the modification time of all polled directories.
+     */
+    protected void poll() {
+        try {
+            for (DocuDirectory dd : polledDirs.keySet()) {
+                if (!dd.isChanged() && dd.isRead() && dd.getCurrentMTime() > dd.getDirMTime()) {
+                    dd.invalidate();
+                    invalidations.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error polling directories: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops watching all directories.
+     */
+    public void shutdown() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            watchService = null;
+        }
+        for (DocuDirectory dd : watchKeys.keySet()) {
+            dd.setWatched(false);
+        }
+        for (DocuDirectory dd : polledDirs.keySet()) {
+            dd.setWatched(false);
+        }
+        watchedDirs.clear();
+        watchKeys.clear();
+        polledDirs.clear();
+    }
+
+    /**
+     * @return if a WatchService is used
+     */
+    public boolean isWatching() {
+        return watchService != null;
+    }
+
+    /**
+     * @return number of watched directories
+     */
+    public int getNumWatched() {
+        return watchKeys.size();
+    }
+
+    /**
+     * @return number of polled directories
+     */
+    public int getNumPolled() {
+        return polledDirs.size();
+    }
+
+    /**
+     * @return number of invalidated directories
+     */
+    public int getInvalidations() {
+        return invalidations.get();
+    }
+
+}
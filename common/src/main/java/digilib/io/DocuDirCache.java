@@ -27,8 +27,23 @@ package digilib.io;
  * Created on 03.03.2003
  */
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -59,6 +74,59 @@ public class DocuDirCache {
 	/** number of cache misses */
 	protected AtomicInteger misses = new AtomicInteger(0);
 
+	/** number of evicted directories */
+	protected AtomicInteger evictions = new AtomicInteger(0);
+
+	/** maximum number of directories (0 means no limit) */
+	protected int maxDirs = 0;
+
+	/** maximum number of files (0 means no limit) */
+	protected int maxFiles = 0;
+
+	/** names of directories that are never evicted */
+	protected Set<String> pinnedNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** flag to indicate a running eviction */
+	protected AtomicBoolean evicting = new AtomicBoolean(false);
+
+	/** watcher for changed directories (null means check on every access) */
+	protected DirectoryWatcher watcher = null;
+
+	/** cache of nonexistent paths (null means no cache) */
+	protected Map<String, MissingPath> missingPaths = null;
+
+	/** time to live of entries in the cache of nonexistent paths (ms) */
+	protected long missingTtl = 60000;
+
+	/** number of hits in the cache of nonexistent paths */
+	protected AtomicInteger missingHits = new AtomicInteger(0);
+
+	/** file for the persistent snapshot of the cache (null means none) */
+	protected File snapshotFile = null;
+
+	/** background writer for the snapshot */
+	protected ScheduledExecutorService snapshotWriter = null;
+
+	/** number of directories restored from the snapshot */
+	protected int numRestored = 0;
+
+	/**
+	 * Entry in the cache of nonexistent paths.
+	 * 
+	 * The entry is valid until it expires or the nearest cached ancestor
+	 * directory changes.
+	 */
+	protected static class MissingPath {
+	    /** the parent directory is missing too */
+	    boolean parentMissing;
+	    /** expiration time */
+	    long expires;
+	    /** nearest cached ancestor directory (or null) */
+	    DocuDirectory ancestor;
+	    /** modification time of the ancestor directory */
+	    long ancestorMTime;
+	}
+
 	/**
 	 * Constructor with digilib configuration and file class.
 	 * 
@@ -68,6 +136,27 @@ public class DocuDirCache {
 	public DocuDirCache(FileClass fc,
 			DigilibConfiguration dlConfig) {
 		this.fileClass = fc;
+		if (dlConfig != null) {
+		    maxDirs = dlConfig.getAsInt("dircache-max-dirs");
+		    maxFiles = dlConfig.getAsInt("dircache-max-files");
+		    String inv = dlConfig.getAsString("dircache-invalidation");
+		    if (inv.equals("watch")) {
+		        watcher = new DirectoryWatcher(true, dlConfig.getAsInt("dircache-poll-interval"));
+		    } else if (inv.equals("poll")) {
+		        watcher = new DirectoryWatcher(false, dlConfig.getAsInt("dircache-poll-interval"));
+		    }
+		    final int missingSize = dlConfig.getAsInt("dircache-missing-size");
+		    if (missingSize > 0) {
+		        missingTtl = dlConfig.getAsInt("dircache-missing-ttl") * 1000L;
+		        missingPaths = Collections.synchronizedMap(new LinkedHashMap<String, MissingPath>(16, 0.75f, true) {
+		            private static final long serialVersionUID = 1L;
+
+		            protected boolean removeEldestEntry(Map.Entry<String, MissingPath> eldest) {
+		                return size() > missingSize;
+		            }
+		        });
+		    }
+		}
 	}
 
 	/**
@@ -103,10 +192,158 @@ public class DocuDirCache {
 			logger.warn("Duplicate key in DocuDirCache.put -- ignoring!");
 			return olddir;
 		}
-		numFiles.addAndGet(newdir.size());
+		newdir.cachedSize.set(0);
+		if (watcher != null) {
+		    watcher.add(newdir);
+		}
+		countFiles(newdir);
 		return newdir;
 	}
 
+	/**
+	 * Updates the number of files in the cache with the current size of the
+	 * cached directory.
+	 * 
+	 * The size counted for the directory is kept with the directory so that
+	 * directories that are read later or read again are counted correctly.
+	 * 
+	 * @param dd
+	 */
+	protected void countFiles(DocuDirectory dd) {
+	    while (true) {
+	        int counted = dd.cachedSize.get();
+	        if (counted < 0) {
+	            // not in the cache (any more)
+	            return;
+	        }
+	        int size = dd.size();
+	        if (size == counted) {
+	            break;
+	        }
+	        if (dd.cachedSize.compareAndSet(counted, size)) {
+	            numFiles.addAndGet(size - counted);
+	            break;
+	        }
+	    }
+	    if (isFull()) {
+	        evict();
+	    }
+	}
+
+	/**
+	 * Returns if the cache is over its size limits.
+	 * 
+	 * @return
+	 */
+	protected boolean isFull() {
+	    return (maxDirs > 0 && map.size() > maxDirs) || (maxFiles > 0 && numFiles.get() > maxFiles);
+	}
+
+	/**
+	 * Removes the least recently used directories until the cache is below 90%
+	 * of its size limits.
+	 * 
+	 * Pinned directories and directories that are the parent of another
+	 * directory in the cache are not removed.
+	 * 
+	 * Only the oldest candidates that are needed to get below the limits are
+	 * kept in a bounded heap instead of sorting all directories.
+	 */
+	protected void evict() {
+	    if (!evicting.compareAndSet(false, true)) {
+	        // another thread is evicting
+	        return;
+	    }
+	    try {
+	        int targetDirs = (maxDirs > 0) ? maxDirs - maxDirs / 10 : Integer.MAX_VALUE;
+	        int targetFiles = (maxFiles > 0) ? maxFiles - maxFiles / 10 : Integer.MAX_VALUE;
+	        // collect parents of cached directories
+	        Set<Directory> parents = Collections.newSetFromMap(new IdentityHashMap<Directory, Boolean>());
+	        for (DocuDirectory dd : map.values()) {
+	            Directory pd = dd.getParent();
+	            if (pd != null) {
+	                parents.add(pd);
+	            }
+	        }
+	        int needDirs = Math.max(map.size() - targetDirs, 0);
+	        long needFiles = Math.max((long) numFiles.get() - targetFiles, 0);
+	        // keep the oldest candidates in a heap with the newest on top
+	        PriorityQueue<EvictionCandidate> heap = new PriorityQueue<EvictionCandidate>(Math.max(needDirs, 16),
+	                new Comparator<EvictionCandidate>() {
+	                    public int compare(EvictionCandidate a, EvictionCandidate b) {
+	                        return (a.atime > b.atime) ? -1 : ((a.atime < b.atime) ? 1 : 0);
+	                    }
+	                });
+	        long heapFiles = 0;
+	        for (Map.Entry<String, DocuDirectory> entry : map.entrySet()) {
+	            DocuDirectory dd = entry.getValue();
+	            if (pinnedNames.contains(entry.getKey()) || parents.contains(dd)) {
+	                continue;
+	            }
+	            EvictionCandidate c = new EvictionCandidate(entry.getKey(), dd);
+	            heap.add(c);
+	            heapFiles += c.size;
+	            // drop the newest candidates that are not needed
+	            while (!heap.isEmpty() && heap.size() - 1 >= needDirs && heapFiles - heap.peek().size >= needFiles) {
+	                heapFiles -= heap.poll().size;
+	            }
+	        }
+	        // oldest first
+	        List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(heap.size());
+	        while (!heap.isEmpty()) {
+	            candidates.add(heap.poll());
+	        }
+	        Collections.reverse(candidates);
+	        int cnt = 0;
+	        for (EvictionCandidate c : candidates) {
+	            if (map.size() <= targetDirs && numFiles.get() <= targetFiles) {
+	                break;
+	            }
+	            if (map.remove(c.name, c.dir)) {
+	                int counted = c.dir.cachedSize.getAndSet(-1);
+	                if (counted > 0) {
+	                    numFiles.addAndGet(-counted);
+	                }
+	                if (watcher != null) {
+	                    watcher.remove(c.dir);
+	                }
+	                ++cnt;
+	            }
+	        }
+	        evictions.addAndGet(cnt);
+	        logger.debug("DocuDirCache evicted " + cnt + " directories. size=" + map.size() + " files="
+	                + numFiles.get());
+	    } finally {
+	        evicting.set(false);
+	    }
+	}
+
+	/**
+	 * Directory with access time and counted size for eviction.
+	 */
+	protected static class EvictionCandidate {
+	    String name;
+	    DocuDirectory dir;
+	    long atime;
+	    int size;
+
+	    EvictionCandidate(String name, DocuDirectory dir) {
+	        this.name = name;
+	        this.dir = dir;
+	        this.atime = dir.getAccessTime();
+	        this.size = Math.max(dir.cachedSize.get(), 0);
+	    }
+	}
+
+	/**
+	 * Protects the directory with the name from eviction.
+	 * 
+	 * @param name
+	 */
+	public void pin(String name) {
+	    pinnedNames.add(name);
+	}
+
 	/**
 	 * Add a directory to the cache and check its parents.
 	 * Always returns the correct Object from the cache, 
@@ -173,9 +410,14 @@ public class DocuDirCache {
 		DocuDirectory dd;
 		// file number is 1-based, vector index is 0-based
 		int n = in - 1;
+		String fileName = null;
 		// first, assume fn is a directory and look in the cache
 		dd = map.get(fn);
 		if (dd == null) {
+		    if (isMissing(fn, false)) {
+		        // known nonexistent path
+		        return null;
+		    }
 			// cache miss
 			misses.incrementAndGet();
 			/*
@@ -205,26 +447,39 @@ public class DocuDirCache {
 						dd = putDir(dd);
 					} else {
 						// invalid path
+					    putMissing(fn, true, findCachedAncestor(d));
 						return null;
 					}
 				} else {
 					// it was not a real cache miss
 					misses.decrementAndGet();
 				}
-				// get the file's index
-				n = dd.indexOf(FileOps.filename(fn));
+				// look for the file's name
+				fileName = FileOps.filename(fn);
 			}
 		} else {
 			// cache hit
 			hits.incrementAndGet();
 		}
 		dd.refresh();
+		countFiles(dd);
 		if (dd.isValid()) {
+		    DocuDirent df = null;
+		    if (fileName != null) {
+		        // find by name in the same snapshot
+		        df = dd.find(fileName);
+		        if (df == null) {
+		            // logger.debug(fn + " not found in directory");
+		            putMissing(fn, false, dd);
+		        }
+		        return df;
+		    }
 			try {
-				return dd.get(n);
+				df = dd.get(n);
 			} catch (IndexOutOfBoundsException e) {
                 // logger.debug(fn + " not found in directory");
 			}
+			return df;
 		}
 		return null;
 	}
@@ -243,6 +498,10 @@ public class DocuDirCache {
 		// first, assume fn is a directory and look in the cache
 		dd = map.get(fn);
 		if (dd == null) {
+		    if (isMissing(fn, true)) {
+		        // known nonexistent path
+		        return null;
+		    }
 			// cache miss
 			misses.incrementAndGet();
 			// see if it's a directory
@@ -264,6 +523,7 @@ public class DocuDirCache {
 						dd = putDir(dd);
 					} else {
 						// invalid path
+					    putMissing(fn, true, findCachedAncestor(pn));
 						return null;
 					}
 				} else {
@@ -276,12 +536,101 @@ public class DocuDirCache {
 			hits.incrementAndGet();
 		}
 		dd.refresh();
+		countFiles(dd);
 		if (dd.isValid()) {
 			return dd;
 		}
 		return null;
 	}
 
+    /**
+     * Returns if the path is known to be nonexistent.
+     * 
+     * If parentMissing is true the parent directory must be known to be
+     * nonexistent too.
+     * 
+     * @param fn
+     * @param parentMissing
+     * @return
+     */
+    protected boolean isMissing(String fn, boolean parentMissing) {
+        if (missingPaths == null) {
+            return false;
+        }
+        MissingPath mp = missingPaths.get(fn);
+        if (mp == null || (parentMissing && !mp.parentMissing)) {
+            return false;
+        }
+        boolean valid = (System.currentTimeMillis() < mp.expires);
+        if (valid && mp.ancestor != null) {
+            // ancestor must be still cached and unchanged
+            DocuDirectory ad = mp.ancestor;
+            valid = (map.get(ad.getDirName()) == ad && ad.refresh() && ad.getDirMTime() == mp.ancestorMTime);
+        }
+        if (!valid) {
+            missingPaths.remove(fn);
+            return false;
+        }
+        missingHits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remembers the path as nonexistent.
+     * 
+     * @param fn
+     * @param parentMissing
+     *            the parent directory is nonexistent too
+     * @param ancestor
+     *            nearest cached ancestor directory (or null)
+     */
+    protected void putMissing(String fn, boolean parentMissing, DocuDirectory ancestor) {
+        if (missingPaths == null) {
+            return;
+        }
+        MissingPath mp = new MissingPath();
+        mp.parentMissing = parentMissing;
+        mp.expires = System.currentTimeMillis() + missingTtl;
+        if (ancestor != null) {
+            mp.ancestor = ancestor;
+            mp.ancestorMTime = ancestor.getDirMTime();
+        }
+        missingPaths.put(fn, mp);
+    }
+
+    /**
+     * Returns the nearest ancestor directory of the path in the cache (or
+     * null).
+     * 
+     * @param fn
+     * @return
+     */
+    protected DocuDirectory findCachedAncestor(String fn) {
+        String pn = fn;
+        while (pn.length() > 0) {
+            pn = FileOps.parent(pn);
+            DocuDirectory dd = map.get(pn);
+            if (dd != null) {
+                return dd;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of hits in the cache of nonexistent paths
+     */
+    public int getMissingHits() {
+        return missingHits.get();
+    }
+
+    /**
+     * @return number of paths in the cache of nonexistent paths
+     */
+    public int getNumMissing() {
+        return (missingPaths != null) ? missingPaths.size() : 0;
+    }
+
     /**
      * @return long
      */
@@ -303,6 +652,92 @@ public class DocuDirCache {
 		return misses.get();
 	}
 
+	/**
+	 * @return number of evicted directories
+	 */
+	public int getEvictions() {
+	    return evictions.get();
+	}
+
+	/**
+	 * @return the DirectoryWatcher (or null)
+	 */
+	public DirectoryWatcher getWatcher() {
+	    return watcher;
+	}
+
+	/**
+	 * Restores the cache from the snapshot file (if it exists) and writes the
+	 * snapshot every interval seconds (0 means only on dispose).
+	 * 
+	 * @param file
+	 * @param interval
+	 */
+	public void setSnapshotFile(File file, int interval) {
+	    snapshotFile = file;
+	    if (file.canRead()) {
+	        try {
+	            long t = System.currentTimeMillis();
+	            numRestored = DocuDirCacheSnapshot.read(this, file);
+	            logger.info("Restored " + numRestored + " directories from " + file + " in "
+	                    + (System.currentTimeMillis() - t) + "ms");
+	        } catch (Exception e) {
+	            logger.warn("Unable to read directory cache snapshot " + file + ": " + e.getMessage());
+	        }
+	    }
+	    if (interval > 0) {
+	        snapshotWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	            public Thread newThread(Runnable r) {
+	                Thread t = new Thread(r, "digilib.dircachewriter");
+	                t.setDaemon(true);
+	                t.setPriority(Thread.MIN_PRIORITY);
+	                return t;
+	            }
+	        });
+	        snapshotWriter.scheduleWithFixedDelay(new Runnable() {
+	            public void run() {
+	                writeSnapshot();
+	            }
+	        }, interval, interval, TimeUnit.SECONDS);
+	    }
+	}
+
+	/**
+	 * Writes the snapshot file.
+	 */
+	public synchronized void writeSnapshot() {
+	    if (snapshotFile == null) {
+	        return;
+	    }
+	    try {
+	        int n = DocuDirCacheSnapshot.write(this, snapshotFile);
+	        logger.debug("Wrote " + n + " directories to " + snapshotFile);
+	    } catch (Exception e) {
+	        logger.error("Unable to write directory cache snapshot " + snapshotFile + ": " + e.getMessage());
+	    }
+	}
+
+	/**
+	 * @return number of directories restored from the snapshot
+	 */
+	public int getNumRestored() {
+	    return numRestored;
+	}
+
+	/**
+	 * Writes the snapshot and stops watching directories.
+	 */
+	public void dispose() {
+	    if (snapshotWriter != null) {
+	        snapshotWriter.shutdownNow();
+	        snapshotWriter = null;
+	    }
+	    writeSnapshot();
+	    if (watcher != null) {
+	        watcher.shutdown();
+	    }
+	}
+
 	/**
 	 * @return
 	 */
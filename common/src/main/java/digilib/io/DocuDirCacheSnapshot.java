@@ -0,0 +1,238 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DocuDirCacheSnapshot -- persistent contents of a DocuDirCache.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the directories of a DocuDirCache with their files and the known
+ * image sizes and types to a file and restores them into a DocuDirCache.
+ *
+ * Restored directories keep the modification time they had when the snapshot
+ * was written, so they are revalidated against the file system like any
+ * cached directory when they are used.
+ *
+ * Only directories of a BaseDirDocuDirectory class are saved. The snapshot is
+ * ignored if the DocuDirectory class or the base directories have changed.
+ */
+public class DocuDirCacheSnapshot {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DocuDirCacheSnapshot.class);
+
+    /** magic number for snapshot files ("DLDC") */
+    protected static final int FILE_MAGIC = 0x444c4443;
+
+    /**
+     * Writes all read directories of the cache to the file.
+     *
+     * The file is replaced when the snapshot is complete.
+     *
+     * @param cache
+     * @param file
+     * @return the number of directories written
+     * @throws IOException
+     */
+    public static int write(DocuDirCache cache, File file) throws IOException {
+        // sort by name so parents are restored before their children
+        Map<String, BaseDirDocuDirectory> dirs = new TreeMap<String, BaseDirDocuDirectory>();
+        for (Map.Entry<String, DocuDirectory> me : cache.map.entrySet()) {
+            DocuDirectory dd = me.getValue();
+            // skip aliases
+            if (dd instanceof BaseDirDocuDirectory && me.getKey().equals(dd.getDirName())) {
+                dirs.put(me.getKey(), (BaseDirDocuDirectory) dd);
+            }
+        }
+        File tf = new File(file.getPath() + ".tmp");
+        int numDirs = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(tf))));
+        try {
+            out.writeInt(FILE_MAGIC);
+            writeHeader(out);
+            for (BaseDirDocuDirectory dd : dirs.values()) {
+                long mtime = dd.getDirMTime();
+                DirectoryManifest manifest = dd.getManifest();
+                if (manifest == null) {
+                    continue;
+                }
+                List<DirectoryManifest.Entry> entries = manifest.getEntries();
+                out.writeBoolean(true);
+                out.writeUTF(dd.getDirName());
+                out.writeLong(mtime);
+                out.writeInt(entries.size());
+                for (DirectoryManifest.Entry e : entries) {
+                    out.writeUTF(e.name);
+                    out.writeInt(e.dirIdx);
+                    out.writeUTF(e.fileName);
+                    out.writeLong(e.length);
+                    out.writeLong(e.mtime);
+                    out.writeInt(e.width);
+                    out.writeInt(e.height);
+                    out.writeUTF((e.mimeType != null) ? e.mimeType : "");
+                }
+                ++numDirs;
+            }
+            out.writeBoolean(false);
+            out.close();
+            out = null;
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tf.renameTo(file)) {
+                throw new IOException("Unable to rename " + tf);
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                tf.delete();
+            }
+        }
+        return numDirs;
+    }
+
+    /**
+     * Restores the directories from the file into the cache.
+     *
+     * Directories that are already in the cache or that do not exist any
+     * more are skipped.
+     *
+     * @param cache
+     * @param file
+     * @return the number of restored directories
+     * @throws IOException
+     */
+    public static int read(DocuDirCache cache, File file) throws IOException {
+        int numDirs = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(
+                file))));
+        try {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Invalid snapshot file");
+            }
+            if (!checkHeader(in)) {
+                logger.info("Configuration has changed, ignoring directory cache snapshot " + file);
+                return 0;
+            }
+            while (in.readBoolean()) {
+                String dirName = in.readUTF();
+                long mtime = in.readLong();
+                int n = in.readInt();
+                List<DirectoryManifest.Entry> entries = new ArrayList<DirectoryManifest.Entry>(n);
+                for (int i = 0; i < n; ++i) {
+                    String name = in.readUTF();
+                    int dirIdx = in.readInt();
+                    String fileName = in.readUTF();
+                    long length = in.readLong();
+                    long fmtime = in.readLong();
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    String mt = in.readUTF();
+                    entries.add(new DirectoryManifest.Entry(name, dirIdx, fileName, length, fmtime, width, height,
+                            mt.isEmpty() ? null : mt.intern()));
+                }
+                if (cache.map.containsKey(dirName)) {
+                    continue;
+                }
+                DocuDirectory dd = DocuDirectoryFactory.getDocuDirectoryInstance(dirName, cache.getFileClass());
+                if (!(dd instanceof BaseDirDocuDirectory) || !dd.isValid()) {
+                    continue;
+                }
+                ((BaseDirDocuDirectory) dd).setManifest(new DirectoryManifest(entries), mtime);
+                cache.putDir(dd);
+                ++numDirs;
+            }
+        } finally {
+            in.close();
+        }
+        return numDirs;
+    }
+
+    /**
+     * Writes the DocuDirectory class and the base directories.
+     *
+     * @param out
+     * @throws IOException
+     */
+    protected static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeUTF(String.valueOf(DocuDirectoryFactory.docuDirClass));
+        String[] baseDirs = getBaseDirNames();
+        out.writeInt(baseDirs.length);
+        for (String bd : baseDirs) {
+            out.writeUTF(bd);
+        }
+    }
+
+    /**
+     * Reads the DocuDirectory class and the base directories and checks them
+     * against the current configuration.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    protected static boolean checkHeader(DataInputStream in) throws IOException {
+        boolean ok = in.readUTF().equals(String.valueOf(DocuDirectoryFactory.docuDirClass));
+        String[] baseDirs = getBaseDirNames();
+        int nb = in.readInt();
+        ok &= (nb == baseDirs.length);
+        for (int i = 0; i < nb; ++i) {
+            String bd = in.readUTF();
+            ok &= (i < baseDirs.length && bd.equals(baseDirs[i]));
+        }
+        return ok;
+    }
+
+    /**
+     * @return the configured base directories
+     */
+    protected static String[] getBaseDirNames() {
+        if (DocuDirectoryFactory.dlConfig == null) {
+            return new String[0];
+        }
+        String[] bd = (String[]) DocuDirectoryFactory.dlConfig.getValue("basedir-list");
+        return (bd != null) ? bd : new String[0];
+    }
+
+}
@@ -28,14 +28,20 @@ package digilib.io;
  */
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
 import digilib.meta.DirMeta;
 import digilib.meta.MetaFactory;
+import digilib.meta.MetadataMap;
 
 /**
  * Class representing a directory containing (image) files.
@@ -45,6 +51,10 @@ import digilib.meta.MetaFactory;
  * 
  * Subclasses of DocuDirectory can also hold multiple scaled versions of an image file. 
  * 
+ * The list of files is kept in an immutable Snapshot that is replaced as a whole
+ * when the directory is read again. Changed directories are read again in the
+ * background while the old Snapshot is still used.
+ * 
  * @author casties
  */
 public abstract class DocuDirectory extends Directory {
@@ -52,8 +62,111 @@ public abstract class DocuDirectory extends Directory {
     /** type of files in this DocuDirectory */
     protected FileClass fileClass = FileClass.IMAGE;
     
-	/** list of files (DocuDirent) */
-	protected List<DocuDirent> files = null;
+	/**
+	 * Immutable list of files of a directory.
+	 */
+	public static class Snapshot {
+	    /** sorted file names */
+	    protected final String[] names;
+	    /** files (DocuDirent) in the order of names */
+	    protected final List<DocuDirent> files;
+	    /** modification time of the directory (0 means not read) */
+	    protected final long mtime;
+
+	    /**
+	     * Creates a Snapshot from a list of files sorted by name.
+	     * 
+	     * @param sortedFiles
+	     * @param mtime
+	     */
+	    public Snapshot(List<DocuDirent> sortedFiles, long mtime) {
+	        DocuDirent[] fa = sortedFiles.toArray(new DocuDirent[sortedFiles.size()]);
+	        this.names = new String[fa.length];
+	        for (int i = 0; i < fa.length; ++i) {
+	            names[i] = fa[i].getName();
+	        }
+	        this.files = Collections.unmodifiableList(Arrays.asList(fa));
+	        this.mtime = mtime;
+	    }
+
+	    /**
+	     * Creates a Snapshot from sorted file names for subclasses that create
+	     * their files on demand.
+	     * 
+	     * @param sortedNames
+	     * @param mtime
+	     */
+	    protected Snapshot(String[] sortedNames, long mtime) {
+	        this.names = sortedNames;
+	        this.files = null;
+	        this.mtime = mtime;
+	    }
+
+	    /**
+	     * @return number of files
+	     */
+	    public int size() {
+	        return names.length;
+	    }
+
+	    /**
+	     * Returns the file at the index.
+	     * 
+	     * @param index
+	     * @return
+	     */
+	    public DocuDirent get(int index) {
+	        return files.get(index);
+	    }
+
+	    /**
+	     * Returns the name of the file at the index.
+	     * 
+	     * @param index
+	     * @return
+	     */
+	    public String getName(int index) {
+	        return names[index];
+	    }
+
+	    /**
+	     * Sets the metadata of the file at the index.
+	     * 
+	     * @param index
+	     * @param fileMeta
+	     */
+	    public void setFileMeta(int index, MetadataMap fileMeta) {
+	        get(index).getMeta().setFileMeta(fileMeta);
+	    }
+
+	    /**
+	     * @return modification time of the directory (0 means not read)
+	     */
+	    public long getMTime() {
+	        return mtime;
+	    }
+	}
+
+	/** Snapshot of a directory that has not been read */
+	protected static final Snapshot EMPTY_SNAPSHOT = new Snapshot(Collections.<DocuDirent>emptyList(), 0);
+
+	/** executor for reading changed directories in the background */
+	protected static final ExecutorService rereadExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+	        Thread t = new Thread(r, "digilib.dirreader");
+	        t.setDaemon(true);
+	        return t;
+	    }
+	});
+
+	/** current list of files */
+	protected volatile Snapshot snapshot = EMPTY_SNAPSHOT;
+
+	/** a background read is scheduled */
+	protected AtomicBoolean rereadPending = new AtomicBoolean(false);
+
+	/** number of files counted by the DocuDirCache (-1 means not cached) */
+	protected AtomicInteger cachedSize = new AtomicInteger(-1);
 
 	/** directory object is valid (exists on disk) */
 	protected boolean isValid = false;
@@ -67,8 +180,14 @@ public abstract class DocuDirectory extends Directory {
 	/** time of last access of this object (not the filesystem) */
 	protected long objectATime = 0;
 
-	/** time directory was last modified on the file system */
-	protected long dirMTime = 0;
+	/** directory is checked for changes by a DirectoryWatcher */
+	protected volatile boolean watched = false;
+
+	/** number of changes on the file system reported for the directory */
+	protected AtomicInteger changes = new AtomicInteger(0);
+
+	/** number of reported changes before the start of the last read */
+	protected volatile int readChanges = 0;
 
 	/**
 	 * Configure object with digilib directory path and a parent DocuDirCache.
@@ -90,8 +209,7 @@ public abstract class DocuDirectory extends Directory {
 		this.dirName = path;
 		this.fileClass = fileClass;
 		// clear directory list
-		files = new ArrayList<DocuDirent>();
-		dirMTime = 0;
+		snapshot = EMPTY_SNAPSHOT;
 		// the first directory has to exist
 		dir = new File(path);
 		isValid = dir.isDirectory();
@@ -102,7 +220,7 @@ public abstract class DocuDirectory extends Directory {
 	 * number of DocuFiles in this directory. 
 	 */
 	public int size() {
-		return (files != null) ? files.size() : 0;
+		return snapshot.size();
 	}
 
 	/**
@@ -123,10 +241,32 @@ public abstract class DocuDirectory extends Directory {
 	 * @return
 	 */
 	public DocuDirent get(int index) {
-		if ((files == null) || (index >= files.size())) {
+	    Snapshot snap = snapshot;
+		if (index >= snap.size()) {
 			return null;
 		}
-		return files.get(index);
+		return snap.get(index);
+	}
+
+	/**
+	 * Returns the name of the file at the index (without creating the file
+	 * object).
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public String getName(int index) {
+	    return snapshot.getName(index);
+	}
+
+	/**
+	 * Sets the metadata of the file at the index.
+	 * 
+	 * @param index
+	 * @param fileMeta
+	 */
+	public void setFileMeta(int index, MetadataMap fileMeta) {
+	    snapshot.setFileMeta(index, fileMeta);
 	}
 
 	/**
@@ -146,29 +286,170 @@ public abstract class DocuDirectory extends Directory {
 	/**
 	 * Read the filesystem directory and fill this object.
 	 * 
-	 * Clears the List and (re)reads all files.
+	 * Creates a new Snapshot with all files.
 	 * 
 	 * @return boolean the directory exists
 	 */
 	public abstract boolean readDir();
 
+	/**
+	 * Read the filesystem directory even if its modification time has not
+	 * changed, e.g. after a change reported by a DirectoryWatcher (the
+	 * modification time may not have changed on a filesystem with a coarse
+	 * time resolution).
+	 * 
+	 * @return boolean the directory exists
+	 */
+	public boolean rereadDir() {
+	    return readDir();
+	}
+
+	/**
+	 * Replaces the list of files.
+	 * 
+	 * @param sortedFiles
+	 *            list of files sorted by name
+	 * @param mtime
+	 *            modification time of the directory
+	 */
+	protected void setSnapshot(List<DocuDirent> sortedFiles, long mtime) {
+	    snapshot = new Snapshot(sortedFiles, mtime);
+	}
+
+	/**
+	 * Returns the current list of files.
+	 * 
+	 * @return
+	 */
+	public Snapshot getSnapshot() {
+	    return snapshot;
+	}
+
 
 	/**
 	 * Check to see if the directory has been modified and reread if necessary.
 	 * 
+	 * If the directory is watched the file system is only checked after it
+	 * has been marked as changed.
+	 * 
+	 * A directory that has not been read is read immediately, a changed
+	 * directory is read in the background.
+	 * 
 	 * @return boolean the directory is valid
 	 */
     public boolean refresh() {
         if (isValid) {
-            if (dir.lastModified() > dirMTime) {
+            long mtime = snapshot.mtime;
+            if (mtime == 0) {
+                readChangedDir();
+            } else if (watched) {
+                if (isChanged()) {
+                    rereadLater();
+                }
+            } else if (getCurrentMTime() > mtime) {
                 // on-disk modification time is more recent
-                readDir();
+                rereadLater();
             }
             touch();
         }
         return isValid;
     }
 
+    /**
+     * Returns the current modification time of the source of the file list
+     * on disk.
+     * 
+     * @return
+     */
+    protected long getCurrentMTime() {
+        return dir.lastModified();
+    }
+
+    /**
+     * Returns if a change of the directory has been reported after the start
+     * of the last read.
+     * 
+     * @return
+     */
+    protected boolean isChanged() {
+        return changes.get() != readChanges;
+    }
+
+    /**
+     * Reads the directory and records the changes that the read includes.
+     * 
+     * A watched directory is read even if its modification time has not
+     * changed.
+     * 
+     * @return
+     */
+    protected synchronized boolean readChangedDir() {
+        int c = changes.get();
+        try {
+            return watched ? rereadDir() : readDir();
+        } finally {
+            readChanges = c;
+        }
+    }
+
+    /**
+     * Reads the directory in the background (if it is not already scheduled).
+     * 
+     * If the directory is watched and a change is reported while it is read
+     * it is read again.
+     */
+    protected void rereadLater() {
+        if (!rereadPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            rereadExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        readChangedDir();
+                    } catch (Exception e) {
+                        logger.error("Error reading directory " + dir + ": " + e.getMessage());
+                    } finally {
+                        rereadPending.set(false);
+                    }
+                    if (watched && isChanged()) {
+                        // changed while it was read
+                        rereadLater();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            rereadPending.set(false);
+            readChangedDir();
+        }
+    }
+
+    /**
+     * Stops the threads for reading changed directories in the background.
+     * 
+     * Directories are read immediately afterwards.
+     */
+    public static void shutdownRereadExecutor() {
+        rereadExecutor.shutdownNow();
+    }
+
+    /**
+     * Mark the directory as changed on the file system.
+     */
+    public void invalidate() {
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Set if the directory is checked for changes by a DirectoryWatcher.
+     * 
+     * @param watched
+     */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+        changes.incrementAndGet();
+    }
+
 
 	/**
 	 * Read directory metadata.
@@ -199,7 +480,11 @@ public abstract class DocuDirectory extends Directory {
 	 */
 	public long touch() {
 		long t = objectATime;
-		objectATime = System.currentTimeMillis();
+		long now = System.currentTimeMillis();
+		// avoid writing the shared field on every access
+		if (now - t > 1000) {
+		    objectATime = now;
+		}
 		return t;
 	}
 
@@ -237,31 +522,42 @@ public abstract class DocuDirectory extends Directory {
 				return -1;
 			}
 		}
-		List<DocuDirent> fileList = files;
+		return indexOf(snapshot, fn);
+	}
+
+	/**
+	 * Searches for the file with the name <code>fn</code> in the Snapshot.
+	 * 
+	 * @param snap
+	 * @param fn
+	 * @return int index of file <code>fn</code>
+	 */
+	protected int indexOf(Snapshot snap, String fn) {
+		String[] names = snap.names;
 		// empty directory?
-		if (fileList == null) {
+		if (names.length == 0) {
 			return -1;
 		}
         
-		// search for exact match (DocuDirent does compareTo<String>)
-        // OBS: fileList needs to be sorted first (see )! <hertzhaft>
-		int idx = Collections.binarySearch(fileList, fn);
+		// search for exact match
+        // OBS: names need to be sorted (see Snapshot)! <hertzhaft>
+		int idx = Arrays.binarySearch(names, fn);
 		if (idx >= 0) {
 			return idx;
 		} else {
             logger.debug(fn + " not found by binarysearch");
 			// try closest matches without extension
 			idx = -idx - 1;
-			if ((idx < fileList.size())
-					&& isBasenameInList(fileList, idx, fn)) {
+			if ((idx < names.length)
+					&& isBasenameInList(names, idx, fn)) {
 				// idx matches
 				return idx;
 			} else if ((idx > 0)
-					&& isBasenameInList(fileList, idx-1, fn)) {
+					&& isBasenameInList(names, idx-1, fn)) {
 				// idx-1 matches
 				return idx - 1;
-			} else if ((idx + 1 < fileList.size())
-					&& isBasenameInList(fileList, idx+1, fn)) {
+			} else if ((idx + 1 < names.length)
+					&& isBasenameInList(names, idx+1, fn)) {
 				// idx+1 matches
 				return idx + 1;
 			}
@@ -281,9 +577,16 @@ public abstract class DocuDirectory extends Directory {
 	 * @return DocuDirent
 	 */
 	public DocuDirent find(String fn) {
-		int i = indexOf(fn);
+		if (!isRead()) {
+			// read directory now
+			if (!readDir()) {
+				return null;
+			}
+		}
+		Snapshot snap = snapshot;
+		int i = indexOf(snap, fn);
 		if (i >= 0) {
-			return files.get(i);
+			return snap.get(i);
 		}
 		return null;
 	}
@@ -327,7 +630,7 @@ public abstract class DocuDirectory extends Directory {
 	 * @return
 	 */
 	public boolean isRead() {
-		return (dirMTime != 0);
+		return (snapshot.mtime != 0);
 	}
 
 	/**
@@ -341,15 +644,15 @@ public abstract class DocuDirectory extends Directory {
 	 * @return long
 	 */
 	public long getDirMTime() {
-		return dirMTime;
+		return snapshot.mtime;
 	}
 
     public DirMeta getMeta() {
         return meta;
     }
 
-    private boolean isBasenameInList(List<DocuDirent> fileList, int idx, String fn) {
-    	String dfn = FileOps.basename((fileList.get(idx)).getName());
+    private boolean isBasenameInList(String[] names, int idx, String fn) {
+    	String dfn = FileOps.basename(names[idx]);
     	return (dfn.equals(fn) || dfn.equals(FileOps.basename(fn))); 
     }
 
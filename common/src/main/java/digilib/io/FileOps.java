@@ -28,6 +28,9 @@ package digilib.io;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -431,4 +434,29 @@ public class FileOps {
         }
     }
 
+	/**
+	 * Returns a hash (as hex string) of the key.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public static String getHash(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(key.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+
 }
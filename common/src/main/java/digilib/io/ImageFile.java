@@ -49,6 +49,10 @@ public class ImageFile extends ImageInput {
 	private String name = null;
 	// parent directory
 	private Directory dir = null;
+	// file size from the directory (-1 means unknown)
+	private long length = -1;
+	// file modification time from the directory (-1 means unknown)
+	private long lastModified = -1;
 
 	/** Constructor with File.
 	 * 
@@ -81,13 +85,23 @@ public class ImageFile extends ImageInput {
 	 */
 	public void check() {
 	    if (pixelSize == null) {
-	        try {
-	            // use the configured toolkit to identify the image
-                DocuImage di = DocuImageFactory.getInstance();
-                di.identify(this);
-            } catch (IOException e) {
-                // nothing much to do...
-            }
+	        if (ImageIdentIndex.isEnabled() && ImageIdentIndex.lookup(this)) {
+	            // size and type from the index
+	        } else {
+	            try {
+	                // use the configured toolkit to identify the image
+	                DocuImage di = DocuImageFactory.getInstance();
+	                di.identify(this);
+	            } catch (IOException e) {
+	                // nothing much to do...
+	            }
+	            if (ImageIdentIndex.isEnabled()) {
+	                ImageIdentIndex.store(this);
+	            }
+	        }
+	        if (parent != null && isChecked()) {
+	            parent.inputChecked(this);
+	        }
 	    }
 	}
 	
@@ -118,6 +132,40 @@ public class ImageFile extends ImageInput {
         return (pixelSize != null) ? pixelSize.getAspect() : 0f;
     }
 
+    /** Sets size and modification time of the file as read with the directory.
+     * 
+     * @param length
+     * @param lastModified
+     */
+    public void setFileAttributes(long length, long lastModified) {
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /** Returns if size and modification time of the file are known.
+     * 
+     * @return
+     */
+    public boolean hasFileAttributes() {
+        return length >= 0 && lastModified >= 0;
+    }
+
+    /** Returns the size of the file (from the directory if it is known).
+     * 
+     * @return
+     */
+    public long getLength() {
+        return (length >= 0) ? length : file.length();
+    }
+
+    /** Returns the modification time of the file (from the directory if it is known).
+     * 
+     * @return
+     */
+    public long getLastModified() {
+        return (lastModified >= 0) ? lastModified : file.lastModified();
+    }
+
     /** Returns the file name (without path).
 	 * 
 	 * @return
@@ -26,6 +26,7 @@ package digilib.io;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import digilib.io.FileOps.FileClass;
 import digilib.meta.FileMeta;
@@ -44,12 +45,18 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
     protected File file = null;
     /** the file name */
     protected String name = null;
-    /** the FileMeta intance */
+    /** the FileMeta intance (created when needed) */
     protected FileMeta meta = null;
 	/** is our metadata valid */
 	protected boolean metaChecked = false;
 	/** the parent directory */
 	protected Directory parentDir = null;
+	/** the CompactSnapshot this set was created from (or null) */
+	protected CompactSnapshot store = null;
+	/** index of this set in the CompactSnapshot */
+	protected int storeIndex = -1;
+	/** index of the base directory for each ImageInput (if created from a CompactSnapshot) */
+	protected int[] inputDirs = null;
     
     /**
      * Constructor with a File and Directories.
@@ -64,10 +71,61 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
         parentDir = scaleDirs[0];
         this.file = file;
         name = file.getName();
-        meta = MetaFactory.getFileMetaInstance();
         fill(scaleDirs, file);
     }
 
+    /**
+     * Constructor with a File, Directories and the names of the matching files
+     * in the Directories from a CompactSnapshot.
+     * 
+     * @param file
+     * @param scaleDirs
+     * @param scaledNames
+     *            matching file names (or null) for each Directory
+     * @param lengths
+     *            sizes of the files for each Directory (or null, -1 means unknown)
+     * @param mtimes
+     *            modification times of the files for each Directory (or null, -1 means unknown)
+     * @param store
+     *            CompactSnapshot (or null)
+     * @param index
+     *            index of the file in the CompactSnapshot
+     */
+    public ImageFileSet(File file, Directory[] scaleDirs, String[] scaledNames, long[] lengths, long[] mtimes,
+            CompactSnapshot store, int index) {
+        int nb = scaleDirs.length;
+        list = new ArrayList<ImageInput>(nb);
+        // first dir is our parent
+        parentDir = scaleDirs[0];
+        this.file = file;
+        name = file.getName();
+        this.store = store;
+        this.storeIndex = index;
+        inputDirs = new int[nb];
+        ImageFile imgf = new ImageFile(file, this, parentDir);
+        if (lengths != null) {
+            imgf.setFileAttributes(lengths[0], mtimes[0]);
+        }
+        inputDirs[list.size()] = 0;
+        add(imgf);
+        if (store != null) {
+            store.restoreInput(index, 0, imgf);
+        }
+        for (int i = 1; i < nb; ++i) {
+            if (scaleDirs[i] != null && scaledNames[i] != null) {
+                imgf = new ImageFile(scaledNames[i], this, scaleDirs[i]);
+                if (lengths != null) {
+                    imgf.setFileAttributes(lengths[i], mtimes[i]);
+                }
+                inputDirs[list.size()] = i;
+                add(imgf);
+                if (store != null) {
+                    store.restoreInput(index, i, imgf);
+                }
+            }
+        }
+    }
+
     /* (non-Javadoc)
      * @see digilib.io.DocuDirent#getName()
      */
@@ -127,7 +185,6 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
      */
     void fill(Directory[] dirs, File fl) {
     	String fn = fl.getName();
-    	String baseFn = FileOps.basename(fn);
     	// add the first ImageFile to the ImageSet
     	add(new ImageFile(fl, this, parentDir));
     	// iterate the remaining base directories
@@ -140,39 +197,169 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
     		if (dir.getFilenames() == null) {
     			dir.readDir();
     		}
-    		String[] dirFiles = dir.getFilenames();
-    		// try the same filename as the original
-    		int fileIdx = Arrays.binarySearch(dirFiles, fn);
-    		if (fileIdx < 0) {
-    			// try closest matches without extension
-    			fileIdx = -fileIdx - 1;
-    			// try idx
-    			if ((fileIdx < dirFiles.length)
-    					&& (FileOps.basename(dirFiles[fileIdx]).equals(baseFn))) {
-    				// idx ok
-    			} else if ((fileIdx > 0)
-    					&& (FileOps.basename(dirFiles[fileIdx - 1])
-    							.equals(baseFn))) {
-    				// idx-1 ok
-    				fileIdx = fileIdx - 1;
-    			} else if ((fileIdx+1 < dirFiles.length)
-    					&& (FileOps.basename(dirFiles[fileIdx + 1])
-    							.equals(baseFn))) {
-    				// idx+1 ok
-    				fileIdx = fileIdx + 1;
-    			} else {
-    				// basename doesn't match
-    				continue;
-    			}
-    		}
-    		if (FileOps.classForFilename(dirFiles[fileIdx]) == fileClass) {
-    			/* logger.debug("adding file " + dirFiles[fileIdx]
+    		String sfn = findScaledName(dir.getFilenames(), fn);
+    		if (sfn != null) {
+    			/* logger.debug("adding file " + sfn
     					+ " to Fileset " + this.getName()); */
-    			add(new ImageFile(dirFiles[fileIdx], this, dir));
+    			add(new ImageFile(sfn, this, dir));
     		}
     	}
     }
 
+    /**
+     * Returns the name of the image file in the sorted list of file names that
+     * matches the file name (with the same or a different extension) or null.
+     * 
+     * @param dirFiles
+     * @param fn
+     * @return
+     */
+    public static String findScaledName(String[] dirFiles, String fn) {
+    	// try the same filename as the original
+    	int fileIdx = Arrays.binarySearch(dirFiles, fn);
+    	if (fileIdx < 0) {
+    		String baseFn = FileOps.basename(fn);
+    		// try closest matches without extension
+    		fileIdx = -fileIdx - 1;
+    		// try idx
+    		if ((fileIdx < dirFiles.length)
+    				&& (FileOps.basename(dirFiles[fileIdx]).equals(baseFn))) {
+    			// idx ok
+    		} else if ((fileIdx > 0)
+    				&& (FileOps.basename(dirFiles[fileIdx - 1])
+    						.equals(baseFn))) {
+    			// idx-1 ok
+    			fileIdx = fileIdx - 1;
+    		} else if ((fileIdx+1 < dirFiles.length)
+    				&& (FileOps.basename(dirFiles[fileIdx + 1])
+    						.equals(baseFn))) {
+    			// idx+1 ok
+    			fileIdx = fileIdx + 1;
+    		} else {
+    			// basename doesn't match
+    			return null;
+    		}
+    	}
+    	if (FileOps.classForFilename(dirFiles[fileIdx]) == fileClass) {
+    		return dirFiles[fileIdx];
+    	}
+    	return null;
+    }
+
+    /**
+     * Returns the indexes of the image files in the sorted list of file names
+     * dirFiles that match the sorted file names (with the same or a different
+     * extension) or -1.
+     * 
+     * Gives the same results as findScaledName for each name but walks both
+     * lists only once.
+     * 
+     * @param names
+     * @param dirFiles
+     * @return
+     */
+    public static int[] matchScaledFiles(String[] names, String[] dirFiles) {
+        int n = names.length;
+        int m = dirFiles.length;
+        int[] matches = new int[n];
+        // length of the basenames of the files in the directory
+        int[] dirBaseLen = new int[m];
+        for (int k = 0; k < m; ++k) {
+            dirBaseLen[k] = basenameLength(dirFiles[k]);
+        }
+        int p = 0;
+        for (int i = 0; i < n; ++i) {
+            String fn = names[i];
+            // advance to the insertion point of fn
+            while (p < m && dirFiles[p].compareTo(fn) < 0) {
+                ++p;
+            }
+            int fileIdx = -1;
+            if (p < m && dirFiles[p].equals(fn)) {
+                // same filename as the original
+                fileIdx = p;
+            } else {
+                // try closest matches without extension
+                int bl = basenameLength(fn);
+                if (p < m && dirBaseLen[p] == bl && dirFiles[p].regionMatches(0, fn, 0, bl)) {
+                    fileIdx = p;
+                } else if (p > 0 && dirBaseLen[p - 1] == bl && dirFiles[p - 1].regionMatches(0, fn, 0, bl)) {
+                    fileIdx = p - 1;
+                } else if (p + 1 < m && dirBaseLen[p + 1] == bl && dirFiles[p + 1].regionMatches(0, fn, 0, bl)) {
+                    fileIdx = p + 1;
+                }
+            }
+            if (fileIdx >= 0 && FileOps.classForFilename(dirFiles[fileIdx]) != fileClass) {
+                fileIdx = -1;
+            }
+            matches[i] = fileIdx;
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the length of the basename of the file name (see
+     * FileOps.basename).
+     * 
+     * @param fn
+     * @return
+     */
+    protected static int basenameLength(String fn) {
+        int i = fn.lastIndexOf('.');
+        return (i > 0) ? i : fn.length();
+    }
+
+    /* (non-Javadoc)
+     * @see digilib.io.ImageSet#inputChecked(digilib.io.ImageInput)
+     */
+    @Override
+    public void inputChecked(ImageInput input) {
+        if (store == null) {
+            return;
+        }
+        // remember size and type in the CompactSnapshot
+        int idx = list.indexOf(input);
+        if (idx >= 0 && idx < inputDirs.length) {
+            store.storeInput(storeIndex, inputDirs[idx], input);
+        }
+    }
+
+    /**
+     * Adds DirectoryManifest entries for the files of this set to the list.
+     * 
+     * @param entries
+     * @return false if the parallel directories of the files are not known
+     */
+    public boolean addManifestEntries(List<DirectoryManifest.Entry> entries) {
+        if (inputDirs == null) {
+            return false;
+        }
+        for (int i = 0; i < list.size(); ++i) {
+            ImageInput ii = list.get(i);
+            if (!(ii instanceof ImageFile)) {
+                return false;
+            }
+            ImageFile imgf = (ImageFile) ii;
+            long length = -1;
+            long mtime = -1;
+            if (imgf.hasFileAttributes()) {
+                length = imgf.getLength();
+                mtime = imgf.getLastModified();
+            }
+            int width = 0;
+            int height = 0;
+            String mt = null;
+            if (imgf.isChecked()) {
+                width = imgf.getSize().getWidth();
+                height = imgf.getSize().getHeight();
+                mt = imgf.getMimetype();
+            }
+            entries.add(new DirectoryManifest.Entry(name, inputDirs[i], imgf.getName(), length, mtime, width,
+                    height, mt));
+        }
+        return true;
+    }
+
     /**
      * Checks metadata and sets resolution in resX and resY.
      *  
@@ -182,6 +369,7 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
             return;
         }
         // have the FileMeta class load and check
+        FileMeta meta = getMeta();
         meta.checkMeta(this);
         metaChecked = true;
         // take the metadata
@@ -251,14 +439,24 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
      * @see digilib.io.DocuDirent#readMeta()
      */
 	public void readMeta() {
-	    meta.readMeta(this);
+	    getMeta().readMeta(this);
 	}
 
     /* (non-Javadoc)
      * @see digilib.io.DocuDirent#getMeta()
      */
     @Override
-    public FileMeta getMeta() {
+    public synchronized FileMeta getMeta() {
+        if (meta == null) {
+            meta = MetaFactory.getFileMetaInstance();
+            if (store != null) {
+                // metadata from the directory
+                MetadataMap fm = store.getFileMeta(storeIndex);
+                if (fm != null) {
+                    meta.setFileMeta(fm);
+                }
+            }
+        }
         return this.meta;
     }
 
@@ -266,7 +464,7 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
      * @see digilib.io.DocuDirent#setMeta(digilib.meta.FileMeta)
      */
     @Override
-    public void setMeta(FileMeta fileMeta) {
+    public synchronized void setMeta(FileMeta fileMeta) {
         this.meta = fileMeta;
     }
 
@@ -0,0 +1,435 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ImageIdentIndex -- persistent index of image sizes and types.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.util.ImageSize;
+
+/**
+ * Persistent index of image sizes and mime-types.
+ *
+ * The index has one binary file per image directory in the index directory.
+ * Entries are keyed by file name and are only valid if the size and the
+ * modification time of the file match. The file for a directory is read when
+ * the directory is first used. New entries are written in the background.
+ * The least recently used directory indexes are written and dropped from
+ * memory when there are more than maxDirs.
+ */
+public class ImageIdentIndex {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageIdentIndex.class);
+
+    /** file name suffix of index files */
+    protected static final String FILE_SUFFIX = ".idx";
+
+    /** magic number for index files */
+    protected static final int FILE_MAGIC = 0x444c4931;
+
+    /**
+     * Index entry for one file.
+     */
+    protected static class Entry {
+        long length;
+        long mtime;
+        int width;
+        int height;
+        String mimeType;
+    }
+
+    /**
+     * Index for one directory.
+     */
+    protected static class DirIndex {
+        String dirName;
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        volatile boolean dirty = false;
+
+        DirIndex(String dirName) {
+            this.dirName = dirName;
+        }
+    }
+
+    /** index directory (null means no index) */
+    protected static volatile File indexDir = null;
+
+    /** maximum number of loaded directory indexes */
+    protected static volatile int maxDirs = 1000;
+
+    /** loaded directory indexes (in access order) */
+    protected static Map<String, DirIndex> dirIndexes = new LinkedHashMap<String, DirIndex>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, DirIndex> eldest) {
+            if (size() <= maxDirs) {
+                return false;
+            }
+            // write changes before dropping the index
+            File idir = indexDir;
+            DirIndex di = eldest.getValue();
+            if (idir != null && di.dirty) {
+                writeDirIndex(idir, di);
+            }
+            return true;
+        }
+    };
+
+    /** background writer */
+    protected static ScheduledExecutorService flusher = null;
+
+    /** number of index hits */
+    protected static AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of index misses */
+    protected static AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * Sets up the index in the directory dir. Changes are written every
+     * flushInterval seconds. At most maxDirs directory indexes are kept in
+     * memory.
+     *
+     * @param dir
+     * @param flushInterval
+     * @param maxDirs
+     */
+    public static synchronized void setup(File dir, int flushInterval, int maxDirs) {
+        shutdown();
+        ImageIdentIndex.maxDirs = maxDirs;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            logger.error("Unable to use identification index directory " + dir);
+            return;
+        }
+        indexDir = dir;
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "digilib.identindex");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.SECONDS);
+        logger.info("Using image identification index in " + dir);
+    }
+
+    /**
+     * Writes all changes and stops the index.
+     */
+    public static synchronized void shutdown() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        if (indexDir != null) {
+            flush();
+        }
+        indexDir = null;
+        synchronized (dirIndexes) {
+            dirIndexes.clear();
+        }
+    }
+
+    /**
+     * @return if the index is used
+     */
+    public static boolean isEnabled() {
+        return indexDir != null;
+    }
+
+    /**
+     * Sets size and mime-type of the ImageFile from the index. Returns false
+     * if the file is not in the index or has changed.
+     *
+     * @param imgFile
+     * @return
+     */
+    public static boolean lookup(ImageFile imgFile) {
+        File f = imgFile.getFile();
+        DirIndex di = getDirIndex(f.getParent());
+        if (di == null) {
+            return false;
+        }
+        Entry e;
+        synchronized (di) {
+            e = di.entries.get(f.getName());
+        }
+        if (e == null || e.length != imgFile.getLength() || e.mtime != imgFile.getLastModified()) {
+            misses.incrementAndGet();
+            return false;
+        }
+        imgFile.setSize(new ImageSize(e.width, e.height));
+        if (imgFile.mimetype == null) {
+            imgFile.setMimetype(e.mimeType);
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores size and mime-type of the ImageFile in the index.
+     *
+     * @param imgFile
+     */
+    public static void store(ImageFile imgFile) {
+        ImageSize size = imgFile.pixelSize;
+        String mt = imgFile.mimetype;
+        if (size == null || mt == null) {
+            return;
+        }
+        File f = imgFile.getFile();
+        DirIndex di = getDirIndex(f.getParent());
+        if (di == null) {
+            return;
+        }
+        Entry e = new Entry();
+        e.length = imgFile.getLength();
+        e.mtime = imgFile.getLastModified();
+        e.width = size.width;
+        e.height = size.height;
+        e.mimeType = mt;
+        synchronized (di) {
+            di.entries.put(f.getName(), e);
+            di.dirty = true;
+        }
+    }
+
+    /**
+     * Returns the (loaded) index for the directory.
+     *
+     * @param dirName
+     * @return
+     */
+    protected static DirIndex getDirIndex(String dirName) {
+        File idir = indexDir;
+        if (idir == null || dirName == null) {
+            return null;
+        }
+        DirIndex di;
+        synchronized (dirIndexes) {
+            di = dirIndexes.get(dirName);
+        }
+        if (di == null) {
+            DirIndex ndi = readDirIndex(idir, dirName);
+            synchronized (dirIndexes) {
+                di = dirIndexes.get(dirName);
+                if (di == null) {
+                    di = ndi;
+                    dirIndexes.put(dirName, di);
+                }
+            }
+        }
+        return di;
+    }
+
+    /**
+     * Reads the index file for the directory.
+     *
+     * @param idir
+     * @param dirName
+     * @return
+     */
+    protected static DirIndex readDirIndex(File idir, String dirName) {
+        DirIndex di = new DirIndex(dirName);
+        File f = getIndexFile(idir, dirName);
+        if (!f.exists()) {
+            return di;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != FILE_MAGIC || !in.readUTF().equals(dirName)) {
+                throw new IOException("Invalid index file");
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; ++i) {
+                String fn = in.readUTF();
+                Entry e = new Entry();
+                e.length = in.readLong();
+                e.mtime = in.readLong();
+                e.width = in.readInt();
+                e.height = in.readInt();
+                e.mimeType = in.readUTF().intern();
+                di.entries.put(fn, e);
+            }
+            logger.debug("read " + n + " index entries for " + dirName);
+        } catch (IOException e) {
+            logger.warn("Unable to read identification index file " + f + ": " + e.getMessage());
+            di.entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return di;
+    }
+
+    /**
+     * Writes all changed directory indexes.
+     */
+    public static synchronized void flush() {
+        File idir = indexDir;
+        if (idir == null) {
+            return;
+        }
+        List<DirIndex> dis;
+        synchronized (dirIndexes) {
+            dis = new ArrayList<DirIndex>(dirIndexes.values());
+        }
+        for (DirIndex di : dis) {
+            if (di.dirty) {
+                writeDirIndex(idir, di);
+            }
+        }
+    }
+
+    /**
+     * Writes the index file for the directory.
+     *
+     * @param idir
+     * @param di
+     */
+    protected static void writeDirIndex(File idir, DirIndex di) {
+        synchronized (di) {
+            if (di.dirty) {
+                writeDirIndexFile(idir, di);
+            }
+        }
+    }
+
+    /**
+     * Writes the index file for the directory. Must be called with the lock
+     * on the directory index.
+     *
+     * @param idir
+     * @param di
+     */
+    protected static void writeDirIndexFile(File idir, DirIndex di) {
+        File f = getIndexFile(idir, di.dirName);
+        File tf = new File(idir, f.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tf)));
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(di.dirName);
+            out.writeInt(di.entries.size());
+            for (Map.Entry<String, Entry> me : di.entries.entrySet()) {
+                Entry e = me.getValue();
+                out.writeUTF(me.getKey());
+                out.writeLong(e.length);
+                out.writeLong(e.mtime);
+                out.writeInt(e.width);
+                out.writeInt(e.height);
+                out.writeUTF(e.mimeType);
+            }
+            di.dirty = false;
+            out.close();
+            out = null;
+            if (f.exists()) {
+                f.delete();
+            }
+            if (!tf.renameTo(f)) {
+                throw new IOException("Unable to rename " + tf);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write identification index file " + f + ": " + e.getMessage());
+            tf.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                tf.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the index file for the directory.
+     *
+     * @param idir
+     * @param dirName
+     * @return
+     */
+    protected static File getIndexFile(File idir, String dirName) {
+        return new File(idir, FileOps.getHash(dirName) + FILE_SUFFIX);
+    }
+
+    /**
+     * @return number of index hits
+     */
+    public static int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of index misses
+     */
+    public static int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of loaded directory indexes
+     */
+    public static int getNumDirs() {
+        synchronized (dirIndexes) {
+            return dirIndexes.size();
+        }
+    }
+
+}
@@ -219,6 +219,16 @@ public class ImageSet {
         
     }
 
+    /**
+     * Called after an ImageInput of this ImageSet has been checked (i.e. has
+     * size and mimetype).
+     * 
+     * @param input
+     */
+    public void inputChecked(ImageInput input) {
+        // nothing to do
+    }
+
     /**
      * Adds an ImageInput to this ImageSet.
      * 
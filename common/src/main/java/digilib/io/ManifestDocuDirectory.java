@@ -0,0 +1,148 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ManifestDocuDirectory -- DocuDirectory read from a precomputed manifest.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.io.FileOps.FileClass;
+
+/**
+ * DocuDirectory implementation that reads the image files of a directory,
+ * the matching files in the parallel base directories and the image sizes and
+ * types from a DirectoryManifest (made by ManifestGenerator).
+ *
+ * The directories are not listed and the images are not identified. The
+ * directory is re-read when the modification time of the manifest changes.
+ * Directories without a readable manifest are read like
+ * BaseDirDocuDirectory.
+ */
+public class ManifestDocuDirectory extends BaseDirDocuDirectory {
+
+    /** the manifest file */
+    protected File manifestFile = null;
+
+    /** the current snapshot was read from the manifest */
+    protected boolean manifestRead = false;
+
+    /*
+     * (non-Javadoc)
+     * @see digilib.io.BaseDirDocuDirectory#configure(java.lang.String, digilib.io.FileOps.FileClass, digilib.conf.DigilibConfiguration)
+     */
+    @Override
+    public void configure(String path, FileClass fileClass, DigilibConfiguration dlConfig) {
+        super.configure(path, fileClass, dlConfig);
+        if (fileClass == FileClass.IMAGE) {
+            manifestFile = DirectoryManifest.getManifestFile(dlConfig.getAsString("manifest-dir"), baseDirNames[0],
+                    path);
+        }
+    }
+
+    /**
+     * Returns the modification time of the manifest or of the directory if
+     * there is no manifest.
+     *
+     * @see digilib.io.DocuDirectory#getCurrentMTime()
+     */
+    @Override
+    protected long getCurrentMTime() {
+        if (manifestFile != null) {
+            long mtime = manifestFile.lastModified();
+            if (mtime != 0) {
+                return mtime;
+            }
+        }
+        return dir.lastModified();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see digilib.io.BaseDirDocuDirectory#readDir()
+     */
+    @Override
+    public synchronized boolean readDir() {
+        return readManifest(false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see digilib.io.BaseDirDocuDirectory#rereadDir()
+     */
+    @Override
+    public synchronized boolean rereadDir() {
+        return readManifest(true);
+    }
+
+    /**
+     * Reads the manifest or the directory if there is no manifest.
+     * 
+     * @param force
+     *            read even if the modification time has not changed
+     * @return
+     */
+    protected boolean readManifest(boolean force) {
+        if (!isValid) {
+            return false;
+        }
+        if (manifestFile == null) {
+            return force ? super.rereadDir() : super.readDir();
+        }
+        long mtime = manifestFile.lastModified();
+        if (mtime == 0) {
+            // no manifest
+            return readDirFromDisk(force);
+        }
+        if (manifestRead && mtime <= snapshot.mtime && !force) {
+            return true;
+        }
+        DirectoryManifest manifest = DirectoryManifest.read(manifestFile);
+        if (manifest == null) {
+            logger.warn("Unable to read manifest " + manifestFile + ", reading directory instead.");
+            return readDirFromDisk(force);
+        }
+        logger.debug("reading manifest " + manifestFile);
+        setManifest(manifest, mtime);
+        manifestRead = true;
+        return isValid;
+    }
+
+    /**
+     * Reads the directory from disk like BaseDirDocuDirectory.
+     * 
+     * @param force
+     *            read even if the modification time has not changed
+     * @return
+     */
+    protected boolean readDirFromDisk(boolean force) {
+        if (manifestRead || force) {
+            // the parallel directories from the manifest may be incomplete
+            dirs = null;
+            manifestRead = false;
+            return readFiles(dir.lastModified());
+        }
+        return super.readDir();
+    }
+
+}
@@ -0,0 +1,305 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ManifestGenerator -- creates and updates directory manifests.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import digilib.image.DocuImage;
+import digilib.image.DocuImageFactory;
+import digilib.image.ImageLoaderDocuImage;
+import digilib.io.FileOps.FileClass;
+import digilib.util.ImageSize;
+
+/**
+ * Creates and updates the DirectoryManifests for ManifestDocuDirectory.
+ *
+ * All directories under the given paths in the first base directory are
+ * listed together with the parallel directories in the other base
+ * directories. Images that are unchanged since the last run (same name, size
+ * and modification time) are taken from the existing manifest, new images
+ * are identified. Manifests are only written when they have changed.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java digilib.io.ManifestGenerator [-m manifest-dir] [-c docuimage-class] basedir-list [path...]
+ * </pre>
+ *
+ * basedir-list is a list of base directories separated by the path separator
+ * (":") like the basedir-list parameter.
+ */
+public class ManifestGenerator {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ManifestGenerator.class);
+
+    /** base directories */
+    protected String[] baseDirNames;
+
+    /** directory for the manifests (or null) */
+    protected String manifestDir;
+
+    /** number of directories */
+    protected int numDirs = 0;
+
+    /** number of manifests written */
+    protected int numWritten = 0;
+
+    /** number of images taken from existing manifests */
+    protected int numReused = 0;
+
+    /** number of identified images */
+    protected int numIdentified = 0;
+
+    /**
+     * Creates a ManifestGenerator.
+     *
+     * @param baseDirNames
+     * @param manifestDir
+     *            directory for the manifests (null or empty means in the image
+     *            directories)
+     */
+    public ManifestGenerator(String[] baseDirNames, String manifestDir) {
+        this.baseDirNames = baseDirNames;
+        this.manifestDir = manifestDir;
+    }
+
+    /**
+     * Updates the manifests of the directory path and all its
+     * subdirectories.
+     *
+     * @param path
+     */
+    public void updateTree(String path) {
+        File dir = new File(baseDirNames[0], path);
+        if (!dir.isDirectory()) {
+            logger.warn("Not a directory: " + dir);
+            return;
+        }
+        try {
+            updateDirectory(path);
+        } catch (IOException e) {
+            logger.error("Unable to update manifest for " + dir + ": " + e.getMessage());
+        }
+        String[] subDirs = dir.list();
+        if (subDirs == null) {
+            return;
+        }
+        Arrays.sort(subDirs);
+        for (String sd : subDirs) {
+            if (new File(dir, sd).isDirectory()) {
+                updateTree(path.isEmpty() ? sd : path + "/" + sd);
+            }
+        }
+    }
+
+    /**
+     * Updates the manifest of the directory path.
+     *
+     * @param path
+     * @return if the manifest was written
+     * @throws IOException
+     */
+    public boolean updateDirectory(String path) throws IOException {
+        ++numDirs;
+        File mf = DirectoryManifest.getManifestFile(manifestDir, baseDirNames[0], path);
+        DirectoryListing listing = DirectoryListing.read(new File(baseDirNames[0], path), FileClass.IMAGE, true);
+        if (listing == null) {
+            throw new IOException("Unable to read directory");
+        }
+        String[] names = listing.getNames();
+        if (names.length == 0 && !mf.exists()) {
+            return false;
+        }
+        // entries of the existing manifest by dir-index and file name
+        Map<String, DirectoryManifest.Entry> oldEntries = new HashMap<String, DirectoryManifest.Entry>();
+        int numOld = 0;
+        if (mf.exists()) {
+            DirectoryManifest old = DirectoryManifest.read(mf);
+            if (old != null) {
+                for (DirectoryManifest.Entry e : old.getEntries()) {
+                    oldEntries.put(e.dirIdx + "/" + e.name, e);
+                }
+                numOld = old.getEntries().size();
+            }
+        }
+        List<DirectoryManifest.Entry> entries = new ArrayList<DirectoryManifest.Entry>();
+        boolean changed = false;
+        for (int j = 0; j < baseDirNames.length; ++j) {
+            File dir = new File(baseDirNames[j], path);
+            String[] fileNames = names;
+            long[] lengths = listing.getLengths();
+            long[] mtimes = listing.getMTimes();
+            int[] matches = null;
+            if (j > 0) {
+                DirectoryListing sl = DirectoryListing.read(dir, null, true);
+                if (sl == null) {
+                    continue;
+                }
+                fileNames = sl.getNames();
+                lengths = sl.getLengths();
+                mtimes = sl.getMTimes();
+                matches = ImageFileSet.matchScaledFiles(names, fileNames);
+            }
+            for (int i = 0; i < names.length; ++i) {
+                int k = (matches != null) ? matches[i] : i;
+                if (k < 0) {
+                    continue;
+                }
+                String fn = fileNames[k];
+                if (names[i].indexOf('\t') >= 0 || names[i].indexOf('\n') >= 0 || fn.indexOf('\t') >= 0
+                        || fn.indexOf('\n') >= 0) {
+                    logger.warn("Skipping file with unsupported name in " + dir);
+                    continue;
+                }
+                DirectoryManifest.Entry old = oldEntries.get(j + "/" + names[i]);
+                DirectoryManifest.Entry e = new DirectoryManifest.Entry(names[i], j, fn, lengths[k], mtimes[k], 0,
+                        0, null);
+                if (e.isSameFile(old)) {
+                    e = old;
+                    ++numReused;
+                } else {
+                    e = identify(e, new File(dir, fn));
+                    changed = true;
+                }
+                entries.add(e);
+            }
+        }
+        if (!changed && entries.size() == numOld) {
+            return false;
+        }
+        new DirectoryManifest(entries).write(mf);
+        ++numWritten;
+        logger.info("Wrote manifest " + mf + " (" + entries.size() + " files)");
+        return true;
+    }
+
+    /**
+     * Returns an entry with the size and type of the image file.
+     *
+     * @param e
+     * @param file
+     * @return
+     */
+    protected DirectoryManifest.Entry identify(DirectoryManifest.Entry e, File file) {
+        ImageFile img = new ImageFile(file, null, null);
+        img.setFileAttributes(e.length, e.mtime);
+        ++numIdentified;
+        try {
+            DocuImage di = DocuImageFactory.getInstance();
+            di.identify(img);
+        } catch (IOException ex) {
+            logger.warn("Unable to identify " + file + ": " + ex.getMessage());
+        }
+        if (!img.isChecked()) {
+            return e;
+        }
+        ImageSize is = img.getSize();
+        return new DirectoryManifest.Entry(e.name, e.dirIdx, e.fileName, e.length, e.mtime, is.getWidth(),
+                is.getHeight(), img.getMimetype());
+    }
+
+    /**
+     * @return number of directories
+     */
+    public int getNumDirs() {
+        return numDirs;
+    }
+
+    /**
+     * @return number of manifests written
+     */
+    public int getNumWritten() {
+        return numWritten;
+    }
+
+    /**
+     * @return number of images taken from existing manifests
+     */
+    public int getNumReused() {
+        return numReused;
+    }
+
+    /**
+     * @return number of identified images
+     */
+    public int getNumIdentified() {
+        return numIdentified;
+    }
+
+    /**
+     * Command line interface.
+     *
+     * @param args
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        String manifestDir = null;
+        String docuImageClass = ImageLoaderDocuImage.class.getName();
+        int a = 0;
+        while (a < args.length - 1 && args[a].startsWith("-")) {
+            if (args[a].equals("-m")) {
+                manifestDir = args[a + 1];
+            } else if (args[a].equals("-c")) {
+                docuImageClass = args[a + 1];
+            } else {
+                break;
+            }
+            a += 2;
+        }
+        if (a >= args.length || args[a].startsWith("-")) {
+            System.err.println("usage: ManifestGenerator [-m manifest-dir] [-c docuimage-class] basedir-list [path...]");
+            System.exit(1);
+        }
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.INFO);
+        ImageIO.scanForPlugins();
+        DocuImageFactory.setDocuImageClass((Class<DocuImage>) Class.forName(docuImageClass));
+        String[] baseDirNames = args[a++].split(File.pathSeparator);
+        ManifestGenerator gen = new ManifestGenerator(baseDirNames, manifestDir);
+        if (a == args.length) {
+            gen.updateTree("");
+        } else {
+            for (; a < args.length; ++a) {
+                gen.updateTree(FileOps.normalName(args[a]));
+            }
+        }
+        System.out.println("directories: " + gen.getNumDirs() + " manifests written: " + gen.getNumWritten()
+                + " images identified: " + gen.getNumIdentified() + " unchanged: " + gen.getNumReused());
+    }
+
+}
@@ -31,7 +31,6 @@ import org.apache.log4j.Logger;
 
 import digilib.io.Directory;
 import digilib.io.DocuDirectory;
-import digilib.io.DocuDirent;
 import digilib.io.FileOps.FileClass;
 
 /**
@@ -129,14 +128,13 @@ public class IndexMetaDirMeta implements DirMeta {
         }
         // iterate through the list of files in this directory
         for (int i = 0; i < ds; ++i) {
-            DocuDirent f = dir.get(i);
             // prepend path to the filename
-            String fn = path + f.getName();
+            String fn = path + dir.getName(i);
             // look up meta for this file and remove from dir
             MetadataMap meta = fileMeta.remove(fn);
             if (meta != null) {
                 // store meta in file
-                f.getMeta().setFileMeta(meta);
+                dir.setFileMeta(i, meta);
             }
         }
     }
@@ -0,0 +1,143 @@
+package digilib.util;
+
+/*
+ * #%L
+ * ConcurrencyLimiter -- adapts the number of parallel jobs to their latency.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Adapts a concurrency limit to the observed latency of the jobs (AIMD).
+ *
+ * The latencies of a window of finished jobs are averaged and compared to a
+ * slowly moving baseline. While the latency stays near the baseline and jobs
+ * are waiting the limit grows by one (more parallel jobs do not slow each
+ * other down, e.g. when they wait for I/O). When the latency rises clearly
+ * above the baseline the limit shrinks by a factor (the jobs compete for the
+ * CPU). The limit stays between the minimum and maximum.
+ */
+public class ConcurrencyLimiter {
+
+    /** increase the limit if the latency is below this factor of the baseline */
+    protected static final double INCREASE_THRESHOLD = 1.1;
+
+    /** decrease the limit if the latency is above this factor of the baseline */
+    protected static final double DECREASE_THRESHOLD = 1.5;
+
+    /** factor for decreasing the limit */
+    protected static final double DECREASE_FACTOR = 0.75;
+
+    /** weight of a new window for the baseline */
+    protected static final double BASELINE_WEIGHT = 0.05;
+
+    /** minimum number of samples per window */
+    protected static final int MIN_WINDOW = 5;
+
+    protected int minLimit;
+
+    protected int maxLimit;
+
+    protected int limit;
+
+    /** baseline latency */
+    protected double baseline = 0;
+
+    /** sum of the latencies in the current window */
+    protected double windowSum = 0;
+
+    /** number of samples in the current window */
+    protected int windowCount = 0;
+
+    /** jobs were waiting during the current window */
+    protected boolean windowQueued = false;
+
+    /**
+     * Creates a ConcurrencyLimiter.
+     *
+     * @param minLimit
+     * @param maxLimit
+     * @param initialLimit
+     */
+    public ConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.max(Math.min(initialLimit, this.maxLimit), this.minLimit);
+    }
+
+    /**
+     * Adds the latency of a finished job and returns the new limit.
+     *
+     * @param latency
+     *            latency of the job (ms or ms per unit of cost)
+     * @param queued
+     *            if jobs are waiting
+     * @return
+     */
+    public synchronized int update(double latency, boolean queued) {
+        windowSum += latency;
+        windowCount += 1;
+        windowQueued |= queued;
+        if (windowCount < Math.max(limit, MIN_WINDOW)) {
+            return limit;
+        }
+        double avg = windowSum / windowCount;
+        if (baseline == 0) {
+            baseline = avg;
+        } else if (avg > baseline * DECREASE_THRESHOLD) {
+            limit = Math.max((int) (limit * DECREASE_FACTOR), minLimit);
+        } else if (avg < baseline * INCREASE_THRESHOLD && windowQueued) {
+            limit = Math.min(limit + 1, maxLimit);
+        }
+        // follow lower latencies at once and higher latencies slowly
+        if (avg < baseline) {
+            baseline = avg;
+        } else {
+            baseline += BASELINE_WEIGHT * (avg - baseline);
+        }
+        windowSum = 0;
+        windowCount = 0;
+        windowQueued = false;
+        return limit;
+    }
+
+    /**
+     * @return the current limit
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the baseline latency
+     */
+    public synchronized double getBaseline() {
+        return baseline;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+}
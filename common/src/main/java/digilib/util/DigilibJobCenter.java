@@ -26,14 +26,40 @@ package digilib.util;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 /** Wrapper around ExecutionService.
+ * 
+ * Jobs are run by a fixed number of threads from a bounded queue. When the 
+ * queue is full new jobs are rejected with a RejectedExecutionException 
+ * (RejectionPolicy.ABORT) or run in the submitting thread 
+ * (RejectionPolicy.CALLER_RUNS).
+ * 
+ * Jobs can be submitted with a Priority and a client. Waiting jobs of a 
+ * higher Priority run first, jobs of the same Priority are taken from the 
+ * clients in turn (see FairJobQueue).
+ * 
+ * Waiting jobs that are cancelled are removed from the queue. Jobs that 
+ * implement ExpiringJob are dropped when they have expired at the time they 
+ * would be run.
+ * 
+ * If a cost budget is set jobs can be submitted with an estimated cost. A job
+ * only starts running when its cost fits into the budget left by the other
+ * running jobs, so more cheap jobs than expensive jobs run at the same time.
+ * Jobs wait for the budget in the queue, so waiting jobs do not hold threads
+ * and are admitted in the order of the queue.
+ * 
+ * The number of threads can adapt to the latency of the jobs between a 
+ * minimum and a maximum (see setAdaptiveThreads()).
  * 
  * @author casties
  *
@@ -41,14 +67,190 @@ import org.apache.log4j.Logger;
 public class DigilibJobCenter<V> {
     /** general logger for this class */
     private static Logger logger = Logger.getLogger("digilib.jobcenter");
+    
+    /** What to do with jobs when the queue is full. */
+    public static enum RejectionPolicy {
+        /** throw a RejectedExecutionException */
+        ABORT, 
+        /** run the job in the submitting thread */
+        CALLER_RUNS
+    }
+    
+    /** Classes of jobs, highest priority first. */
+    public static enum Priority {
+        /** interactive viewer requests */
+        INTERACTIVE,
+        /** small images */
+        THUMBNAIL,
+        /** images for PDF documents */
+        PDF,
+        /** prefetching and batch jobs */
+        PREFETCH
+    }
+    
+    /** Job that is no longer needed after some time, e.g. when its client 
+     * has gone away. Expired jobs are dropped from the queue. */
+    public static interface ExpiringJob {
+        /** Returns if the job is no longer needed. */
+        public boolean isExpired();
+    }
+    
+    /** FutureTask with a Priority, a client and a cost for the FairJobQueue. */
+    private class JobFuture<T> extends FutureTask<T> implements FairJobQueue.Job {
+        private Priority priority;
+        private String client;
+        private Object job;
+        /** number of budget permits */
+        private int permits;
+        /** budget the permits were taken from (or null) */
+        private Semaphore budget = null;
+        /** the job has been admitted */
+        private volatile boolean admitted = false;
+
+        public JobFuture(Callable<T> callable, Object job, int permits, Priority priority, String client) {
+            super(callable);
+            this.job = job;
+            this.permits = permits;
+            this.priority = priority;
+            this.client = client;
+        }
+
+        public JobFuture(Runnable runnable, T result, Object job, int permits, Priority priority, String client) {
+            super(runnable, result);
+            this.job = job;
+            this.permits = permits;
+            this.priority = priority;
+            this.client = client;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        /** Cancels the job and removes it from the queue if it is waiting. */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (super.cancel(mayInterruptIfRunning)) {
+                if (executor.remove(this)) {
+                    dropped.incrementAndGet();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /** Cancels the job if it has expired. Called when the job is dequeued. */
+        public boolean isExpired() {
+            if (isCancelled()) {
+                dropped.incrementAndGet();
+                return true;
+            }
+            if (job instanceof ExpiringJob && ((ExpiringJob) job).isExpired()) {
+                logger.debug(label + " dropping expired job");
+                super.cancel(false);
+                dropped.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /** Takes the permits from the budget if there is room. Called when
+         * the job is dequeued. */
+        public boolean admit() {
+            if (admitted) {
+                return true;
+            }
+            Semaphore b = costBudget;
+            if (permits > 0 && b != null) {
+                if (!b.tryAcquire(permits)) {
+                    return false;
+                }
+                budget = b;
+            }
+            admitted = true;
+            return true;
+        }
+
+        /** Runs the job and returns the permits to the budget. 
+         * 
+         * A job that has not been taken from the queue (by a new thread or
+         * the submitting thread) and does not fit into the budget is put 
+         * back into the queue. 
+         */
+        @Override
+        public void run() {
+            if (!admitted && !admit()) {
+                if (executor.getQueue().offer(this)) {
+                    return;
+                }
+                // queue is full: wait for the budget in this thread
+                Semaphore b = costBudget;
+                try {
+                    if (b != null) {
+                        b.acquire(permits);
+                        budget = b;
+                    }
+                    admitted = true;
+                } catch (InterruptedException e) {
+                    logger.warn(label + " interrupted waiting for budget");
+                    failed.incrementAndGet();
+                    setException(e);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            try {
+                super.run();
+            } finally {
+                if (budget != null) {
+                    budget.release(permits);
+                    budget = null;
+                    queue.retryAdmission();
+                }
+            }
+        }
+    }
+    
     /** ExecutorService */
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
+    /** queue of waiting jobs */
+    private FairJobQueue queue;
     /** max number of running threads */
     private int maxThreads = 1;
     /** max number of waiting threads */
     private int maxQueueLen = 50;
     /** label for this job center */
     private String label = "";
+    /** rejection policy */
+    private RejectionPolicy rejectionPolicy = RejectionPolicy.ABORT;
+    /** number of submitted jobs */
+    private AtomicLong submitted = new AtomicLong(0);
+    /** number of rejected jobs */
+    private AtomicLong rejected = new AtomicLong(0);
+    /** number of completed jobs */
+    private AtomicLong completed = new AtomicLong(0);
+    /** number of jobs that threw an exception */
+    private AtomicLong failed = new AtomicLong(0);
+    /** number of jobs that were cancelled or expired while waiting */
+    private AtomicLong dropped = new AtomicLong(0);
+    /** time jobs spent in the queue */
+    private Histogram queueTimes = new Histogram();
+    /** time jobs spent running */
+    private Histogram runTimes = new Histogram();
+    /** moving average of the run time (ms) */
+    private volatile double avgRunTime = 0;
+    /** units of cost per permit of the budget semaphore */
+    private static final long COST_UNIT = 1024;
+    /** budget for the cost of the running jobs (in COST_UNITs) */
+    private Semaphore costBudget = null;
+    /** size of the cost budget (in COST_UNITs) */
+    private int maxCostBudget = 0;
+    /** adaptive concurrency limit (or null) */
+    private volatile ConcurrencyLimiter limiter = null;
     
     /** Create a DigilibJobcenter with the given number of threads and queue length.
      * If prestart=true it starts the threads in the thread pool.
@@ -59,14 +261,48 @@ public class DigilibJobCenter<V> {
      * @param label
      */
     public DigilibJobCenter(int maxThreads, int maxQueueLen, boolean prestart, String label) {
+        this(maxThreads, maxQueueLen, prestart, label, RejectionPolicy.ABORT);
+    }
+    
+    /** Create a DigilibJobcenter with the given number of threads, queue length
+     * and RejectionPolicy.
+     * If prestart=true it starts the threads in the thread pool.
+     * 
+     * @param maxThreads
+     * @param maxQueueLen
+     * @param prestart
+     * @param label
+     * @param rejectionPolicy
+     */
+    public DigilibJobCenter(int maxThreads, int maxQueueLen, boolean prestart, String label,
+            RejectionPolicy rejectionPolicy) {
         super();
         this.label = (label != null) ? label : "";
         this.maxThreads = maxThreads;
         this.maxQueueLen = maxQueueLen;
-        executor = Executors.newFixedThreadPool(maxThreads);
+        this.rejectionPolicy = rejectionPolicy;
+        RejectedExecutionHandler handler;
+        if (rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+            handler = new ThreadPoolExecutor.CallerRunsPolicy() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                    rejected.incrementAndGet();
+                    super.rejectedExecution(r, e);
+                }
+            };
+        } else {
+            handler = new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException(DigilibJobCenter.this.label + " queue full");
+                }
+            };
+        }
+        queue = new FairJobQueue(Math.max(maxQueueLen, 1));
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue, handler);
         if (prestart) {
             // prestart threads so Tomcat's leak protection doesn't complain
-            int st = ((ThreadPoolExecutor)executor).prestartAllCoreThreads();
+            int st = executor.prestartAllCoreThreads();
             logger.debug(label+" prestarting threads: "+st);
         }
     }
@@ -75,18 +311,207 @@ public class DigilibJobCenter<V> {
      * 
      * @param job
      * @return Future to control the job
+     * @throws RejectedExecutionException if the queue is full 
      */
-    public Future<V> submit(Callable<V> job) {
-        return executor.submit(job);
+    public Future<V> submit(final Callable<V> job) {
+        return submit(job, 0);
+    }
+
+    /** Submit Callable job with the estimated cost to execute.
+     * 
+     * The job waits in the queue until its cost fits into the cost budget.
+     * 
+     * @param job
+     * @param cost
+     * @return Future to control the job
+     * @throws RejectedExecutionException if the queue is full 
+     */
+    public Future<V> submit(final Callable<V> job, long cost) {
+        return submit(job, cost, Priority.INTERACTIVE, null);
+    }
+
+    /** Submit Callable job with the estimated cost, the Priority and the 
+     * client to execute.
+     * 
+     * @param job
+     * @param cost
+     * @param priority
+     * @param client
+     * @return Future to control the job
+     * @throws RejectedExecutionException if the queue is full 
+     */
+    public Future<V> submit(final Callable<V> job, final long cost, Priority priority, String client) {
+        final long submitTime = System.currentTimeMillis();
+        final int permits = getPermits(cost);
+        submitted.incrementAndGet();
+        JobFuture<V> future = new JobFuture<V>(new Callable<V>() {
+            public V call() throws Exception {
+                long startTime = jobStarted(submitTime);
+                boolean ok = false;
+                try {
+                    V result = job.call();
+                    ok = true;
+                    return result;
+                } finally {
+                    jobFinished(startTime, cost, ok);
+                }
+            }
+        }, job, permits, priority, client);
+        executor.execute(future);
+        return future;
     }
 
     /** Submit Runnable job to execute.
      * 
      * @param job
      * @return Future to control the job
+     * @throws RejectedExecutionException if the queue is full 
+     */
+    public Future<?> submit(final Runnable job) {
+        return submit(job, 0);
+    }
+
+    /** Submit Runnable job with the estimated cost to execute.
+     * 
+     * The job waits in the queue until its cost fits into the cost budget.
+     * 
+     * @param job
+     * @param cost
+     * @return Future to control the job
+     * @throws RejectedExecutionException if the queue is full 
+     */
+    public Future<?> submit(final Runnable job, long cost) {
+        return submit(job, cost, Priority.INTERACTIVE, null);
+    }
+
+    /** Submit Runnable job with the estimated cost, the Priority and the 
+     * client to execute.
+     * 
+     * @param job
+     * @param cost
+     * @param priority
+     * @param client
+     * @return Future to control the job
+     * @throws RejectedExecutionException if the queue is full 
+     */
+    public Future<?> submit(final Runnable job, final long cost, Priority priority, String client) {
+        final long submitTime = System.currentTimeMillis();
+        final int permits = getPermits(cost);
+        submitted.incrementAndGet();
+        JobFuture<Object> future = new JobFuture<Object>(new Runnable() {
+            public void run() {
+                long startTime = jobStarted(submitTime);
+                boolean ok = false;
+                try {
+                    job.run();
+                    ok = true;
+                } finally {
+                    jobFinished(startTime, cost, ok);
+                }
+            }
+        }, null, job, permits, priority, client);
+        executor.execute(future);
+        return future;
+    }
+
+    /** Returns the number of budget permits for the cost.
+     * 
+     * Jobs cost at least one permit and at most the whole budget.
+     * 
+     * @param cost
+     * @return
+     */
+    private int getPermits(long cost) {
+        int max = maxCostBudget;
+        if (max == 0) {
+            return 0;
+        }
+        return (int) Math.max(1, Math.min((cost + COST_UNIT - 1) / COST_UNIT, max));
+    }
+
+    /** Records the time a job waited in the queue. 
+     * 
+     * @param submitTime
+     * @return the start time
+     */
+    private long jobStarted(long submitTime) {
+        long now = System.currentTimeMillis();
+        queueTimes.add(now - submitTime);
+        return now;
+    }
+
+    /** Records the run time of a job and adapts the concurrency limit.
+     * 
+     * @param startTime
+     * @param cost
+     * @param ok
+     */
+    private void jobFinished(long startTime, long cost, boolean ok) {
+        long rt = System.currentTimeMillis() - startTime;
+        runTimes.add(rt);
+        // exponentially weighted moving average
+        double avg = avgRunTime;
+        avgRunTime = (avg == 0) ? rt : avg + 0.05 * (rt - avg);
+        if (ok) {
+            completed.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        ConcurrencyLimiter cl = limiter;
+        if (cl != null && ok) {
+            // latency per megapixel for jobs with a cost
+            double latency = (cost > 0) ? rt / Math.max(cost / (1024d * 1024d), 1d) : rt;
+            setPoolSize(cl.update(latency, getWaitingJobs() > 0));
+        }
+    }
+
+    /** Sets the number of threads to the limit.
+     * 
+     * @param limit
+     */
+    private synchronized void setPoolSize(int limit) {
+        int current = executor.getCorePoolSize();
+        if (limit > current) {
+            executor.setMaximumPoolSize(limit);
+            executor.setCorePoolSize(limit);
+            logger.debug(label + " concurrency limit increased to " + limit);
+        } else if (limit < current) {
+            executor.setCorePoolSize(limit);
+            executor.setMaximumPoolSize(limit);
+            logger.debug(label + " concurrency limit decreased to " + limit);
+        }
+    }
+
+    /** Adapts the number of threads between minThreads and maxThreads to the 
+     * latency of the jobs (see ConcurrencyLimiter).
+     * 
+     * Starts with the current number of threads.
+     * 
+     * @param minThreads
+     * @param maxThreads
+     */
+    public void setAdaptiveThreads(int minThreads, int maxThreads) {
+        ConcurrencyLimiter cl = new ConcurrencyLimiter(minThreads, maxThreads, executor.getCorePoolSize());
+        this.maxThreads = cl.getMaxLimit();
+        setPoolSize(cl.getLimit());
+        limiter = cl;
+    }
+
+    /** Returns the current number of threads.
+     * 
+     * Changes when adaptive threads are used.
+     * 
+     * @return
+     */
+    public int getConcurrencyLimit() {
+        return executor.getCorePoolSize();
+    }
+
+    /** Returns if the number of threads is adaptive.
+     * @return
      */
-    public Future<?> submit(Runnable job) {
-        return executor.submit(job);
+    public boolean isAdaptive() {
+        return limiter != null;
     }
 
     /** Returns if the service is overloaded.
@@ -97,21 +522,38 @@ public class DigilibJobCenter<V> {
         int jql = getWaitingJobs();
         int jrl = getRunningJobs();
         logger.debug(label+" isBusy: waiting jobs="+jql+" running jobs="+jrl);
-        return (jql > maxQueueLen);
+        return (jql >= maxQueueLen);
+    }
+    
+    /** Returns the number of seconds after which a rejected job should be 
+     * retried. 
+     * 
+     * Estimated from the average run time of the jobs and the current length
+     * of the queue (at least 1s). 
+     * 
+     * @return
+     */
+    public int getRetryAfter() {
+        double avg = avgRunTime;
+        if (avg == 0) {
+            return 1;
+        }
+        double wait = (getWaitingJobs() + getRunningJobs()) * avg / Math.max(getConcurrencyLimit(), 1) / 1000d;
+        return (int) Math.max(1, Math.min(Math.ceil(wait), 120));
     }
     
     /** Returns the number of currently running jobs.
      * @return
      */
     public int getRunningJobs() {
-        return ((ThreadPoolExecutor)executor).getActiveCount();
+        return executor.getActiveCount();
     }
     
     /** Returns the number of currently waiting jobs.
      * @return
      */
     public int getWaitingJobs() {
-        BlockingQueue<Runnable> jq = ((ThreadPoolExecutor)executor).getQueue();
+        BlockingQueue<Runnable> jq = executor.getQueue();
         int jql = jq.size();
         return jql;
     }
@@ -132,6 +574,115 @@ public class DigilibJobCenter<V> {
         return maxQueueLen;
     }
 
+    /** Sets the budget for the estimated cost of the running jobs 
+     * (0 means no budget). 
+     * 
+     * Should be set before jobs are submitted.
+     * 
+     * @param budget
+     */
+    public void setCostBudget(long budget) {
+        int max = (int) Math.min(budget / COST_UNIT, Integer.MAX_VALUE);
+        if (max > 0) {
+            // jobs are admitted in the order of the queue
+            costBudget = new Semaphore(max);
+        } else {
+            costBudget = null;
+        }
+        maxCostBudget = max;
+    }
+
+    /** Returns the budget for the estimated cost of the running jobs.
+     * @return
+     */
+    public long getCostBudget() {
+        return maxCostBudget * COST_UNIT;
+    }
+
+    /** Returns the estimated cost of the running jobs.
+     * @return
+     */
+    public long getUsedCostBudget() {
+        Semaphore budget = costBudget;
+        if (budget == null) {
+            return 0;
+        }
+        return (maxCostBudget - budget.availablePermits()) * COST_UNIT;
+    }
+
+    /** Sets the max number of waiting jobs per client (0 means no limit).
+     * 
+     * @param maxQueueLenPerClient
+     */
+    public void setMaxQueueLenPerClient(int maxQueueLenPerClient) {
+        queue.setMaxPerClient(maxQueueLenPerClient);
+    }
+
+    public int getMaxQueueLenPerClient() {
+        return queue.getMaxPerClient();
+    }
+
+    /** Returns the number of clients with waiting jobs.
+     * @return
+     */
+    public int getWaitingClients() {
+        return queue.getNumClients();
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    /** Returns the number of submitted jobs (including rejected jobs).
+     * @return
+     */
+    public long getSubmittedJobs() {
+        return submitted.get();
+    }
+
+    /** Returns the number of rejected jobs.
+     * @return
+     */
+    public long getRejectedJobs() {
+        return rejected.get();
+    }
+
+    /** Returns the number of successfully completed jobs.
+     * @return
+     */
+    public long getCompletedJobs() {
+        return completed.get();
+    }
+
+    /** Returns the number of jobs that were cancelled or expired before 
+     * they were run.
+     * @return
+     */
+    public long getDroppedJobs() {
+        return dropped.get();
+    }
+
+    /** Returns the number of jobs that ended with an exception.
+     * @return
+     */
+    public long getFailedJobs() {
+        return failed.get();
+    }
+
+    /** Returns the histogram of the time jobs waited in the queue.
+     * @return
+     */
+    public Histogram getQueueTimes() {
+        return queueTimes;
+    }
+
+    /** Returns the histogram of the run time of the jobs.
+     * @return
+     */
+    public Histogram getRunTimes() {
+        return runTimes;
+    }
+
     /** Shuts down the Executor. 
      * Tries to stop running threads and returns a list of waiting threads.
      * 
@@ -0,0 +1,548 @@
+package digilib.util;
+
+/*
+ * #%L
+ * FairJobQueue -- job queue with priorities and per-client round robin.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import digilib.util.DigilibJobCenter.Priority;
+
+/**
+ * Bounded BlockingQueue for the jobs of a DigilibJobCenter.
+ *
+ * Jobs of a higher Priority are always taken first. Jobs of the same
+ * Priority are taken round robin from the clients that have waiting jobs, so
+ * a client with many jobs does not delay the jobs of other clients. The
+ * number of waiting jobs per client can be limited.
+ *
+ * Jobs that do not implement FairJobQueue.Job have Priority.INTERACTIVE and
+ * an anonymous client. Expired jobs are skipped when they are taken.
+ *
+ * A job is only taken when it can be admitted (see Job.admit()). Until then
+ * the next job and all jobs after it stay in the queue and the threads wait
+ * without holding a job until retryAdmission() is called.
+ */
+public class FairJobQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /** Job with a priority and a client. */
+    public static interface Job {
+        public Priority getPriority();
+
+        public String getClient();
+
+        /** Returns if the job should be dropped instead of run. */
+        public boolean isExpired();
+
+        /**
+         * Reserves the resources to run the job. Returns false if the job has
+         * to wait.
+         */
+        public boolean admit();
+    }
+
+    /** max number of waiting jobs */
+    private final int capacity;
+
+    /** max number of waiting jobs per client (0 means no limit) */
+    private volatile int maxPerClient = 0;
+
+    /** number of waiting jobs */
+    private int count = 0;
+
+    /** waiting jobs by client for each priority */
+    private final List<Map<String, ArrayDeque<Runnable>>> jobs;
+
+    /** clients with waiting jobs in round robin order for each priority */
+    private final List<ArrayDeque<String>> clients;
+
+    /** number of waiting jobs by client */
+    private final Map<String, Integer> clientCounts = new HashMap<String, Integer>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Creates a FairJobQueue for capacity jobs.
+     *
+     * @param capacity
+     */
+    public FairJobQueue(int capacity) {
+        this.capacity = capacity;
+        int np = Priority.values().length;
+        jobs = new ArrayList<Map<String, ArrayDeque<Runnable>>>(np);
+        clients = new ArrayList<ArrayDeque<String>>(np);
+        for (int i = 0; i < np; ++i) {
+            jobs.add(new HashMap<String, ArrayDeque<Runnable>>());
+            clients.add(new ArrayDeque<String>());
+        }
+    }
+
+    /**
+     * @return the max number of waiting jobs per client
+     */
+    public int getMaxPerClient() {
+        return maxPerClient;
+    }
+
+    /**
+     * Sets the max number of waiting jobs per client (0 means no limit).
+     *
+     * @param maxPerClient
+     */
+    public void setMaxPerClient(int maxPerClient) {
+        this.maxPerClient = maxPerClient;
+    }
+
+    /**
+     * Returns the number of waiting jobs of the client.
+     *
+     * @param client
+     * @return
+     */
+    public int getClientCount(String client) {
+        lock.lock();
+        try {
+            Integer c = clientCounts.get(client);
+            return (c != null) ? c : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of clients with waiting jobs.
+     *
+     * @return
+     */
+    public int getNumClients() {
+        lock.lock();
+        try {
+            return clientCounts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected static Priority getPriority(Runnable job) {
+        if (job instanceof Job) {
+            Priority p = ((Job) job).getPriority();
+            if (p != null) {
+                return p;
+            }
+        }
+        return Priority.INTERACTIVE;
+    }
+
+    protected static String getClient(Runnable job) {
+        if (job instanceof Job) {
+            String c = ((Job) job).getClient();
+            if (c != null) {
+                return c;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Adds the job if there is room. Must hold the lock.
+     *
+     * @param job
+     * @return
+     */
+    private boolean enqueue(Runnable job) {
+        if (count >= capacity) {
+            return false;
+        }
+        String client = getClient(job);
+        Integer cc = clientCounts.get(client);
+        int mpc = maxPerClient;
+        if (mpc > 0 && cc != null && cc >= mpc) {
+            return false;
+        }
+        int p = getPriority(job).ordinal();
+        Map<String, ArrayDeque<Runnable>> pj = jobs.get(p);
+        ArrayDeque<Runnable> cj = pj.get(client);
+        if (cj == null) {
+            cj = new ArrayDeque<Runnable>();
+            pj.put(client, cj);
+            clients.get(p).addLast(client);
+        }
+        cj.addLast(job);
+        clientCounts.put(client, (cc != null) ? cc + 1 : 1);
+        ++count;
+        notEmpty.signal();
+        return true;
+    }
+
+    /**
+     * Removes and returns the next job that has not expired and that can be
+     * admitted. Expired jobs are dropped. Returns null if the next job can
+     * not be admitted yet. Must hold the lock.
+     *
+     * @return
+     */
+    private Runnable dequeue() {
+        for (int p = 0; p < clients.size(); ++p) {
+            ArrayDeque<String> pc = clients.get(p);
+            while (!pc.isEmpty()) {
+                Runnable job = jobs.get(p).get(pc.peekFirst()).peekFirst();
+                if (job instanceof Job) {
+                    if (((Job) job).isExpired()) {
+                        dequeueFirst(p);
+                        continue;
+                    }
+                    if (!((Job) job).admit()) {
+                        // the next job has to wait
+                        return null;
+                    }
+                }
+                return dequeueFirst(p);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the next job. Must hold the lock.
+     *
+     * @return
+     */
+    private Runnable dequeueNext() {
+        for (int p = 0; p < clients.size(); ++p) {
+            if (!clients.get(p).isEmpty()) {
+                return dequeueFirst(p);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the next job of the priority. Must hold the lock.
+     *
+     * @param p
+     * @return
+     */
+    private Runnable dequeueFirst(int p) {
+        ArrayDeque<String> pc = clients.get(p);
+        String client = pc.pollFirst();
+        Map<String, ArrayDeque<Runnable>> pj = jobs.get(p);
+        ArrayDeque<Runnable> cj = pj.get(client);
+        Runnable job = cj.pollFirst();
+        if (cj.isEmpty()) {
+            pj.remove(client);
+        } else {
+            // next job of this client after the other clients
+            pc.addLast(client);
+        }
+        removed(client);
+        return job;
+    }
+
+    /**
+     * Wakes up the threads waiting for a job to try to admit the next job
+     * again, e.g. after the resources of a job have been released.
+     */
+    public void retryAdmission() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the job to a thread and lets the next waiting thread try the
+     * remaining jobs. Must hold the lock.
+     *
+     * @param job
+     * @return
+     */
+    private Runnable taken(Runnable job) {
+        if (count > 0) {
+            notEmpty.signal();
+        }
+        return job;
+    }
+
+    /**
+     * Updates the counts after removing a job of the client. Must hold the
+     * lock.
+     *
+     * @param client
+     */
+    private void removed(String client) {
+        int cc = clientCounts.get(client);
+        if (cc > 1) {
+            clientCounts.put(client, cc - 1);
+        } else {
+            clientCounts.remove(client);
+        }
+        --count;
+        notFull.signalAll();
+    }
+
+    @Override
+    public boolean offer(Runnable job) {
+        if (job == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            return enqueue(job);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable job) throws InterruptedException {
+        if (job == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(job)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable job, long timeout, TimeUnit unit) throws InterruptedException {
+        if (job == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(job)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                while (count == 0) {
+                    notEmpty.await();
+                }
+                Runnable job = dequeue();
+                if (job != null) {
+                    return taken(job);
+                }
+                if (count > 0) {
+                    // wait until the next job can be admitted
+                    notEmpty.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                while (count == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                Runnable job = dequeue();
+                if (job != null) {
+                    return taken(job);
+                }
+                if (count > 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    // wait until the next job can be admitted
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (int p = 0; p < clients.size(); ++p) {
+                String client = clients.get(p).peekFirst();
+                if (client != null) {
+                    return jobs.get(p).get(client).peekFirst();
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable)) {
+            return false;
+        }
+        Runnable job = (Runnable) o;
+        lock.lock();
+        try {
+            int p = getPriority(job).ordinal();
+            String client = getClient(job);
+            ArrayDeque<Runnable> cj = jobs.get(p).get(client);
+            if (cj == null || !cj.remove(job)) {
+                return false;
+            }
+            if (cj.isEmpty()) {
+                jobs.get(p).remove(client);
+                clients.get(p).remove(client);
+            }
+            removed(client);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeueNext());
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a copy of the waiting jobs (by priority and
+     * client).
+     *
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> all = new ArrayList<Runnable>(count);
+            for (int p = 0; p < clients.size(); ++p) {
+                for (String client : clients.get(p)) {
+                    all.addAll(jobs.get(p).get(client));
+                }
+            }
+            final Iterator<Runnable> it = all.iterator();
+            return new Iterator<Runnable>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public Runnable next() {
+                    return it.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+package digilib.util;
+
+/*
+ * #%L
+ * Histogram -- counts of durations in exponential buckets.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in milliseconds.
+ *
+ * Bucket 0 counts durations below 1ms, bucket i durations from 2^(i-1) to
+ * 2^i ms. The last bucket counts all longer durations. Updates are lock-free.
+ */
+public class Histogram {
+
+    /** number of buckets (the last bucket is for durations above 2^(NUM_BUCKETS-2) ms) */
+    public static final int NUM_BUCKETS = 20;
+
+    protected AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+    protected AtomicLong count = new AtomicLong(0);
+
+    protected AtomicLong sum = new AtomicLong(0);
+
+    /**
+     * Adds a duration.
+     *
+     * @param millis
+     */
+    public void add(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts.incrementAndGet(getBucket(millis));
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+    }
+
+    /**
+     * Returns the index of the bucket for the duration.
+     *
+     * @param millis
+     * @return
+     */
+    protected static int getBucket(long millis) {
+        int b = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(b, NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Returns the upper bound of the bucket (ms, Long.MAX_VALUE for the last
+     * bucket).
+     *
+     * @param bucket
+     * @return
+     */
+    public static long getBucketLimit(int bucket) {
+        if (bucket >= NUM_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << bucket;
+    }
+
+    /**
+     * @param bucket
+     * @return the number of durations in the bucket
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @return the number of durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean duration (ms)
+     */
+    public long getMean() {
+        long n = count.get();
+        return (n > 0) ? sum.get() / n : 0;
+    }
+
+    /**
+     * Returns the upper bound of the bucket that contains the given
+     * percentile (ms).
+     *
+     * @param percent
+     * @return
+     */
+    public long getPercentile(double percent) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long limit = (long) Math.ceil(n * percent / 100d);
+        long c = 0;
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            c += counts.get(i);
+            if (c >= limit) {
+                return getBucketLimit(i);
+            }
+        }
+        return getBucketLimit(NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Returns the non-empty buckets as "<limit:count" pairs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            long c = counts.get(i);
+            if (c > 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                if (i < NUM_BUCKETS - 1) {
+                    sb.append('<').append(getBucketLimit(i));
+                } else {
+                    sb.append('>').append(getBucketLimit(i - 1));
+                }
+                sb.append("ms:").append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+}
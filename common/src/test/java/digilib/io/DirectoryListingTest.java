@@ -0,0 +1,79 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DirectoryListingTest -- tests for reading directory listings.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeNoException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import digilib.io.FileOps.FileClass;
+
+/**
+ * Tests for DirectoryListing.
+ */
+public class DirectoryListingTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSymbolicLinks() throws Exception {
+        File target = tmp.newFolder("target");
+        File tf = new File(target, "p001.jpg");
+        FileOutputStream out = new FileOutputStream(tf);
+        out.write(new byte[100]);
+        out.close();
+        File dir = tmp.newFolder("dir");
+        new File(dir, "p002.jpg").createNewFile();
+        try {
+            Files.createSymbolicLink(new File(dir, "p001.jpg").toPath(), tf.toPath());
+            Files.createSymbolicLink(new File(dir, "sub").toPath(), target.toPath());
+        } catch (IOException e) {
+            assumeNoException(e);
+        } catch (UnsupportedOperationException e) {
+            assumeNoException(e);
+        }
+        DirectoryListing dl = DirectoryListing.read(dir, FileClass.IMAGE, true);
+        assertNotNull(dl);
+        // linked files are listed with the attributes of their target
+        assertArrayEquals(new String[] { "p001.jpg", "p002.jpg" }, dl.names);
+        assertEquals(100, dl.lengths[0]);
+        assertEquals(tf.lastModified(), dl.mtimes[0]);
+        // the same files without attributes
+        dl = DirectoryListing.read(dir, FileClass.IMAGE, false);
+        assertArrayEquals(new String[] { "p001.jpg", "p002.jpg" }, dl.names);
+    }
+
+}
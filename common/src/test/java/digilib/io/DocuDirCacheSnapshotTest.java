@@ -0,0 +1,92 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DocuDirCacheSnapshotTest -- tests for the directory cache snapshot.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.io.FileOps.FileClass;
+
+/**
+ * Tests for DocuDirCacheSnapshot.
+ */
+public class DocuDirCacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** first (full size) base directory */
+    protected File baseDir;
+    /** second (prescaled) base directory */
+    protected File scaledDir;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Before
+    public void setUp() throws Exception {
+        baseDir = tmp.newFolder("base");
+        scaledDir = tmp.newFolder("scaled");
+        File bd = new File(baseDir, "doc");
+        File sd = new File(scaledDir, "doc");
+        bd.mkdir();
+        sd.mkdir();
+        new File(bd, "p001.tif").createNewFile();
+        new File(bd, "p002.jpg").createNewFile();
+        new File(sd, "p001.jpg").createNewFile();
+        new File(sd, "p002.jpg").createNewFile();
+        DigilibConfiguration dlConfig = new DigilibConfiguration();
+        dlConfig.newParameter("basedir-list", new String[] { baseDir.getPath(), scaledDir.getPath() }, null, 's');
+        DocuDirectoryFactory.setDigilibConfig(dlConfig);
+        DocuDirectoryFactory.setDocuDirectoryClass((Class) BaseDirDocuDirectory.class);
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, null);
+        assertNotNull(cache.getFile("doc", 1));
+        File file = new File(tmp.getRoot(), "dircache.snapshot");
+        assertEquals(1, DocuDirCacheSnapshot.write(cache, file));
+        DocuDirCache restored = new DocuDirCache(FileClass.IMAGE, null);
+        assertEquals(1, DocuDirCacheSnapshot.read(restored, file));
+        DocuDirectory dd = restored.map.get("doc");
+        assertNotNull(dd);
+        String[][] files = { { "p001.tif", "p001.jpg" }, { "p002.jpg", "p002.jpg" } };
+        assertEquals(files.length, dd.size());
+        for (int i = 0; i < files.length; ++i) {
+            ImageFileSet fs = (ImageFileSet) dd.get(i);
+            assertEquals(2, fs.size());
+            assertEquals(new File(new File(baseDir, "doc"), files[i][0]), ((ImageFile) fs.get(0)).getFile());
+            assertEquals(new File(new File(scaledDir, "doc"), files[i][1]), ((ImageFile) fs.get(1)).getFile());
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package digilib.io;
+
+/*
+ * #%L
+ * DocuDirCacheTest -- tests for the directory cache.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.io.FileOps.FileClass;
+
+/**
+ * Tests for DocuDirCache.
+ */
+public class DocuDirCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    protected File baseDir;
+
+    protected DigilibConfiguration dlConfig;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Before
+    public void setUp() throws Exception {
+        baseDir = tmp.newFolder("base");
+        File a = new File(baseDir, "a");
+        File b = new File(a, "b");
+        b.mkdirs();
+        for (int i = 1; i <= 3; ++i) {
+            new File(a, "a" + i + ".jpg").createNewFile();
+        }
+        for (int i = 1; i <= 2; ++i) {
+            new File(b, "b" + i + ".jpg").createNewFile();
+        }
+        dlConfig = new DigilibConfiguration();
+        dlConfig.newParameter("basedir-list", new String[] { baseDir.getPath() }, null, 's');
+        DocuDirectoryFactory.setDigilibConfig(dlConfig);
+        DocuDirectoryFactory.setDocuDirectoryClass((Class) BaseDirDocuDirectory.class);
+    }
+
+    /**
+     * Waits until the background read of the directory has finished.
+     *
+     * @param dd
+     * @throws InterruptedException
+     */
+    protected static void waitForReread(DocuDirectory dd) throws InterruptedException {
+        for (int i = 0; i < 100 && dd.rereadPending.get(); ++i) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testNumFiles() throws Exception {
+        DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, dlConfig);
+        assertNotNull(cache.getFile("a/b", 1));
+        // the parent is in the cache but has not been read
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getNumFiles());
+        DocuDirectory a = cache.getDirectory("a");
+        assertEquals(3, a.size());
+        assertEquals(5, cache.getNumFiles());
+        // add a file and read the directory again
+        File ad = new File(baseDir, "a");
+        new File(ad, "a4.jpg").createNewFile();
+        ad.setLastModified(a.getDirMTime() + 10000);
+        cache.getDirectory("a");
+        waitForReread(a);
+        assertEquals(4, cache.getDirectory("a").size());
+        assertEquals(6, cache.getNumFiles());
+    }
+
+    @Test
+    public void testWatchedReread() throws Exception {
+        DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, dlConfig);
+        DocuDirectory a = cache.getDirectory("a");
+        assertEquals(3, a.size());
+        a.setWatched(true);
+        cache.getDirectory("a");
+        waitForReread(a);
+        // add a file without changing the modification time of the directory
+        File ad = new File(baseDir, "a");
+        long mtime = ad.lastModified();
+        new File(ad, "a4.jpg").createNewFile();
+        ad.setLastModified(mtime);
+        a.invalidate();
+        cache.getDirectory("a");
+        waitForReread(a);
+        assertEquals(4, cache.getDirectory("a").size());
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        dlConfig.setValue("dircache-max-files", 4);
+        DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, dlConfig);
+        assertNotNull(cache.getFile("a/b", 1));
+        assertEquals(2, cache.getNumFiles());
+        // reading the parent goes over the limit and evicts the child
+        cache.getDirectory("a");
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.getNumFiles());
+        assertEquals(1, cache.getEvictions());
+    }
+
+
+    @Test
+    public void testEvictOldest() throws Exception {
+        for (int i = 1; i <= 5; ++i) {
+            File c = new File(baseDir, "c" + i);
+            c.mkdir();
+            new File(c, "c.jpg").createNewFile();
+        }
+        dlConfig.setValue("dircache-max-files", 4);
+        DocuDirCache cache = new DocuDirCache(FileClass.IMAGE, dlConfig);
+        DocuDirectory[] dds = new DocuDirectory[4];
+        for (int i = 0; i < 4; ++i) {
+            dds[i] = cache.getDirectory("c" + (i + 1));
+        }
+        // c2 has not been used for the longest time
+        dds[0].objectATime = 40;
+        dds[1].objectATime = 10;
+        dds[2].objectATime = 30;
+        dds[3].objectATime = 20;
+        // the fifth file goes over the limit and evicts the oldest
+        cache.getDirectory("c5");
+        assertEquals(1, cache.getEvictions());
+        assertEquals(4, cache.getNumFiles());
+        assertNull(cache.map.get("c2"));
+        assertSame(dds[0], cache.map.get("c1"));
+        assertSame(dds[2], cache.map.get("c3"));
+        assertSame(dds[3], cache.map.get("c4"));
+    }
+
+}
@@ -0,0 +1,135 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ManifestDocuDirectoryTest -- tests for directories read from a manifest.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.io.FileOps.FileClass;
+
+/**
+ * Tests for ManifestDocuDirectory.
+ */
+public class ManifestDocuDirectoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** first (full size) base directory */
+    protected File baseDir;
+    /** second (prescaled) base directory */
+    protected File scaledDir;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Before
+    public void setUp() throws Exception {
+        baseDir = tmp.newFolder("base");
+        scaledDir = tmp.newFolder("scaled");
+        new File(baseDir, "doc").mkdir();
+        new File(scaledDir, "doc").mkdir();
+        DigilibConfiguration dlConfig = new DigilibConfiguration();
+        dlConfig.newParameter("basedir-list", new String[] { baseDir.getPath(), scaledDir.getPath() }, null, 's');
+        DocuDirectoryFactory.setDigilibConfig(dlConfig);
+        DocuDirectoryFactory.setDocuDirectoryClass((Class) ManifestDocuDirectory.class);
+    }
+
+    /**
+     * Returns the manifest entries for two images with prescaled versions
+     * (one with a different extension).
+     *
+     * @return
+     */
+    public static List<DirectoryManifest.Entry> getEntries() {
+        List<DirectoryManifest.Entry> entries = new ArrayList<DirectoryManifest.Entry>();
+        entries.add(new DirectoryManifest.Entry("p001.tif", 0, "p001.tif", 1000, 1, 4000, 3000, "image/tiff"));
+        entries.add(new DirectoryManifest.Entry("p001.tif", 1, "p001.jpg", 100, 1, 400, 300, "image/jpeg"));
+        entries.add(new DirectoryManifest.Entry("p002.jpg", 0, "p002.jpg", 1000, 1, 4000, 3000, "image/jpeg"));
+        entries.add(new DirectoryManifest.Entry("p002.jpg", 1, "p002.jpg", 100, 1, 400, 300, "image/jpeg"));
+        return entries;
+    }
+
+    /**
+     * Checks that the images of the directory resolve to the files from the
+     * manifest in both base directories.
+     *
+     * @param dd
+     * @param baseDir
+     * @param scaledDir
+     * @param dirName
+     *            the directory name in the base directories
+     */
+    public static void assertPrescaledFiles(DocuDirectory dd, File baseDir, File scaledDir, String dirName) {
+        assertEquals(2, dd.size());
+        String[][] files = { { "p001.tif", "p001.jpg" }, { "p002.jpg", "p002.jpg" } };
+        for (int i = 0; i < files.length; ++i) {
+            ImageFileSet fs = (ImageFileSet) dd.get(i);
+            assertNotNull(fs);
+            assertEquals(2, fs.size());
+            assertEquals(new File(new File(baseDir, dirName), files[i][0]), ((ImageFile) fs.get(0)).getFile());
+            assertEquals(new File(new File(scaledDir, dirName), files[i][1]), ((ImageFile) fs.get(1)).getFile());
+            assertEquals(400, fs.get(1).getSize().getWidth());
+        }
+    }
+
+    @Test
+    public void testReadManifest() throws Exception {
+        File mf = DirectoryManifest.getManifestFile("", baseDir.getPath(), "doc");
+        new DirectoryManifest(getEntries()).write(mf);
+        DocuDirectory dd = DocuDirectoryFactory.getDocuDirectoryInstance("doc", FileClass.IMAGE);
+        assertTrue(dd.isValid());
+        assertTrue(dd.readDir());
+        assertPrescaledFiles(dd, baseDir, scaledDir, "doc");
+    }
+
+
+    @Test
+    public void testRereadManifest() throws Exception {
+        File mf = DirectoryManifest.getManifestFile("", baseDir.getPath(), "doc");
+        new DirectoryManifest(getEntries()).write(mf);
+        DocuDirectory dd = DocuDirectoryFactory.getDocuDirectoryInstance("doc", FileClass.IMAGE);
+        assertTrue(dd.readDir());
+        assertEquals(2, dd.size());
+        // rewrite the manifest without changing its modification time
+        long mtime = mf.lastModified();
+        new DirectoryManifest(getEntries().subList(0, 2)).write(mf);
+        mf.setLastModified(mtime);
+        assertTrue(dd.readDir());
+        assertEquals(2, dd.size());
+        assertTrue(dd.rereadDir());
+        assertEquals(1, dd.size());
+    }
+
+}
@@ -0,0 +1,123 @@
+package digilib.util;
+
+/*
+ * #%L
+ * DigilibJobCenterTest -- tests for the job center.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import digilib.util.DigilibJobCenter.Priority;
+
+/**
+ * Tests for DigilibJobCenter.
+ */
+public class DigilibJobCenterTest {
+
+    /** cost of one budget permit */
+    protected static final long UNIT = 1024;
+
+    protected DigilibJobCenter<Object> jobCenter;
+
+    @After
+    public void tearDown() {
+        if (jobCenter != null) {
+            jobCenter.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns a job that waits for the latch and adds its name to the list.
+     *
+     * @param name
+     * @param latch
+     * @param order
+     * @return
+     */
+    protected static Runnable getJob(final String name, final CountDownLatch latch, final List<String> order) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testBudgetAdmission() throws Exception {
+        jobCenter = new DigilibJobCenter<Object>(2, 10, true, "test");
+        jobCenter.setCostBudget(2 * UNIT);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch rest = new CountDownLatch(0);
+        Future<?> a = jobCenter.submit(getJob("a", first, order), 2 * UNIT, Priority.PREFETCH, "x");
+        Future<?> b = jobCenter.submit(getJob("b", rest, order), 2 * UNIT, Priority.PREFETCH, "x");
+        // let the second thread look at the waiting job
+        Thread.sleep(100);
+        assertEquals(1, jobCenter.getRunningJobs());
+        assertEquals(1, jobCenter.getWaitingJobs());
+        // a job with a higher priority is admitted before the waiting job
+        Future<?> c = jobCenter.submit(getJob("c", rest, order), UNIT, Priority.INTERACTIVE, "y");
+        first.countDown();
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+        c.get(10, TimeUnit.SECONDS);
+        assertEquals("[a, c, b]", order.toString());
+        assertEquals(0, jobCenter.getUsedCostBudget());
+        assertEquals(3, jobCenter.getCompletedJobs());
+    }
+
+    @Test
+    public void testCancelWaiting() throws Exception {
+        jobCenter = new DigilibJobCenter<Object>(2, 10, true, "test");
+        jobCenter.setCostBudget(2 * UNIT);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch rest = new CountDownLatch(0);
+        Future<?> a = jobCenter.submit(getJob("a", first, order), 2 * UNIT, Priority.INTERACTIVE, "x");
+        Future<?> b = jobCenter.submit(getJob("b", rest, order), 2 * UNIT, Priority.INTERACTIVE, "x");
+        Thread.sleep(100);
+        b.cancel(false);
+        assertEquals(0, jobCenter.getWaitingJobs());
+        first.countDown();
+        a.get(10, TimeUnit.SECONDS);
+        Future<?> c = jobCenter.submit(getJob("c", rest, order), 2 * UNIT, Priority.INTERACTIVE, "x");
+        c.get(10, TimeUnit.SECONDS);
+        assertEquals("[a, c]", order.toString());
+        assertEquals(1, jobCenter.getDroppedJobs());
+    }
+
+}
@@ -49,7 +49,6 @@ import digilib.util.DigilibJobCenter;
 public class PDFServletConfiguration extends DigilibServletConfiguration {
 
     public static final String PDF_SERVLET_CONFIG_KEY = "digilib.pdf.servlet.configuration";
-    public static final String PDF_IMAGEEXECUTOR_KEY = "pdf.servlet.worker.imageexecutor";
     public static final String PDF_EXECUTOR_KEY = "pdf.servlet.worker.pdfexecutor";
     public static final String PDF_WORKDIR_KEY = "pdf.servlet.work.dir";
     public static final String PDF_CACHEDIR_KEY = "pdf.servlet.cache.dir";
@@ -76,8 +75,6 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
 
         // Executor for PDF operations
         newParameter(PDF_EXECUTOR_KEY, null, null, 's');
-        // Executor for PDF-image operations
-        newParameter(PDF_IMAGEEXECUTOR_KEY, null, null, 's');
         // working directory for PDF generation
         newParameter(PDF_WORKDIR_KEY, null, null, 's');
         // cache directory for PDF files
@@ -91,10 +88,6 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
         newParameter("pdf-worker-threads", new Integer(1), null, 'f');
         // max number of waiting pdf-generation threads
         newParameter("pdf-max-waiting-threads", new Integer(20), null, 'f');
-        // number of pdf-image generation threads
-        newParameter("pdf-image-worker-threads", new Integer(1), null, 'f');
-        // max number of waiting pdf-image generation threads
-        newParameter("pdf-image-max-waiting-threads", new Integer(10), null, 'f');
         // PDF generation temp directory
         newParameter("pdf-temp-dir", "pdf_temp", null, 'f');
         // PDF generation cache directory
@@ -122,11 +115,6 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
         int pmt = config.getAsInt("pdf-max-waiting-threads");
         DigilibJobCenter<OutputStream> pdfExecutor = new DigilibJobCenter<OutputStream>(pnt, pmt, false, "servlet.worker.pdfexecutor");
         config.setValue(PDF_EXECUTOR_KEY, pdfExecutor);
-        // PDF image worker threads
-        int pint = config.getAsInt("pdf-image-worker-threads");
-        int pimt = config.getAsInt("pdf-image-max-waiting-threads");
-        DigilibJobCenter<DocuImage> pdfImageExecutor = new DigilibJobCenter<DocuImage>(pint, pimt, false, "servlet.worker.pdfimageexecutor");
-        config.setValue(PDF_IMAGEEXECUTOR_KEY, pdfImageExecutor);
         /*
          * set up temporary directories
          */
@@ -209,16 +197,6 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
                 logger.error("Still running threads when shutting down PDF job queue: " + nrj);
             }
         }
-        @SuppressWarnings("unchecked")
-        DigilibJobCenter<DocuImage>  pdfImageExecutor = (DigilibJobCenter<DocuImage>) config.getValue(PDF_IMAGEEXECUTOR_KEY);
-        if (pdfImageExecutor != null) {
-            // shut down pdf image thread pool
-            List<Runnable> rj = pdfImageExecutor.shutdownNow();
-            int nrj = rj.size();
-            if (nrj > 0) {
-                logger.error("Still running threads when shutting down PDF-image job queue: " + nrj);
-            }
-        }
     }
 
     /**
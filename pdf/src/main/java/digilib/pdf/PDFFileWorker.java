@@ -27,6 +27,7 @@ package digilib.pdf;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.Callable;
 
@@ -49,21 +50,36 @@ public class PDFFileWorker implements Callable<File> {
     /** the final output file */
     protected File finalFile;
 
+    /** the stream to the temporary output file */
+    protected OutputStream tempStream;
+
     /** Create new PDFFileWorker.
      * @param dlConfig
      * @param tempFile
      * @param job_info
      * @param imageJobCenter
+     * @param client
      * @throws FileNotFoundException
      */
     public PDFFileWorker(DigilibConfiguration dlConfig, 
     		File tempFile, File finalFile,
 			PDFRequest job_info,
-			DigilibJobCenter<DocuImage> imageJobCenter) throws FileNotFoundException {
+			DigilibJobCenter<DocuImage> imageJobCenter, String client) throws FileNotFoundException {
         this.tempFile = tempFile; 
-    	OutputStream outstream = new FileOutputStream(tempFile);
+    	this.tempStream = new FileOutputStream(tempFile);
     	this.finalFile = finalFile;
-    	this.streamWorker = new PDFStreamWorker(dlConfig, outstream, job_info, imageJobCenter);
+    	this.streamWorker = new PDFStreamWorker(dlConfig, tempStream, job_info, imageJobCenter, client);
+    }
+    
+    /** Closes and removes the temporary output file of a job that will not be run.
+     */
+    public void discard() {
+        try {
+            tempStream.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        tempFile.delete();
     }
     
     public File call() throws Exception {
@@ -29,6 +29,7 @@ import java.io.OutputStream;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.log4j.Logger;
 
@@ -40,10 +41,12 @@ import com.itextpdf.text.pdf.PdfWriter;
 
 import digilib.image.DocuImage;
 import digilib.image.ImageJobDescription;
+import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
 import digilib.conf.DigilibConfiguration;
 import digilib.conf.PDFRequest;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.Priority;
 import digilib.util.NumRange;
 
 public class PDFStreamWorker implements Callable<OutputStream> {
@@ -60,19 +63,25 @@ public class PDFStreamWorker implements Callable<OutputStream> {
 
 	protected DigilibJobCenter<DocuImage> imageJobCenter = null;
 
+	/** client the images are rendered for */
+	protected String client = null;
+
 	/**
 	 * @param dlConfig
 	 * @param outputfile
 	 * @param job_info
+	 * @param imageJobCenter
+	 * @param client
 	 */
 	public PDFStreamWorker(DigilibConfiguration dlConfig, OutputStream outputfile,
 			PDFRequest job_info,
-			DigilibJobCenter<DocuImage> imageJobCenter) {
+			DigilibJobCenter<DocuImage> imageJobCenter, String client) {
 		super();
 		this.dlConfig = dlConfig;
 		this.outstream = outputfile;
 		this.job_info = job_info;
 		this.imageJobCenter = imageJobCenter;
+		this.client = client;
 	}
 
 	public OutputStream call() throws Exception {
@@ -155,6 +164,9 @@ public class PDFStreamWorker implements Callable<OutputStream> {
 	/**
 	 * adds an image to the document.
 	 * 
+	 * The image is rendered as a PDF job of the client in the image job
+	 * queue (or in this thread if the queue is full).
+	 * 
 	 * @param doc
 	 * @param iji
 	 * @return
@@ -168,10 +180,22 @@ public class PDFStreamWorker implements Callable<OutputStream> {
 			DocumentException {
 		// create image worker
 		ImageWorker job = new ImageWorker(dlConfig, iji);
-		// submit
-		Future<DocuImage> jobTicket = imageJobCenter.submit(job);
-		// wait for result
-		DocuImage img = jobTicket.get();
+		DocuImage img;
+		try {
+			// submit
+			Future<DocuImage> jobTicket = imageJobCenter.submit(job, iji.getCost(), Priority.PDF, client);
+			// wait for result
+			img = jobTicket.get();
+		} catch (RejectedExecutionException e) {
+			// queue is full: render the image in this thread
+			try {
+				img = job.call();
+			} catch (ImageOpException ie) {
+				throw new ExecutionException(ie);
+			}
+		} catch (ImageOpException e) {
+			throw new ExecutionException(e);
+		}
 		// scale the image
 		Image pdfimg = Image.getInstance(img.getAwtImage(), null);
 		float docW = PageSize.A4.getWidth() - 2 * PageSize.A4.getBorder();
@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletConfig;
@@ -40,11 +41,13 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.log4j.Logger;
 
 import digilib.conf.DigilibConfiguration;
+import digilib.conf.DigilibServletConfiguration;
 import digilib.conf.PDFRequest;
 import digilib.conf.PDFServletConfiguration;
 import digilib.image.DocuImage;
 import digilib.pdf.PDFFileWorker;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.Priority;
 
 /**
  * A class for handling user requests for pdf documents made from digilib
@@ -119,7 +122,8 @@ public class PDFCache extends HttpServlet {
             throw new ServletException("Configuration error: problem with pdf-cache-dir=" + cacheDir);
         }
         pdfJobCenter = (DigilibJobCenter<File>) dlConfig.getValue(PDFServletConfiguration.PDF_EXECUTOR_KEY);
-        pdfImageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue(PDFServletConfiguration.PDF_IMAGEEXECUTOR_KEY);
+        // images are rendered in the image job queue
+        pdfImageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue(DigilibServletConfiguration.IMAGEEXECUTOR_KEY);
         // register this instance globally
         context.setAttribute(instanceKey, this);
     }
@@ -173,7 +177,7 @@ public class PDFCache extends HttpServlet {
             if (status == PDFStatus.NONEXISTENT) {
                 // not there -- start creation
                 try {
-                    createNewPdfDocument(pdfji, docid);
+                    createNewPdfDocument(pdfji, docid, ServletOps.getClientKey(request));
                     notifyUser(status, docid, request, response);
                     return;
                 } catch (FileNotFoundException e) {
@@ -181,6 +185,11 @@ public class PDFCache extends HttpServlet {
                     logger.error(e.getMessage());
                     notifyUser(PDFStatus.ERROR, docid, request, response);
                     return;
+                } catch (RejectedExecutionException e) {
+                    // queue is full
+                    logger.error("PDF servlet overloaded!");
+                    ServletOps.sendServiceUnavailable(pdfJobCenter.getRetryAfter(), response, logger);
+                    return;
                 }
             } else if (status == PDFStatus.DONE) {
                 // pdf created -- send it
@@ -273,15 +282,39 @@ public class PDFCache extends HttpServlet {
      * @param filename
      * @return
      * @throws FileNotFoundException
+     * @throws RejectedExecutionException if the queue is full
      */
     public Future<File> createNewPdfDocument(PDFRequest pdfji, String filename) throws FileNotFoundException {
+        return createNewPdfDocument(pdfji, filename, null);
+    }
+
+    /**
+     * create new thread for pdf generation for the client.
+     * 
+     * Jobs of different clients are run in turn.
+     * 
+     * @param pdfji
+     * @param filename
+     * @param client
+     * @return
+     * @throws FileNotFoundException
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public Future<File> createNewPdfDocument(PDFRequest pdfji, String filename, String client)
+            throws FileNotFoundException {
         // start new worker
         File tempf = this.getTempFile(filename);
         File finalf = this.getCacheFile(filename);
-        PDFFileWorker job = new PDFFileWorker(dlConfig, tempf, finalf, pdfji, pdfImageJobCenter);
+        PDFFileWorker job = new PDFFileWorker(dlConfig, tempf, finalf, pdfji, pdfImageJobCenter, client);
         // start job
-        Future<File> jobTicket = pdfJobCenter.submit(job);
-        return jobTicket;
+        try {
+            Future<File> jobTicket = pdfJobCenter.submit(job, 0, Priority.PDF, client);
+            return jobTicket;
+        } catch (RejectedExecutionException e) {
+            // remove the temp file so the document does not stay in progress
+            job.discard();
+            throw e;
+        }
     }
 
     /**
@@ -45,15 +45,21 @@ import org.xml.sax.SAXException;
 import digilib.auth.AuthOps;
 import digilib.auth.AuthOpsFactory;
 import digilib.image.DocuImage;
+import digilib.image.ImageJobClassifier;
+import digilib.image.RenderedImageCache;
+import digilib.image.TiledImageOps;
 import digilib.io.AliasingDocuDirCache;
+import digilib.io.BaseDirDocuDirectory;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
 import digilib.io.DocuDirectoryFactory;
 import digilib.io.FileOps;
 import digilib.io.FileOps.FileClass;
+import digilib.io.ImageIdentIndex;
 import digilib.meta.DirMeta;
 import digilib.meta.FileMeta;
 import digilib.meta.MetaFactory;
+import digilib.servlet.CacheWarmer;
 import digilib.servlet.ServletOps;
 import digilib.util.DigilibJobCenter;
 import digilib.util.Parameter;
@@ -84,6 +90,12 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
 
     public static final String DIR_CACHE_KEY = "servlet.dir.cache";
 
+    public static final String RENDER_CACHE_KEY = "servlet.render.cache";
+
+    public static final String CACHE_WARMER_KEY = "servlet.cache.warmer";
+
+    public static final String JOB_CLASSIFIER_KEY = "servlet.job.classifier";
+
     /** the time the webapp (i.e. this class) was loaded */
     public final Long webappStartTime = System.currentTimeMillis();
 
@@ -114,8 +126,14 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter(DIR_CACHE_KEY, null, null, 's');
         // Executor for image operations
         newParameter(IMAGEEXECUTOR_KEY, null, null, 's');
+        // RenderedImageCache instance
+        newParameter(RENDER_CACHE_KEY, null, null, 's');
         // AuthOps instance
         newParameter(AUTH_OP_KEY, null, null, 's');
+        // CacheWarmer instance
+        newParameter(CACHE_WARMER_KEY, null, null, 's');
+        // ImageJobClassifier instance
+        newParameter(JOB_CLASSIFIER_KEY, null, null, 's');
         // classes TODO: do we need these as parameters?
         newParameter("servlet.filemeta.class", null, null, 's');
         newParameter("servlet.dirmeta.class", null, null, 's');
@@ -150,8 +168,22 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter("log-config-file", new File("log4j-config.xml"), null, 'f');
         // number of working threads
         newParameter("worker-threads", new Integer(2), null, 'f');
+        // min number of working threads when adapting to the load
+        newParameter("worker-threads-min", new Integer(1), null, 'f');
+        // max number of working threads when adapting to the load (0 means fixed worker-threads)
+        newParameter("worker-threads-max", new Integer(0), null, 'f');
         // max number of waiting threads
         newParameter("max-waiting-threads", new Integer(20), null, 'f');
+        // what to do with requests when the queue is full ("abort" or "caller-runs")
+        newParameter("worker-rejection-policy", "abort", null, 'f');
+        // budget for the decoded pixels of the running jobs in megapixels (0 means no budget)
+        newParameter("worker-pixel-budget", new Integer(0), null, 'f');
+        // max number of waiting jobs per client (0 means no limit)
+        newParameter("max-waiting-threads-per-client", new Integer(0), null, 'f');
+        // max width and height of images with thumbnail priority
+        newParameter("worker-thumbnail-size", new Integer(256), null, 'f');
+        // mapping of clients and paths to job priorities
+        newParameter("worker-priority-map", "", null, 'f');
         // FileMeta implementation
         newParameter("filemeta-class", "digilib.meta.IndexMetaFileMeta", null, 'f');
         // DirMeta implementation
@@ -160,6 +192,38 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter("authops-class", "digilib.auth.PathServletAuthOps", null, 'f');
         // DocuDirectory implementation
         newParameter("docudirectory-class", "digilib.io.BaseDirDocuDirectory", null, 'f');
+        // buffer size for sending files (bytes)
+        newParameter("sendfile-buffer-size", new Integer(65536), null, 'f');
+        // let the servlet container send files if it supports it
+        newParameter("sendfile-container-allowed", Boolean.TRUE, null, 'f');
+        // encode JPEG images directly into the response
+        newParameter("sendimage-streaming-jpeg", Boolean.FALSE, null, 'f');
+        // encode PNG images directly into the response
+        newParameter("sendimage-streaming-png", Boolean.FALSE, null, 'f');
+        // directory for the persistent image identification index (empty means no index)
+        newParameter("ident-index-dir", "", null, 'f');
+        // interval for writing the image identification index (s)
+        newParameter("ident-index-flush-interval", new Integer(30), null, 'f');
+        // maximum number of directories of the image identification index in memory
+        newParameter("ident-index-max-dirs", new Integer(1000), null, 'f');
+        // file for the persistent snapshot of the directory cache (empty means no snapshot)
+        newParameter("dircache-snapshot-file", "", null, 'f');
+        // interval for writing the directory cache snapshot (s, 0 means only on shutdown)
+        newParameter("dircache-snapshot-interval", new Integer(600), null, 'f');
+        // file with paths or Scaler access log for warming up the caches (empty means no warm-up)
+        newParameter("warmup-file", "", null, 'f');
+        // number of most frequent requests from the access log to render into the render cache
+        newParameter("warmup-render-count", new Integer(0), null, 'f');
+        // number of threads for warming up the caches
+        newParameter("warmup-threads", new Integer(1), null, 'f');
+        // pause between warm-up tasks (ms)
+        newParameter("warmup-delay", new Integer(50), null, 'f');
+        // size of the rendered image cache in memory in MB (0 means no cache)
+        newParameter("render-cache-size", new Integer(0), null, 'f');
+        // directory for the rendered image cache on disk (empty means no disk cache)
+        newParameter("render-cache-dir", "", null, 'f');
+        // size of the rendered image cache on disk in MB
+        newParameter("render-cache-disk-size", new Integer(1024), null, 'f');
 
     }
 
@@ -313,6 +377,12 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         /*
          * configure singletons
          */
+        // sending files
+        ServletOps.setSendFileBufferSize(config.getAsInt("sendfile-buffer-size"));
+        ServletOps.setUseContainerSendFile(config.getAsBoolean("sendfile-container-allowed"));
+        // sending images
+        ServletOps.setStreaming("image/jpeg", config.getAsBoolean("sendimage-streaming-jpeg"));
+        ServletOps.setStreaming("image/png", config.getAsBoolean("sendimage-streaming-png"));
         // set up the logger
         File logConf = ServletOps.getConfigFile((File) config.getValue("log-config-file"), context);
         if (logConf != null && logConf.canRead()) {
@@ -334,6 +404,23 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 dirCache = new DocuDirCache(FileClass.IMAGE, this);
             }
             config.setValue(DIR_CACHE_KEY, dirCache);
+            // persistent directory cache snapshot
+            String dcsn = config.getAsString("dircache-snapshot-file");
+            if (dcsn.length() > 0) {
+                File dcs = ServletOps.getFile(new File(dcsn), context);
+                if (dcs != null) {
+                    dirCache.setSnapshotFile(dcs, config.getAsInt("dircache-snapshot-interval"));
+                }
+            }
+            // persistent image identification index
+            String iidn = config.getAsString("ident-index-dir");
+            if (iidn.length() > 0) {
+                File iid = ServletOps.getFile(new File(iidn), context);
+                if (iid != null) {
+                    ImageIdentIndex.setup(iid, config.getAsInt("ident-index-flush-interval"),
+                            config.getAsInt("ident-index-max-dirs"));
+                }
+            }
             // useAuthentication
             if (config.getAsBoolean("use-authorization")) {
                 AuthOps authOp = AuthOpsFactory.getAuthOpsInstance();
@@ -348,8 +435,50 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
             // digilib worker threads
             int nt = config.getAsInt("worker-threads");
             int mt = config.getAsInt("max-waiting-threads");
-            DigilibJobCenter<DocuImage> imageExecutor = new DigilibJobCenter<DocuImage>(nt, mt, false, IMAGEEXECUTOR_KEY);
+            DigilibJobCenter.RejectionPolicy rp = DigilibJobCenter.RejectionPolicy.ABORT;
+            if (config.getAsString("worker-rejection-policy").equals("caller-runs")) {
+                rp = DigilibJobCenter.RejectionPolicy.CALLER_RUNS;
+            }
+            DigilibJobCenter<DocuImage> imageExecutor = new DigilibJobCenter<DocuImage>(nt, mt, false,
+                    IMAGEEXECUTOR_KEY, rp);
+            imageExecutor.setCostBudget(config.getAsInt("worker-pixel-budget") * 1024L * 1024L);
+            imageExecutor.setMaxQueueLenPerClient(config.getAsInt("max-waiting-threads-per-client"));
+            int maxnt = config.getAsInt("worker-threads-max");
+            if (maxnt > 0) {
+                imageExecutor.setAdaptiveThreads(config.getAsInt("worker-threads-min"), maxnt);
+            }
             config.setValue(IMAGEEXECUTOR_KEY, imageExecutor);
+            // job priorities
+            ImageJobClassifier classifier = new ImageJobClassifier(config.getAsString("worker-priority-map"),
+                    config.getAsInt("worker-thumbnail-size"));
+            config.setValue(JOB_CLASSIFIER_KEY, classifier);
+            // rendered image cache
+            long rcs = config.getAsInt("render-cache-size") * 1024L * 1024L;
+            String rcdn = config.getAsString("render-cache-dir");
+            long rcds = config.getAsInt("render-cache-disk-size") * 1024L * 1024L;
+            if (rcs > 0 || (rcdn.length() > 0 && rcds > 0)) {
+                File rcd = null;
+                if (rcdn.length() > 0) {
+                    rcd = ServletOps.getFile(new File(rcdn), context);
+                }
+                RenderedImageCache renderCache = new RenderedImageCache(rcs, rcd, rcds);
+                config.setValue(RENDER_CACHE_KEY, renderCache);
+                logger.info("Rendered image cache: " + rcs + " bytes in memory, directory " + rcd);
+            }
+            // cache warm-up
+            String wfn = config.getAsString("warmup-file");
+            if (wfn.length() > 0) {
+                File wf = ServletOps.getFile(new File(wfn), context);
+                if (wf != null && wf.canRead()) {
+                    CacheWarmer warmer = new CacheWarmer(this, dirCache,
+                            (RenderedImageCache) config.getValue(RENDER_CACHE_KEY), imageExecutor,
+                            config.getAsInt("warmup-threads"), config.getAsInt("warmup-delay"));
+                    config.setValue(CACHE_WARMER_KEY, warmer);
+                    warmer.warmFromFile(wf, config.getAsInt("warmup-render-count"));
+                } else {
+                    logger.warn("Unable to read warm-up file " + wfn);
+                }
+            }
             /*
              * set as the servlets main config
              */
@@ -390,6 +519,11 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         // get current config from servlet context
         ServletContext context = cte.getServletContext();
         DigilibServletConfiguration config = getContextConfig(context);
+        CacheWarmer warmer = (CacheWarmer) config.getValue(CACHE_WARMER_KEY);
+        if (warmer != null) {
+            // stop warming up the caches
+            warmer.shutdown();
+        }
         @SuppressWarnings("unchecked")
         DigilibJobCenter<DocuImage> imageExecutor = (DigilibJobCenter<DocuImage>) config.getValue(IMAGEEXECUTOR_KEY);
         if (imageExecutor != null) {
@@ -400,6 +534,18 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 logger.error("Still running threads when shutting down image job queue: " + nrj);
             }
         }
+        // stop the threads for tiled rendering
+        TiledImageOps.setParallelism(0);
+        DocuDirCache dirCache = (DocuDirCache) config.getValue(DIR_CACHE_KEY);
+        if (dirCache != null) {
+            // write the snapshot and stop watching directories
+            dirCache.dispose();
+        }
+        // stop the threads for reading directories
+        DocuDirectory.shutdownRereadExecutor();
+        BaseDirDocuDirectory.shutdownScaledDirReader();
+        // write image identification index
+        ImageIdentIndex.shutdown();
     }
 
 
@@ -62,6 +62,9 @@ import digilib.util.Parameter;
  */
 public class DigilibServletRequest extends DigilibRequest {
 
+    /** ServletRequest attribute holding the DigilibServletRequest */
+    public static final String REQUEST_ATTRIBUTE = "digilib.servlet.request";
+
     /** internal DocuImage instance for this request */
     protected DocuImage image; 
 
@@ -94,6 +97,24 @@ public class DigilibServletRequest extends DigilibRequest {
         initOptions();
     }
 
+    /**
+     * Returns the DigilibServletRequest for the ServletRequest. The instance is
+     * created only once per ServletRequest and stored as a request attribute.
+     * 
+     * @param request
+     * @param config
+     * @return
+     */
+    public static DigilibServletRequest getInstance(HttpServletRequest request, DigilibConfiguration config) {
+        Object dlReq = request.getAttribute(REQUEST_ATTRIBUTE);
+        if (dlReq instanceof DigilibServletRequest) {
+            return (DigilibServletRequest) dlReq;
+        }
+        DigilibServletRequest dlRequest = new DigilibServletRequest(request, config);
+        request.setAttribute(REQUEST_ATTRIBUTE, dlRequest);
+        return dlRequest;
+    }
+
     /* (non-Javadoc)
      * @see digilib.conf.DigilibRequest#initParams()
      * Define and set up parameters with default values.
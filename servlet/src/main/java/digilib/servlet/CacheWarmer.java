@@ -0,0 +1,465 @@
+package digilib.servlet;
+
+/*
+ * #%L
+ * CacheWarmer -- fills the directory and image caches in the background.
+ *
+ * Digital Image Library servlet components
+ * %%
+ * Copyright (C) 2016 digilib contributors
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.conf.DigilibRequest;
+import digilib.image.DocuImage;
+import digilib.image.ImageJobDescription;
+import digilib.image.ImageWorker;
+import digilib.image.RenderedImageCache;
+import digilib.io.DocuDirCache;
+import digilib.io.DocuDirectory;
+import digilib.io.DocuDirent;
+import digilib.io.FileOps;
+import digilib.io.ImageSet;
+import digilib.util.DigilibJobCenter;
+
+/**
+ * Fills the DocuDirCache and the RenderedImageCache in the background.
+ *
+ * The warm-up reads a file with digilib paths (one per line, directories or
+ * files) or an access log of the Scaler ("account.request" logger with lines
+ * containing "request: " and the query string). The directories of all paths
+ * are read and their images are identified. The most frequent requests from
+ * the log can be rendered into the RenderedImageCache.
+ *
+ * The work is done by low-priority threads that pause while the image job
+ * center has running or waiting jobs.
+ */
+public class CacheWarmer {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(CacheWarmer.class);
+
+    /** marker for requests in the access log */
+    protected static final String LOG_REQUEST_MARKER = "request: ";
+
+    protected DigilibConfiguration dlConfig;
+
+    protected DocuDirCache dirCache;
+
+    protected RenderedImageCache renderCache;
+
+    protected DigilibJobCenter<DocuImage> imageJobCenter;
+
+    /** executor for the warm-up tasks */
+    protected ExecutorService executor;
+
+    /** pause between tasks (ms) */
+    protected int delay;
+
+    /** number of scheduled tasks */
+    protected AtomicInteger numTasks = new AtomicInteger(0);
+
+    /** number of finished tasks */
+    protected AtomicInteger numDone = new AtomicInteger(0);
+
+    /** number of failed tasks */
+    protected AtomicInteger numFailed = new AtomicInteger(0);
+
+    /** number of identified images */
+    protected AtomicInteger numImages = new AtomicInteger(0);
+
+    /** number of rendered images */
+    protected AtomicInteger numRendered = new AtomicInteger(0);
+
+    /** time spent waiting for live requests (ms) */
+    protected AtomicInteger waitTime = new AtomicInteger(0);
+
+    /**
+     * Creates a CacheWarmer.
+     *
+     * @param dlConfig
+     * @param dirCache
+     * @param renderCache
+     *            (or null)
+     * @param imageJobCenter
+     *            job center for live requests (or null)
+     * @param numThreads
+     * @param delay
+     *            pause between tasks (ms)
+     */
+    public CacheWarmer(DigilibConfiguration dlConfig, DocuDirCache dirCache, RenderedImageCache renderCache,
+            DigilibJobCenter<DocuImage> imageJobCenter, int numThreads, int delay) {
+        this.dlConfig = dlConfig;
+        this.dirCache = dirCache;
+        this.renderCache = renderCache;
+        this.imageJobCenter = imageJobCenter;
+        this.delay = delay;
+        executor = Executors.newFixedThreadPool(Math.max(numThreads, 1), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "digilib.cachewarmer");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Reads paths or access log lines from the file and schedules the
+     * warm-up.
+     *
+     * The maxRenders most frequent requests from an access log are rendered
+     * (if there is a RenderedImageCache).
+     *
+     * @param file
+     * @param maxRenders
+     * @throws IOException
+     */
+    public void warmFromFile(File file, int maxRenders) throws IOException {
+        // paths and queries in order of their first appearance with counts
+        final Map<String, int[]> paths = new HashMap<String, int[]>();
+        List<String> pathList = new ArrayList<String>();
+        final Map<String, int[]> queries = new HashMap<String, int[]>();
+        List<String> queryList = new ArrayList<String>();
+        // lines that are not requests (paths unless the file is a log)
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int i = line.indexOf(LOG_REQUEST_MARKER);
+                if (i < 0) {
+                    lines.add(line);
+                    continue;
+                }
+                // access log
+                String qs = line.substring(i + LOG_REQUEST_MARKER.length());
+                if (qs.equals("null") || qs.indexOf('=') < 0) {
+                    continue;
+                }
+                DigilibRequest req = parseQuery(qs);
+                if (req == null) {
+                    continue;
+                }
+                count(queries, queryList, qs);
+                String path = req.getAsString("fn");
+                if (path != null && !path.isEmpty()) {
+                    count(paths, pathList, FileOps.normalName(path));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (queryList.isEmpty()) {
+            // list of paths
+            for (String path : lines) {
+                count(paths, pathList, FileOps.normalName(path));
+            }
+        }
+        // most frequent first
+        Collections.sort(pathList, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return paths.get(b)[0] - paths.get(a)[0];
+            }
+        });
+        warmPaths(pathList);
+        if (renderCache != null && maxRenders > 0) {
+            Collections.sort(queryList, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return queries.get(b)[0] - queries.get(a)[0];
+                }
+            });
+            warmRenders(queryList.subList(0, Math.min(maxRenders, queryList.size())));
+        }
+        logger.info("Cache warm-up from " + file + ": " + pathList.size() + " paths, "
+                + ((renderCache != null) ? Math.min(maxRenders, queryList.size()) : 0) + " renders");
+    }
+
+    /**
+     * Counts the occurrence of key.
+     *
+     * @param counts
+     * @param order
+     * @param key
+     */
+    protected static void count(Map<String, int[]> counts, List<String> order, String key) {
+        int[] c = counts.get(key);
+        if (c == null) {
+            counts.put(key, new int[] { 1 });
+            order.add(key);
+        } else {
+            ++c[0];
+        }
+    }
+
+    /**
+     * Schedules reading the directories and identifying the images of the
+     * paths.
+     *
+     * @param paths
+     */
+    public void warmPaths(List<String> paths) {
+        for (final String path : paths) {
+            submit(new Runnable() {
+                public void run() {
+                    warmPath(path);
+                }
+            });
+        }
+    }
+
+    /**
+     * Schedules rendering the requests into the RenderedImageCache.
+     *
+     * @param queries
+     *            request query strings
+     */
+    public void warmRenders(List<String> queries) {
+        for (final String qs : queries) {
+            submit(new Runnable() {
+                public void run() {
+                    warmRender(qs);
+                }
+            });
+        }
+    }
+
+    /**
+     * Submits a warm-up task.
+     *
+     * @param task
+     */
+    protected void submit(final Runnable task) {
+        numTasks.incrementAndGet();
+        executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    waitForIdle();
+                    task.run();
+                } catch (Exception e) {
+                    numFailed.incrementAndGet();
+                    logger.debug("Cache warm-up task failed: " + e);
+                } finally {
+                    numDone.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the directory of the path (or the directory of the file) and
+     * identifies its images.
+     *
+     * @param path
+     */
+    protected void warmPath(String path) {
+        DocuDirectory dd = dirCache.getDirectory(path);
+        if (dd == null) {
+            numFailed.incrementAndGet();
+            return;
+        }
+        for (int i = 0; i < dd.size(); ++i) {
+            if (i > 0) {
+                waitForIdle();
+            }
+            identify(dd.get(i));
+        }
+    }
+
+    /**
+     * Identifies all images of the file.
+     *
+     * @param f
+     */
+    protected void identify(DocuDirent f) {
+        if (!(f instanceof ImageSet)) {
+            return;
+        }
+        ImageSet is = (ImageSet) f;
+        for (int i = 0; i < is.size(); ++i) {
+            if (!is.get(i).isChecked()) {
+                is.get(i).getSize();
+                numImages.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Renders the request into the RenderedImageCache.
+     *
+     * @param qs
+     */
+    protected void warmRender(String qs) {
+        DocuImage img = null;
+        try {
+            DigilibRequest req = parseQuery(qs);
+            if (req == null) {
+                return;
+            }
+            ImageJobDescription job = ImageJobDescription.getInstance(req, dlConfig);
+            if (!job.isTransformRequired() || job.getSendAsFile() || renderCache.get(job) != null) {
+                return;
+            }
+            img = new ImageWorker(dlConfig, job).call();
+            if (img == null) {
+                return;
+            }
+            String mt = null;
+            if (job.hasOption("jpg")) {
+                mt = "image/jpeg";
+            } else if (job.hasOption("png")) {
+                mt = "image/png";
+            }
+            mt = ServletOps.getImageMimeType(img, mt, logger);
+            ServletOps.encodeImage(img, mt, job, renderCache);
+            numRendered.incrementAndGet();
+        } catch (Exception e) {
+            numFailed.incrementAndGet();
+            logger.debug("Unable to render " + qs + ": " + e);
+        } finally {
+            if (img != null) {
+                img.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns a DigilibRequest with the parameters of the query string (or
+     * null).
+     *
+     * @param qs
+     * @return
+     */
+    protected DigilibRequest parseQuery(String qs) {
+        try {
+            DigilibRequest req = new DigilibRequest(dlConfig);
+            if (qs.indexOf("&amp;") > -1) {
+                req.setWithParamString(qs, "&amp;");
+            } else if (qs.indexOf(";") > -1) {
+                req.setWithParamString(qs, ";");
+            } else {
+                req.setWithParamString(qs, "&");
+            }
+            return req;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits until the image job center has no running or waiting jobs and
+     * the delay has passed.
+     */
+    protected void waitForIdle() {
+        try {
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            if (imageJobCenter == null) {
+                return;
+            }
+            long t = System.currentTimeMillis();
+            while (imageJobCenter.getRunningJobs() > 0 || imageJobCenter.getWaitingJobs() > 0) {
+                Thread.sleep(Math.max(delay, 100));
+            }
+            waitTime.addAndGet((int) (System.currentTimeMillis() - t));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Cache warm-up interrupted");
+        }
+    }
+
+    /**
+     * Stops the warm-up.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return if there are unfinished tasks
+     */
+    public boolean isRunning() {
+        return numDone.get() < numTasks.get();
+    }
+
+    /**
+     * @return number of scheduled tasks
+     */
+    public int getNumTasks() {
+        return numTasks.get();
+    }
+
+    /**
+     * @return number of finished tasks
+     */
+    public int getNumDone() {
+        return numDone.get();
+    }
+
+    /**
+     * @return number of failed tasks
+     */
+    public int getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * @return number of identified images
+     */
+    public int getNumImages() {
+        return numImages.get();
+    }
+
+    /**
+     * @return number of rendered images
+     */
+    public int getNumRendered() {
+        return numRendered.get();
+    }
+
+    /**
+     * @return time spent waiting for live requests (ms)
+     */
+    public int getWaitTime() {
+        return waitTime.get();
+    }
+
+}
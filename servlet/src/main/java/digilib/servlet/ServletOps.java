@@ -32,8 +32,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -44,7 +52,9 @@ import org.apache.log4j.Logger;
 
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
+import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
+import digilib.image.RenderedImageCache;
 import digilib.io.FileOpException;
 import digilib.io.FileOps;
 import digilib.io.ImageInput;
@@ -54,6 +64,55 @@ public class ServletOps {
 
     private static Logger logger = Logger.getLogger("servlet.op");
 
+    /** request attribute signalling sendfile support of the container (Tomcat) */
+    public static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    public static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    public static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    /** maximum number of ranges in a range request */
+    public static final int MAX_RANGES = 20;
+
+    /** buffer size for copying files */
+    protected static int sendFileBufferSize = 65536;
+
+    /** let the container send files */
+    protected static boolean useContainerSendFile = true;
+
+    /** mime-types of images that are encoded directly into the response */
+    protected static Set<String> streamingMimeTypes = new CopyOnWriteArraySet<String>();
+
+    /**
+     * OutputStream that writes to two OutputStreams.
+     */
+    protected static class TeeOutputStream extends OutputStream {
+        protected OutputStream out1;
+        protected OutputStream out2;
+
+        public TeeOutputStream(OutputStream out1, OutputStream out2) {
+            this.out1 = out1;
+            this.out2 = out2;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out1.write(b);
+            out2.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out1.write(b, off, len);
+            out2.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out1.flush();
+            out2.flush();
+        }
+    }
+
     /**
      * convert a string with a list of pathnames into an array of strings using
      * the system's path separator string
@@ -221,7 +280,7 @@ public class ServletOps {
 
     /**
      * Transfers an image file as-is with the mime type mt.
-     * 
+     *
      * The local file is copied to the <code>OutputStream</code> of the
      * <code>ServletResponse</code>. If mt is null then the mime-type is
      * auto-detected with mimeForFile.
@@ -229,7 +288,7 @@ public class ServletOps {
      *            Image file to be sent.
      * @param mt
      *            mime-type of the file.
-     * @param name 
+     * @param name
      *            name of the download file (for application/x)
      * @param res
      *            ServletResponse where the image file will be sent.
@@ -237,10 +296,39 @@ public class ServletOps {
      *            Logger to use
      * @throws ImageOpException
      * @throws ServletException Exception on sending data.
-     * @throws IOException 
+     * @throws IOException
      */
     public static void sendFile(File f, String mt, String name, HttpServletResponse response, Logger logger)
             throws ImageOpException, IOException {
+        ServletOps.sendFile(f, mt, name, null, response, logger);
+    }
+
+    /**
+     * Transfers an image file as-is with the mime type mt.
+     * 
+     * If the container supports it (and the request is given) the file is sent
+     * by the container without copying. Otherwise the local file is copied to
+     * the <code>OutputStream</code> of the <code>ServletResponse</code>. If mt
+     * is null then the mime-type is auto-detected with mimeForFile.
+     * 
+     * @param f
+     *            Image file to be sent.
+     * @param mt
+     *            mime-type of the file.
+     * @param name 
+     *            name of the download file (for application/x)
+     * @param request
+     *            ServletRequest (may be null)
+     * @param res
+     *            ServletResponse where the image file will be sent.
+     * @param logger
+     *            Logger to use
+     * @throws ImageOpException
+     * @throws ServletException Exception on sending data.
+     * @throws IOException 
+     */
+    public static void sendFile(File f, String mt, String name, HttpServletRequest request,
+            HttpServletResponse response, Logger logger) throws ImageOpException, IOException {
         logger.debug("sendRawFile(" + mt + ", " + f + ")");
     	if (response == null) {
     		logger.error("No response!");
@@ -262,18 +350,82 @@ public class ServletOps {
             }
             response.addHeader("Content-Disposition", "attachment; filename=\""+name+"\"");
         }
+        long length = f.length();
+        List<long[]> ranges = null;
+        if (request != null) {
+            // validators for conditional and range requests
+            String etag = getFileETag(f);
+            response.setHeader("ETag", etag);
+            response.setHeader("Accept-Ranges", "bytes");
+            if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+                logger.debug("file not modified.");
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            ranges = getRanges(request, length, etag, f.lastModified());
+            if (ranges != null && ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+        long start = 0;
+        long end = length;
+        if (ranges != null && ranges.size() == 1) {
+            // single range
+            start = ranges.get(0)[0];
+            end = ranges.get(0)[1] + 1;
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+            ranges = null;
+        }
+        if (ranges == null) {
+            // TODO: should we set content length? 
+            // see http://www.prozesse-und-systeme.de/servletFlush.html
+            setContentLength(response, end - start);
+            if (useContainerSendFile && request != null
+                    && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+                // let the container send the file
+                logger.debug("sending file using container sendfile.");
+                request.setAttribute(SENDFILE_FILENAME_ATTR, f.getCanonicalPath());
+                request.setAttribute(SENDFILE_START_ATTR, new Long(start));
+                request.setAttribute(SENDFILE_END_ATTR, new Long(end));
+                return;
+            }
+        }
         FileInputStream inFile = null;
         try {
             inFile = new FileInputStream(f);
+            FileChannel inChannel = inFile.getChannel();
             OutputStream outStream = response.getOutputStream();
-            // TODO: should we set content length? 
-            // see http://www.prozesse-und-systeme.de/servletFlush.html
-            response.setContentLength( (int) f.length());
-            byte dataBuffer[] = new byte[4096];
-            int len;
-            while ((len = inFile.read(dataBuffer)) != -1) {
-                // copy out file
-                outStream.write(dataBuffer, 0, len);
+            byte dataBuffer[] = new byte[(int) Math.min(sendFileBufferSize, Math.max(length, 1))];
+            if (ranges == null) {
+                copyFile(inChannel, start, end - start, outStream, dataBuffer);
+            } else {
+                // multiple ranges
+                logger.debug("sending " + ranges.size() + " ranges.");
+                String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(f.lastModified());
+                // headers of the parts
+                byte[][] partHeaders = new byte[ranges.size()][];
+                long contentLength = 0;
+                for (int i = 0; i < partHeaders.length; ++i) {
+                    long[] range = ranges.get(i);
+                    String ph = "\r\n--" + boundary + "\r\nContent-Type: " + mt + "\r\nContent-Range: bytes "
+                            + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+                    partHeaders[i] = ph.getBytes("US-ASCII");
+                    contentLength += partHeaders[i].length + range[1] - range[0] + 1;
+                }
+                byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+                contentLength += trailer.length;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setContentType("multipart/byteranges; boundary=" + boundary);
+                setContentLength(response, contentLength);
+                for (int i = 0; i < partHeaders.length; ++i) {
+                    long[] range = ranges.get(i);
+                    outStream.write(partHeaders[i]);
+                    copyFile(inChannel, range[0], range[1] - range[0] + 1, outStream, dataBuffer);
+                }
+                outStream.write(trailer);
             }
         } finally {
             try {
@@ -286,6 +438,287 @@ public class ServletOps {
         }
     }
 
+    /**
+     * Copies count bytes starting at start from the FileChannel to the
+     * OutputStream using the buffer.
+     * 
+     * @param inChannel
+     * @param start
+     * @param count
+     * @param outStream
+     * @param dataBuffer
+     * @throws IOException
+     */
+    protected static void copyFile(FileChannel inChannel, long start, long count, OutputStream outStream,
+            byte[] dataBuffer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dataBuffer);
+        long pos = start;
+        long end = start + count;
+        while (pos < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(dataBuffer.length, end - pos));
+            int len = inChannel.read(buffer, pos);
+            if (len == -1) {
+                throw new IOException("Unexpected end of file.");
+            }
+            // copy out file
+            outStream.write(dataBuffer, 0, len);
+            pos += len;
+        }
+    }
+
+    /**
+     * Returns the list of byte ranges [first, last] requested by the Range
+     * header of the request.
+     * 
+     * Returns null if the whole file should be sent (no or invalid Range
+     * header or If-Range does not match) and an empty list if no range is
+     * satisfiable.
+     * 
+     * Overlapping and adjacent ranges are merged and the ranges are sorted.
+     * The whole file is sent if the requested ranges add up to more than the
+     * length of the file.
+     * 
+     * @param request
+     * @param length
+     * @param etag
+     * @param mtime
+     * @return
+     */
+    public static List<long[]> getRanges(HttpServletRequest request, long length, String etag, long mtime) {
+        String rh = request.getHeader("Range");
+        if (rh == null || !rh.startsWith("bytes=")) {
+            return null;
+        }
+        String ir = request.getHeader("If-Range");
+        if (ir != null) {
+            if (ir.startsWith("\"") || ir.startsWith("W/")) {
+                // entity tag
+                if (!ir.equals(etag)) {
+                    return null;
+                }
+            } else {
+                // date
+                try {
+                    if (request.getDateHeader("If-Range") != mtime / 1000 * 1000) {
+                        return null;
+                    }
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        String[] specs = rh.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            logger.warn("Too many ranges in request: " + specs.length);
+            return null;
+        }
+        long total = 0;
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                long first;
+                long last;
+                if (dash == 0) {
+                    // suffix range
+                    long suffix = Long.parseLong(spec.substring(1));
+                    first = Math.max(length - suffix, 0);
+                    last = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+                if (first < length) {
+                    ranges.add(new long[] { first, last });
+                    total += last - first + 1;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (total > length) {
+            logger.debug("Ranges larger than file, sending whole file.");
+            return null;
+        }
+        return mergeRanges(ranges);
+    }
+
+    /**
+     * Returns the list of byte ranges sorted by start with overlapping and
+     * adjacent ranges merged.
+     * 
+     * @param ranges
+     * @return
+     */
+    protected static List<long[]> mergeRanges(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] r1, long[] r2) {
+                return (r1[0] < r2[0]) ? -1 : ((r1[0] == r2[0]) ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>(ranges.size());
+        long[] cur = ranges.get(0);
+        for (int i = 1; i < ranges.size(); ++i) {
+            long[] r = ranges.get(i);
+            if (r[0] <= cur[1] + 1) {
+                // overlapping or adjacent
+                cur[1] = Math.max(cur[1], r[1]);
+            } else {
+                merged.add(cur);
+                cur = r;
+            }
+        }
+        merged.add(cur);
+        return merged;
+    }
+
+    /**
+     * Returns a strong ETag for the file (from length and modification time).
+     * 
+     * @param f
+     * @return
+     */
+    public static String getFileETag(File f) {
+        return "\"" + Long.toHexString(f.length()) + "-" + Long.toHexString(f.lastModified()) + "\"";
+    }
+
+    /**
+     * Returns a strong ETag for the image rendered by the
+     * ImageJobDescription (from the render key and the directory modification
+     * time).
+     * 
+     * @param jobTicket
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public static String getImageETag(ImageJobDescription jobTicket) throws IOException, ImageOpException {
+        return "\"" + FileOps.getHash(jobTicket.getRenderKey()) + "-"
+                + Long.toHexString(jobTicket.getFileDirectory().getDirMTime()) + "\"";
+    }
+
+    /**
+     * Returns if the value of an If-None-Match (or If-Match) header matches
+     * the ETag.
+     * 
+     * @param header
+     * @param etag
+     * @return
+     */
+    public static boolean matchesETag(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                // weak comparison
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns if the If-None-Match header of the request matches the ETag of
+     * the rendered image for the ImageJobDescription and sends "not modified"
+     * in that case.
+     * 
+     * Returns true if the response has been sent.
+     * 
+     * @param jobTicket
+     * @param request
+     * @param response
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public static boolean checkImageETag(ImageJobDescription jobTicket, HttpServletRequest request,
+            HttpServletResponse response) throws IOException, ImageOpException {
+        String inm = request.getHeader("If-None-Match");
+        if (inm != null && matchesETag(inm, getImageETag(jobTicket))) {
+            logger.debug("image not modified.");
+            setImageETag(jobTicket, response);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the ETag of the rendered image for the ImageJobDescription on the
+     * response.
+     * 
+     * @param jobTicket
+     * @param response
+     */
+    public static void setImageETag(ImageJobDescription jobTicket, HttpServletResponse response) {
+        try {
+            response.setHeader("ETag", getImageETag(jobTicket));
+        } catch (Exception e) {
+            logger.warn("Unable to create ETag: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the content length of the response (also for lengths over 2GB).
+     * 
+     * @param response
+     * @param length
+     */
+    public static void setContentLength(HttpServletResponse response, long length) {
+        if (length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        } else {
+            response.setHeader("Content-Length", Long.toString(length));
+        }
+    }
+
+    /**
+     * @return the buffer size for copying files
+     */
+    public static int getSendFileBufferSize() {
+        return sendFileBufferSize;
+    }
+
+    /**
+     * @param size the buffer size for copying files
+     */
+    public static void setSendFileBufferSize(int size) {
+        if (size > 0) {
+            ServletOps.sendFileBufferSize = size;
+        }
+    }
+
+    /**
+     * @param useContainerSendFile let the container send files if it supports it
+     */
+    public static void setUseContainerSendFile(boolean useContainerSendFile) {
+        ServletOps.useContainerSendFile = useContainerSendFile;
+    }
+
     /**
      * Write image img to ServletResponse response.
      * 
@@ -314,46 +747,276 @@ public class ServletOps {
     public static void sendImage(DocuImage img, String mimeType,
             HttpServletResponse response, Logger logger) throws ImageOpException,
             ServletException {
+        ServletOps.sendImage(img, mimeType, response, logger, null, null, false);
+    }
+
+    /**
+     * Write image img to ServletResponse response and store the encoded image
+     * in the RenderedImageCache renderCache for the ImageJobDescription
+     * jobTicket.
+     * 
+     * If renderCache is null the image is not stored. Returns the encoded
+     * image data.
+     * 
+     * @param img
+     * @param mimeType
+     * @param response
+     * @param logger
+     * @param jobTicket
+     * @param renderCache
+     * @return
+     * @throws ImageOpException
+     * @throws ServletException Exception on sending data.
+     */
+    public static byte[] sendImage(DocuImage img, String mimeType,
+            HttpServletResponse response, Logger logger, ImageJobDescription jobTicket,
+            RenderedImageCache renderCache) throws ImageOpException, ServletException {
+        return ServletOps.sendImage(img, mimeType, response, logger, jobTicket, renderCache, true);
+    }
+
+    /**
+     * Write image img to ServletResponse response and store the encoded image
+     * in the RenderedImageCache renderCache for the ImageJobDescription
+     * jobTicket.
+     * 
+     * If streaming is enabled for the mime-type the image is encoded directly
+     * into the response without content length. Returns the encoded image data
+     * if keepData is true or the image was not streamed (null otherwise).
+     * 
+     * @param img
+     * @param mimeType
+     * @param response
+     * @param logger
+     * @param jobTicket
+     * @param renderCache
+     * @param keepData
+     * @return
+     * @throws ImageOpException
+     * @throws ServletException Exception on sending data.
+     */
+    public static byte[] sendImage(DocuImage img, String mimeType,
+            HttpServletResponse response, Logger logger, ImageJobDescription jobTicket,
+            RenderedImageCache renderCache, boolean keepData) throws ImageOpException, ServletException {
     	if (response == null) {
     		logger.error("No response!");
-    		return;
+    		return null;
     	}
         //logger.debug("sending to response: ("+ headersToString(response) + ") committed=" + response.isCommitted());
         logger.debug("sending to response. committed=" + response.isCommitted());
         // TODO: should we erase or replace old last-modified header?
-        try {
-        	// setup output -- if mime type is set use that otherwise
-            // if source is JPG then dest will be JPG else it's PNG
-            if (mimeType == null) {
-                mimeType = img.getMimetype();
-                if (mimeType == null) {
-                    // still no mime-type
-                    logger.warn("sendImage without mime-type! using image/jpeg.");
-                    mimeType = "image/jpeg";
+        mimeType = getImageMimeType(img, mimeType, logger);
+        if (isStreaming(mimeType)) {
+            // encode the image directly into the response
+            try {
+                if (jobTicket != null) {
+                    setImageETag(jobTicket, response);
+                }
+                response.setContentType(mimeType);
+                OutputStream outstream = response.getOutputStream();
+                ByteArrayOutputStream datastream = null;
+                if (keepData || renderCache != null) {
+                    // keep a copy of the data
+                    datastream = new ByteArrayOutputStream();
+                    outstream = new TeeOutputStream(outstream, datastream);
                 }
+                img.writeImage(mimeType, outstream);
+                if (datastream == null) {
+                    return null;
+                }
+                byte[] data = datastream.toByteArray();
+                cacheImageData(data, mimeType, jobTicket, renderCache);
+                return data;
+            } catch (IOException e) {
+                throw new ServletException("Error sending image:", e);
             }
-            if ((mimeType.equals("image/jpeg") || mimeType.equals("image/jp2") || 
-                    mimeType.equals("image/fpx"))) {
+        }
+        // encode the image
+        byte[] data = encodeImage(img, mimeType, jobTicket, renderCache);
+        if (jobTicket != null) {
+            setImageETag(jobTicket, response);
+        }
+        // send the image
+        sendImageData(data, mimeType, response, logger);
+        // TODO: should we: finally { img.dispose(); }
+        return data;
+    }
+
+    /**
+     * Returns if images of the mime-type are encoded directly into the
+     * response.
+     * 
+     * @param mimeType
+     * @return
+     */
+    public static boolean isStreaming(String mimeType) {
+        return streamingMimeTypes.contains(mimeType);
+    }
+
+    /**
+     * Sets if images of the mime-type are encoded directly into the response.
+     * 
+     * @param mimeType
+     * @param streaming
+     */
+    public static void setStreaming(String mimeType, boolean streaming) {
+        if (streaming) {
+            streamingMimeTypes.add(mimeType);
+        } else {
+            streamingMimeTypes.remove(mimeType);
+        }
+    }
+
+    /**
+     * Returns the mime-type to send the image img.
+     * 
+     * If mimeType is set use that otherwise if source is JPG then dest will be
+     * JPG else it's PNG.
+     * 
+     * @param img
+     * @param mimeType
+     * @param logger
+     * @return
+     */
+    public static String getImageMimeType(DocuImage img, String mimeType, Logger logger) {
+        if (mimeType == null) {
+            mimeType = img.getMimetype();
+            if (mimeType == null) {
+                // still no mime-type
+                logger.warn("sendImage without mime-type! using image/jpeg.");
                 mimeType = "image/jpeg";
-            } else {
-                mimeType = "image/png";
             }
-            response.setContentType(mimeType);
+        }
+        if ((mimeType.equals("image/jpeg") || mimeType.equals("image/jp2") || 
+                mimeType.equals("image/fpx"))) {
+            mimeType = "image/jpeg";
+        } else {
+            mimeType = "image/png";
+        }
+        return mimeType;
+    }
 
+    /**
+     * Encode image img with the mime-type mimeType and store the encoded image
+     * in the RenderedImageCache renderCache for the ImageJobDescription
+     * jobTicket.
+     * 
+     * If renderCache is null the image is not stored.
+     * 
+     * @param img
+     * @param mimeType
+     * @param jobTicket
+     * @param renderCache
+     * @return
+     * @throws ImageOpException
+     * @throws ServletException
+     */
+    public static byte[] encodeImage(DocuImage img, String mimeType, ImageJobDescription jobTicket,
+            RenderedImageCache renderCache) throws ImageOpException, ServletException {
+        try {
             // write the image to a temporary output stream
             ByteArrayOutputStream outstream = new ByteArrayOutputStream();
             img.writeImage(mimeType, outstream);
-            
+            byte[] data = outstream.toByteArray();
+            cacheImageData(data, mimeType, jobTicket, renderCache);
+            return data;
+        } catch (IOException e) {
+            throw new ServletException("Error encoding image:", e);
+        }
+    }
+
+    /**
+     * Store the encoded image data in the RenderedImageCache renderCache for
+     * the ImageJobDescription jobTicket (if renderCache is not null).
+     * 
+     * @param data
+     * @param mimeType
+     * @param jobTicket
+     * @param renderCache
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    protected static void cacheImageData(byte[] data, String mimeType, ImageJobDescription jobTicket,
+            RenderedImageCache renderCache) throws IOException, ImageOpException {
+        if (renderCache != null && jobTicket != null) {
+            // store the encoded image in the cache
+            renderCache.put(jobTicket, mimeType, data);
+        }
+    }
+
+    /**
+     * Returns the key of the client of the request for fair scheduling: the
+     * authenticated user or the remote address.
+     * 
+     * @param request
+     * @return
+     */
+    public static String getClientKey(HttpServletRequest request) {
+        String user = request.getRemoteUser();
+        if (user != null) {
+            return user;
+        }
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Send a 503 (Service Unavailable) error with a Retry-After header to
+     * ServletResponse response.
+     * 
+     * @param retryAfter seconds after which the request should be retried
+     * @param response
+     * @param logger
+     * @throws IOException
+     */
+    public static void sendServiceUnavailable(int retryAfter, HttpServletResponse response, Logger logger)
+            throws IOException {
+        logger.warn("Service unavailable, retry after " + retryAfter + "s");
+        if (response.isCommitted()) {
+            logger.error("Unable to send error: response already committed!");
+            return;
+        }
+        response.setHeader("Retry-After", Integer.toString(retryAfter));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Write encoded image data to ServletResponse response.
+     * 
+     * @param data
+     * @param mimeType
+     * @param response
+     * @param logger
+     * @throws ServletException Exception on sending data.
+     */
+    public static void sendImageData(byte[] data, String mimeType,
+            HttpServletResponse response, Logger logger) throws ServletException {
+        if (response == null) {
+            logger.error("No response!");
+            return;
+        }
+        try {
+            response.setContentType(mimeType);
             // sets the content length
-            response.setContentLength(outstream.size());
-            
+            response.setContentLength(data.length);
             // copy the image to the real output stream
-            outstream.writeTo(response.getOutputStream());
-            
+            response.getOutputStream().write(data);
         } catch (IOException e) {
             throw new ServletException("Error sending image:", e);
         }
-        // TODO: should we: finally { img.dispose(); }
+    }
+
+    /**
+     * Write an encoded image from the RenderedImageCache to ServletResponse
+     * response.
+     * 
+     * @param entry
+     * @param response
+     * @param logger
+     * @throws ServletException Exception on sending data.
+     */
+    public static void sendCachedImage(RenderedImageCache.Entry entry,
+            HttpServletResponse response, Logger logger) throws ServletException {
+        logger.debug("sending cached image to response.");
+        sendImageData(entry.getData(), entry.getMimeType(), response, logger);
     }
 
 
@@ -29,6 +29,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -44,9 +45,11 @@ import digilib.auth.AuthOps;
 import digilib.conf.DigilibServletConfiguration;
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
+import digilib.image.ImageJobClassifier;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
+import digilib.image.RenderedImageCache;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
@@ -88,6 +91,12 @@ public class Scaler extends HttpServlet {
     /** Image executor */
     DigilibJobCenter<DocuImage> imageJobCenter;
 
+    /** RenderedImageCache instance (may be null) */
+    protected RenderedImageCache renderCache;
+
+    /** ImageJobClassifier instance */
+    protected ImageJobClassifier jobClassifier;
+
     /** authentication error image file */
     public static File denyImgFile;
 
@@ -145,6 +154,10 @@ public class Scaler extends HttpServlet {
 
         // Executor
         imageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
+        jobClassifier = (ImageJobClassifier) dlConfig.getValue(DigilibServletConfiguration.JOB_CLASSIFIER_KEY);
+
+        // rendered image cache
+        renderCache = (RenderedImageCache) dlConfig.getValue(DigilibServletConfiguration.RENDER_CACHE_KEY);
 
         denyImgFile = ServletOps.getFile(dlConfig.getAsFile("denied-image"), context);
         errorImgFile = ServletOps.getFile(dlConfig.getAsFile("error-image"), context);
@@ -160,8 +173,8 @@ public class Scaler extends HttpServlet {
     public long getLastModified(HttpServletRequest request) {
         accountlog.debug("GetLastModified from " + request.getRemoteAddr() + " for " + request.getQueryString());
         long mtime = -1;
-        // create new request
-        DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
+        // get digilib request (reused by processRequest)
+        DigilibServletRequest dlReq = DigilibServletRequest.getInstance(request, dlConfig);
         DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
         if (dd != null) {
             mtime = dd.getDirMTime() / 1000 * 1000;
@@ -223,7 +236,7 @@ public class Scaler extends HttpServlet {
         long startTime = System.currentTimeMillis();
 
         // parse request
-        DigilibServletRequest dlRequest = new DigilibServletRequest(request, dlConfig);
+        DigilibServletRequest dlRequest = DigilibServletRequest.getInstance(request, dlConfig);
         // extract the job information
         ImageJobDescription jobTicket = ImageJobDescription.getInstance(dlRequest, dlConfig);
 
@@ -257,7 +270,7 @@ public class Scaler extends HttpServlet {
                     mt = "application/octet-stream";
                 }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -266,21 +279,48 @@ public class Scaler extends HttpServlet {
             // it
             if (!jobTicket.isTransformRequired()) {
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, request, response, logger);
+                logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                return;
+            }
+
+            // check if the client has the current image
+            if (ServletOps.checkImageETag(jobTicket, request, response)) {
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            // send the image from the cache if possible
+            if (renderCache != null) {
+                RenderedImageCache.Entry cached = renderCache.get(jobTicket);
+                if (cached != null) {
+                    logger.debug("Sending cached image.");
+                    ServletOps.setImageETag(jobTicket, response);
+                    ServletOps.sendCachedImage(cached, response, logger);
+                    logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                    return;
+                }
+            }
+
             // check load of workers
             if (imageJobCenter.isBusy()) {
                 logger.error("Servlet overloaded!");
-                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                ServletOps.sendServiceUnavailable(imageJobCenter.getRetryAfter(), response, logger);
                 return;
             }
             // create job
             ImageWorker job = new ImageWorker(dlConfig, jobTicket);
             // submit job
-            Future<DocuImage> jobResult = imageJobCenter.submit(job);
+            Future<DocuImage> jobResult;
+            try {
+                String client = ServletOps.getClientKey(request);
+                jobResult = imageJobCenter.submit(job, jobTicket.getCost(),
+                        jobClassifier.getPriority(jobTicket, client), client);
+            } catch (RejectedExecutionException e) {
+                logger.error("Servlet overloaded!");
+                ServletOps.sendServiceUnavailable(imageJobCenter.getRetryAfter(), response, logger);
+                return;
+            }
             // wait for result
             DocuImage img = jobResult.get();
             // forced destination image type
@@ -291,7 +331,7 @@ public class Scaler extends HttpServlet {
                 mt = "image/png";
             }
             // send image
-            ServletOps.sendImage(img, mt, response, logger);
+            ServletOps.sendImage(img, mt, response, logger, jobTicket, renderCache, false);
             logger.debug("Job Processing Time: " + (System.currentTimeMillis() - startTime) + "ms");
 
         } catch (ImageOpException e) {
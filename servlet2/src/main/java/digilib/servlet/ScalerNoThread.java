@@ -143,8 +143,8 @@ public class ScalerNoThread extends HttpServlet {
     public long getLastModified(HttpServletRequest request) {
         accountlog.debug("GetLastModified from " + request.getRemoteAddr() + " for " + request.getQueryString());
         long mtime = -1;
-        // create new request
-        DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
+        // get digilib request (reused by processRequest)
+        DigilibServletRequest dlReq = DigilibServletRequest.getInstance(request, dlConfig);
         DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
         if (dd != null) {
             mtime = dd.getDirMTime() / 1000 * 1000;
@@ -206,7 +206,7 @@ public class ScalerNoThread extends HttpServlet {
         long startTime = System.currentTimeMillis();
 
         // parse request
-        DigilibServletRequest dlRequest = new DigilibServletRequest(request, dlConfig);
+        DigilibServletRequest dlRequest = DigilibServletRequest.getInstance(request, dlConfig);
         // extract the job information
         ImageJobDescription jobTicket = ImageJobDescription.getInstance(dlRequest, dlConfig);
 
@@ -240,7 +240,7 @@ public class ScalerNoThread extends HttpServlet {
                     mt = "application/octet-stream";
                 }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -249,7 +249,7 @@ public class ScalerNoThread extends HttpServlet {
             // it
             if (!jobTicket.isTransformRequired()) {
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
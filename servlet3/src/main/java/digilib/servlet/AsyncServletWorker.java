@@ -28,6 +28,12 @@ package digilib.servlet;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
@@ -42,8 +48,10 @@ import digilib.image.DocuImage;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
+import digilib.image.RenderedImageCache;
 import digilib.servlet.Scaler.ErrMsg;
 import digilib.servlet.Scaler.Error;
+import digilib.util.DigilibJobCenter;
 
 /**
  * Worker class for the asynchronous Servlet API.
@@ -51,7 +59,7 @@ import digilib.servlet.Scaler.Error;
  * @author casties
  * 
  */
-public class AsyncServletWorker implements Runnable, AsyncListener {
+public class AsyncServletWorker implements Runnable, AsyncListener, DigilibJobCenter.ExpiringJob {
 
     /** the AsyncServlet context */
     private AsyncContext asyncContext;
@@ -64,7 +72,25 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
     private ErrMsg errMsgType = ErrMsg.IMAGE;
     private ImageJobDescription jobinfo;
     /** flag to indicate that the response is completed (on abort) */
-    private boolean completed = false;
+    private volatile boolean completed = false;
+    /** render key this job is registered with (if any) */
+    private String renderKey = null;
+    /** requests waiting for the result of this job */
+    private List<AsyncServletWorker> followers = new ArrayList<AsyncServletWorker>(1);
+    /** flag to indicate that this job still accepts waiting requests */
+    private boolean acceptFollowers = true;
+    /** running job this request is waiting for (if any) */
+    private volatile AsyncServletWorker leader = null;
+    /** running jobs by render key */
+    protected static ConcurrentMap<String, AsyncServletWorker> runningJobs = new ConcurrentHashMap<String, AsyncServletWorker>();
+    /** cache for the rendered image (may be null) */
+    private RenderedImageCache renderCache = null;
+
+    /** time after which the request is no longer answered */
+    private long deadline;
+
+    /** Future of the submitted job */
+    private volatile Future<?> future = null;
     /** AsyncRequest timeout */
     protected static long timeout = 60000l;
 
@@ -82,6 +108,8 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
         asyncContext.setTimeout(AsyncServletWorker.timeout);
         logger.debug("timeout for worker: " + asyncContext.getTimeout() + "ms");
         this.startTime = startTime;
+        long t = asyncContext.getTimeout();
+        this.deadline = (t > 0) ? startTime + t : Long.MAX_VALUE;
         this.errMsgType = errMsgType;
         this.jobinfo = jobinfo;
     }
@@ -91,32 +119,51 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
      */
     @Override
     public void run() {
+        String mt = null;
+        byte[] data = null;
+        Error error = Error.UNKNOWN;
+        String errorMsg = null;
+        List<AsyncServletWorker> waiting = null;
         try {
             // render the image
             DocuImage img = imageWorker.call();
-            if (completed) {
-                logger.debug("AsyncServletWorker already completed (after scaling)!");
+            if (img == null) {
+                logger.debug("AsyncServletWorker stopped (after scaling)!");
+                errorMsg = "ERROR: timeout rendering image!";
                 return;
             }
             // forced destination image type
-            String mt = null;
             if (jobinfo.hasOption("jpg")) {
                 mt = "image/jpeg";
             } else if (jobinfo.hasOption("png")) {
                 mt = "image/png";
             }
-            // send image
-            ServletOps.sendImage(img, mt,
-                    (HttpServletResponse) asyncContext.getResponse(), logger);
+            mt = ServletOps.getImageMimeType(img, mt, logger);
+            // no more waiting requests from now on
+            waiting = unregisterJob();
+            if (completed) {
+                logger.debug("AsyncServletWorker already completed (after scaling)!");
+                if (!waiting.isEmpty()) {
+                    // encode the image for the waiting requests
+                    data = ServletOps.encodeImage(img, mt, jobinfo, renderCache);
+                }
+                return;
+            }
+            // send image (keep the data for waiting requests)
+            data = ServletOps.sendImage(img, mt,
+                    (HttpServletResponse) asyncContext.getResponse(), logger, jobinfo, renderCache,
+                    !waiting.isEmpty());
             logger.debug("Job done in: "
                     + (System.currentTimeMillis() - startTime) + "ms");
         } catch (ImageOpException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
-            Scaler.digilibError(errMsgType, Error.IMAGE, null,
+            error = Error.IMAGE;
+            Scaler.digilibError(errMsgType, error, null,
                     (HttpServletResponse) asyncContext.getResponse());
         } catch (IOException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
-            Scaler.digilibError(errMsgType, Error.FILE, null,
+            error = Error.FILE;
+            Scaler.digilibError(errMsgType, error, null,
                     (HttpServletResponse) asyncContext.getResponse());
         } catch (ServletException e) {
             logger.error("Servlet error: ", e);
@@ -131,8 +178,299 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
                 this.completed = true;
                 asyncContext.complete();
             }
+            // hand the result to the waiting requests
+            if (waiting == null) {
+                waiting = unregisterJob();
+            }
+            for (AsyncServletWorker follower : waiting) {
+                if (data != null) {
+                    follower.sendImageData(data, mt);
+                } else {
+                    follower.sendError(error, errorMsg);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Registers this worker as the running job for the render key of its
+     * ImageJobDescription.
+     * 
+     * Returns the already running job for the same key or null if this worker
+     * was registered.
+     * 
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public AsyncServletWorker registerJob() throws IOException, ImageOpException {
+        String key = jobinfo.getRenderKey();
+        AsyncServletWorker job = runningJobs.putIfAbsent(key, this);
+        if (job == null) {
+            this.renderKey = key;
+        }
+        return job;
+    }
+
+    /**
+     * Removes this worker from the running jobs and returns the list of
+     * waiting requests. No more requests can be added afterwards.
+     * 
+     * @return
+     */
+    protected synchronized List<AsyncServletWorker> unregisterJob() {
+        if (renderKey != null) {
+            runningJobs.remove(renderKey, this);
+        }
+        List<AsyncServletWorker> fs = followers;
+        followers = Collections.emptyList();
+        acceptFollowers = false;
+        return fs;
+    }
+
+    /**
+     * Returns the running job for the render key of the ImageJobDescription
+     * jobinfo (or null).
+     * 
+     * @param jobinfo
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public static AsyncServletWorker getRunningJob(ImageJobDescription jobinfo) throws IOException,
+            ImageOpException {
+        return runningJobs.get(jobinfo.getRenderKey());
+    }
+
+    /**
+     * Adds a worker for an identical request that will be sent the result of
+     * this job instead of rendering the image itself.
+     * 
+     * Returns false if this job is already finished.
+     * 
+     * @param follower
+     * @return
+     */
+    public synchronized boolean addFollower(AsyncServletWorker follower) {
+        if (!acceptFollowers) {
+            return false;
+        }
+        followers.add(follower);
+        follower.leader = this;
+        return true;
+    }
+
+    /**
+     * Removes a waiting request that has gone away.
+     * 
+     * Stops rendering the image if the request of this job has gone away too
+     * and no other requests are waiting.
+     * 
+     * @param follower
+     * @return if the request was waiting
+     */
+    protected boolean removeFollower(AsyncServletWorker follower) {
+        boolean stop;
+        synchronized (this) {
+            if (!followers.remove(follower)) {
+                return false;
+            }
+            stop = completed && followers.isEmpty();
+        }
+        if (stop) {
+            stopJob();
+        }
+        return true;
+    }
+
+    /**
+     * Stops rendering the image for this request or stops waiting for the
+     * running job.
+     */
+    protected void cancelJob() {
+        AsyncServletWorker l = leader;
+        if (l != null) {
+            l.removeFollower(this);
+        } else {
+            stopJob();
+        }
+    }
+
+    /**
+     * Sends the encoded image data (asynchronously) and completes the
+     * request.
+     * 
+     * @param data
+     * @param mimeType
+     */
+    protected void sendImageData(final byte[] data, final String mimeType) {
+        if (completed) {
+            logger.debug("AsyncServletWorker already completed (waiting)!");
+            return;
+        }
+        asyncContext.start(new Runnable() {
+            public void run() {
+                try {
+                    if (!completed) {
+                        ServletOps.setImageETag(jobinfo,
+                                (HttpServletResponse) asyncContext.getResponse());
+                        ServletOps.sendImageData(data, mimeType,
+                                (HttpServletResponse) asyncContext.getResponse(), logger);
+                        logger.debug("Job (waiting) done in: "
+                                + (System.currentTimeMillis() - startTime) + "ms");
+                    }
+                } catch (ServletException e) {
+                    logger.error("Servlet error: ", e);
+                } finally {
+                    complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends an error (asynchronously) and completes the request.
+     * 
+     * @param error
+     * @param msg
+     */
+    protected void sendError(final Error error, final String msg) {
+        if (completed) {
+            logger.debug("AsyncServletWorker already completed (waiting)!");
+            return;
+        }
+        asyncContext.start(new Runnable() {
+            public void run() {
+                try {
+                    if (!completed) {
+                        Scaler.digilibError(errMsgType, error, msg,
+                                (HttpServletResponse) asyncContext.getResponse());
+                    }
+                } finally {
+                    complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops rendering the image if no other requests are waiting for it.
+     * 
+     * The job is removed from the running jobs and from the queue if it has
+     * not started yet.
+     * 
+     * @return if the job was stopped
+     */
+    protected boolean stopJob() {
+        synchronized (this) {
+            if (!followers.isEmpty()) {
+                return false;
+            }
+            // no more followers
+            unregisterJob();
+        }
+        imageWorker.stopNow();
+        Future<?> f = future;
+        if (f != null) {
+            f.cancel(false);
         }
+        return true;
+    }
 
+    /**
+     * Returns if the request has been completed or timed out and no other
+     * requests are waiting for the image.
+     * 
+     * Called by the job center before the job is run.
+     * 
+     * @see digilib.util.DigilibJobCenter.ExpiringJob#isExpired()
+     */
+    @Override
+    public boolean isExpired() {
+        if (!completed && System.currentTimeMillis() < deadline) {
+            return false;
+        }
+        synchronized (this) {
+            if (!followers.isEmpty()) {
+                return false;
+            }
+            unregisterJob();
+        }
+        logger.debug("AsyncServletWorker expired before running.");
+        return true;
+    }
+
+    /**
+     * Sets the Future of the submitted job.
+     * 
+     * @param future
+     */
+    public void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * Returns the estimated cost of rendering the image.
+     * 
+     * @return
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    public long getCost() throws IOException, ImageOpException {
+        return jobinfo.getCost();
+    }
+
+    /**
+     * Rejects this job and the requests waiting for it with a 503 (Service
+     * Unavailable) error when it can not be queued.
+     * 
+     * @param retryAfter
+     *            seconds after which the requests should be retried
+     */
+    public void reject(int retryAfter) {
+        List<AsyncServletWorker> waiting = unregisterJob();
+        sendServiceUnavailable(retryAfter);
+        for (AsyncServletWorker follower : waiting) {
+            follower.sendServiceUnavailable(retryAfter);
+        }
+    }
+
+    /**
+     * Sends a 503 (Service Unavailable) error (asynchronously) and completes
+     * the request.
+     * 
+     * @param retryAfter
+     */
+    protected void sendServiceUnavailable(final int retryAfter) {
+        if (completed) {
+            logger.debug("AsyncServletWorker already completed (rejected)!");
+            return;
+        }
+        asyncContext.start(new Runnable() {
+            public void run() {
+                try {
+                    if (!completed) {
+                        ServletOps.sendServiceUnavailable(retryAfter,
+                                (HttpServletResponse) asyncContext.getResponse(), logger);
+                    }
+                } catch (IOException e) {
+                    logger.error("Error sending error: ", e);
+                } finally {
+                    complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Completes the request if it is not already completed.
+     */
+    protected void complete() {
+        if (!completed) {
+            this.completed = true;
+            asyncContext.complete();
+        }
     }
 
     @Override
@@ -154,8 +492,8 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
             logger.debug("AsyncServletWorker already completed (TimeOut)!");
             return;
         }
-        imageWorker.stopNow();
         this.completed = true;
+        cancelJob();
         Scaler.digilibError(errMsgType, Error.UNKNOWN, null,
                 (HttpServletResponse) asyncContext.getResponse());
         asyncContext.complete();
@@ -170,13 +508,22 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
             logger.debug("AsyncServletWorker already completed (TimeOut)!");
             return;
         }
-        imageWorker.stopNow();
         this.completed = true;
+        cancelJob();
         Scaler.digilibError(errMsgType, Error.UNKNOWN, "ERROR: timeout rendering image!",
                 (HttpServletResponse) asyncContext.getResponse());
         asyncContext.complete();
     }
 
+    /**
+     * Sets the cache to store the rendered image in.
+     * 
+     * @param renderCache
+     */
+    public void setRenderCache(RenderedImageCache renderCache) {
+        this.renderCache = renderCache;
+    }
+
     public static long getTimeout() {
         return timeout;
     }
@@ -28,6 +28,7 @@ package digilib.servlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
@@ -46,12 +47,15 @@ import digilib.conf.DigilibConfiguration;
 import digilib.conf.DigilibServlet3Configuration;
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
+import digilib.image.ImageJobClassifier;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
+import digilib.image.RenderedImageCache;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.Priority;
 
 @WebServlet(name = "Scaler", urlPatterns = { "/Scaler", "/servlet/Scaler/*" }, asyncSupported = true)
 public class Scaler extends HttpServlet {
@@ -89,6 +93,12 @@ public class Scaler extends HttpServlet {
     /** Image executor */
     protected DigilibJobCenter<DocuImage> imageJobCenter;
 
+    /** RenderedImageCache instance (may be null) */
+    protected RenderedImageCache renderCache;
+
+    /** ImageJobClassifier instance */
+    protected ImageJobClassifier jobClassifier;
+
     /** authentication error image file */
     public static File denyImgFile;
 
@@ -144,6 +154,10 @@ public class Scaler extends HttpServlet {
 
         // Executor
         imageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
+        jobClassifier = (ImageJobClassifier) dlConfig.getValue(DigilibServlet3Configuration.JOB_CLASSIFIER_KEY);
+
+        // rendered image cache
+        renderCache = (RenderedImageCache) dlConfig.getValue(DigilibServlet3Configuration.RENDER_CACHE_KEY);
 
         denyImgFile = ServletOps.getFile(dlConfig.getAsFile("denied-image"), context);
         errorImgFile = ServletOps.getFile(dlConfig.getAsFile("error-image"), context);
@@ -165,8 +179,8 @@ public class Scaler extends HttpServlet {
         accountlog.debug("GetLastModified from " + request.getRemoteAddr() + " for " + request.getQueryString());
         long mtime = -1;
         try {
-            // create new digilib request
-            DigilibServletRequest dlReq = new DigilibServletRequest(request, dlConfig);
+            // get digilib request (reused by processRequest)
+            DigilibServletRequest dlReq = DigilibServletRequest.getInstance(request, dlConfig);
             DocuDirectory dd = dirCache.getDirectory(dlReq.getFilePath());
             if (dd != null) {
                 mtime = dd.getDirMTime() / 1000 * 1000;
@@ -234,7 +248,7 @@ public class Scaler extends HttpServlet {
         final long startTime = System.currentTimeMillis();
 
         // parse request
-        DigilibServletRequest dlRequest = new DigilibServletRequest(request, dlConfig);
+        DigilibServletRequest dlRequest = DigilibServletRequest.getInstance(request, dlConfig);
         // extract the job information
         final ImageJobDescription jobTicket = ImageJobDescription.getInstance(dlRequest, dlConfig);
         
@@ -282,7 +296,7 @@ public class Scaler extends HttpServlet {
                     mt = "application/octet-stream";
                 }
                 logger.debug("Sending RAW File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), mt, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), mt, null, request, response, logger);
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
@@ -290,15 +304,52 @@ public class Scaler extends HttpServlet {
             // if possible, send the image without actually having to transform it
             if (!jobTicket.isTransformRequired()) {
                 logger.debug("Sending File as is.");
-                ServletOps.sendFile(fileToLoad.getFile(), null, null, response, logger);
+                ServletOps.sendFile(fileToLoad.getFile(), null, null, request, response, logger);
+                logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                return;
+            }
+
+            // check if the client has the current image
+            if (ServletOps.checkImageETag(jobTicket, request, response)) {
                 logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
                 return;
             }
 
+            // send the image from the cache if possible
+            if (renderCache != null) {
+                RenderedImageCache.Entry cached = renderCache.get(jobTicket);
+                if (cached != null) {
+                    logger.debug("Sending cached image.");
+                    ServletOps.setImageETag(jobTicket, response);
+                    ServletOps.sendCachedImage(cached, response, logger);
+                    logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                    return;
+                }
+            }
+
+            // scheduling class
+            String client = ServletOps.getClientKey(request);
+            Priority priority = jobClassifier.getPriority(jobTicket, client);
+
+            // attach to a running job for an identical image
+            AsyncServletWorker runningJob = AsyncServletWorker.getRunningJob(jobTicket);
+            if (runningJob != null) {
+                AsyncContext asyncCtx = request.startAsync(request, response);
+                AsyncServletWorker job = new AsyncServletWorker(dlConfig, jobTicket, asyncCtx, errMsgType, startTime);
+                asyncCtx.addListener(job);
+                if (runningJob.addFollower(job)) {
+                    logger.debug("Waiting for running job.");
+                    return;
+                }
+                // running job has finished -- run our own
+                submitJob(job, priority, client);
+                return;
+            }
+
             // check load of workers
             if (imageJobCenter.isBusy()) {
                 logger.error("Servlet overloaded!");
-                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                ServletOps.sendServiceUnavailable(imageJobCenter.getRetryAfter(), response, logger);
                 return;
             }
 
@@ -309,7 +360,7 @@ public class Scaler extends HttpServlet {
             // AsyncServletWorker is its own AsyncListener
             asyncCtx.addListener(job);
             // submit job
-            imageJobCenter.submit(job);
+            submitJob(job, priority, client);
             // we're done for now
 
         } catch (ImageOpException e) {
@@ -328,6 +379,34 @@ public class Scaler extends HttpServlet {
         }
     }
 
+    /**
+     * Registers and submits the job.
+     * 
+     * If an identical job is already running the job waits for its result
+     * instead.
+     * 
+     * @param job
+     * @param priority
+     * @param client
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    protected void submitJob(AsyncServletWorker job, Priority priority, String client) throws IOException,
+            ImageOpException {
+        job.setRenderCache(renderCache);
+        AsyncServletWorker runningJob = job.registerJob();
+        if (runningJob != null && runningJob.addFollower(job)) {
+            logger.debug("Waiting for running job.");
+            return;
+        }
+        try {
+            job.setFuture(imageJobCenter.submit(job, job.getCost(), priority, client));
+        } catch (RejectedExecutionException e) {
+            logger.error("Servlet overloaded!");
+            job.reject(imageJobCenter.getRetryAfter());
+        }
+    }
+
     /**
      * Sends an error to the client as text or image.
      * 
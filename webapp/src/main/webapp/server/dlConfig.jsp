@@ -22,10 +22,15 @@
   --%><%@page language="java" 
   import="digilib.util.DigilibJobCenter,
           digilib.servlet.DocumentBean,
+          digilib.servlet.CacheWarmer,
           digilib.conf.DigilibServletConfiguration,
           digilib.conf.DigilibServletRequest,
           digilib.io.DocuDirCache,
+          digilib.io.DirectoryWatcher,
+          digilib.io.ImageIdentIndex,
+          digilib.image.RenderedImageCache,
           digilib.image.DocuImageFactory,
+          digilib.image.TiledImageOps,
           java.io.File"%>
 <%!
 // authentication stuff - robert
@@ -55,6 +60,10 @@ dlRequest.setValue("pt", docBean.getNumPages(dlRequest));
 DocuDirCache dirCache = (DocuDirCache) dlConfig.getValue("servlet.dir.cache");
 // image JobCenter
 DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.worker.imageexecutor");        
+// rendered image cache
+RenderedImageCache renderCache = (RenderedImageCache) dlConfig.getValue("servlet.render.cache");
+// cache warm-up
+CacheWarmer warmer = (CacheWarmer) dlConfig.getValue("servlet.cache.warmer");
 
 %>
 
@@ -127,6 +136,54 @@ DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.
     <td>currently running</td><td><b><%= imageProcessor.getRunningJobs() %></b></td>
     <td></td>
   </tr>
+  <tr>
+    <td>concurrency limit</td><td><b><%= imageProcessor.getConcurrencyLimit() %></b></td>
+    <td><%= imageProcessor.isAdaptive() ? "(adaptive, max " + imageProcessor.getMaxThreads() + ")" : "(fixed)" %></td>
+  </tr>
+  <tr>
+    <td>clients waiting</td><td><b><%= imageProcessor.getWaitingClients() %></b></td>
+    <td>(max <%= imageProcessor.getMaxQueueLenPerClient() %> per client)</td>
+  </tr>
+  <tr>
+    <td>jobs submitted</td><td><b><%= imageProcessor.getSubmittedJobs() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>jobs rejected</td><td><b><%= imageProcessor.getRejectedJobs() %></b></td>
+    <td>(<%= imageProcessor.getRejectionPolicy() %>)</td>
+  </tr>
+  <tr>
+    <td>jobs completed</td><td><b><%= imageProcessor.getCompletedJobs() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>jobs dropped</td><td><b><%= imageProcessor.getDroppedJobs() %></b></td>
+    <td>(cancelled or expired while waiting)</td>
+  </tr>
+  <tr>
+    <td>jobs failed</td><td><b><%= imageProcessor.getFailedJobs() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>queue time (ms)</td><td><b><%= imageProcessor.getQueueTimes().getMean() %></b></td>
+    <td>mean, 95% &lt; <%= imageProcessor.getQueueTimes().getPercentile(95) %> [<%= imageProcessor.getQueueTimes() %>]</td>
+  </tr>
+  <tr>
+    <td>run time (ms)</td><td><b><%= imageProcessor.getRunTimes().getMean() %></b></td>
+    <td>mean, 95% &lt; <%= imageProcessor.getRunTimes().getPercentile(95) %> [<%= imageProcessor.getRunTimes() %>]</td>
+  </tr>
+  <tr>
+    <td>pixel budget used (MP)</td><td><b><%= imageProcessor.getUsedCostBudget() / (1024*1024) %></b></td>
+    <td>of <%= imageProcessor.getCostBudget() / (1024*1024) %></td>
+  </tr>
+  <tr>
+    <td>retry after (s)</td><td><b><%= imageProcessor.getRetryAfter() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+    <td>tile threads</td><td><b><%= TiledImageOps.getParallelism() %></b></td>
+    <td>(for images from <%= TiledImageOps.getMinPixels() / (1024*1024) %> MP)</td>
+  </tr>
 </table>
 
 <h2>Webapp</h2>
@@ -156,8 +213,97 @@ DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.
 	<td>misses</td><td><b><%= dirCache.getMisses() %></b></td>
     <td></td>
   </tr>
+  <tr>
+	<td>missing</td><td><b><%= dirCache.getMissingHits() %></b></td>
+    <td>hits (<%= dirCache.getNumMissing() %> nonexistent paths)</td>
+  </tr>
+  <tr>
+	<td>evictions</td><td><b><%= dirCache.getEvictions() %></b></td>
+    <td>directories</td>
+  </tr>
+  <tr>
+	<td>restored</td><td><b><%= dirCache.getNumRestored() %></b></td>
+    <td>directories from snapshot</td>
+  </tr>
+<% DirectoryWatcher dirWatcher = dirCache.getWatcher();
+   if (dirWatcher != null) { %>
+  <tr>
+	<td>watched</td><td><b><%= dirWatcher.getNumWatched() %></b></td>
+    <td>directories (<%= dirWatcher.getNumPolled() %> polled, <%= dirWatcher.getInvalidations() %> invalidations)</td>
+  </tr>
+<% } %>
+  <tr>
+	<td>ident index</td><td><b><%= ImageIdentIndex.isEnabled() %></b></td>
+    <td>(<%= ImageIdentIndex.getNumDirs() %> directories, <%= ImageIdentIndex.getHits() %> hits, <%= ImageIdentIndex.getMisses() %> misses)</td>
+  </tr>
 </table>
 
+<h2>Rendered image cache</h2>
+
+<%
+if (renderCache != null) {
+%>
+<table>
+  <tr>
+	<td>size</td><td><b><%= renderCache.getHeapEntries() %></b></td>
+    <td>images in memory (<%= renderCache.getHeapSize() / 1024 %> KB)</td>
+  </tr>
+  <tr>
+	<td></td><td><b><%= renderCache.getDiskEntries() %></b></td>
+    <td>images on disk (<%= renderCache.getDiskSize() / 1024 %> KB)</td>
+  </tr>
+  <tr>
+	<td>hits</td><td><b><%= renderCache.getHits() %></b></td>
+    <td>(<%= renderCache.getDiskHits() %> from disk)</td>
+  </tr>
+  <tr>
+	<td>misses</td><td><b><%= renderCache.getMisses() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>invalidated</td><td><b><%= renderCache.getInvalidations() %></b></td>
+    <td>outdated images</td>
+  </tr>
+</table>
+<%
+} else {
+%>
+<p>not configured</p>
+<%
+}
+%>
+
+<h2>Cache warm-up</h2>
+
+<%
+if (warmer != null) {
+%>
+<table>
+  <tr>
+	<td>running</td><td><b><%= warmer.isRunning() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>tasks</td><td><b><%= warmer.getNumDone() %></b></td>
+    <td>of <%= warmer.getNumTasks() %> done (<%= warmer.getNumFailed() %> failed)</td>
+  </tr>
+  <tr>
+	<td>images</td><td><b><%= warmer.getNumImages() %></b></td>
+    <td>identified (<%= warmer.getNumRendered() %> rendered)</td>
+  </tr>
+  <tr>
+	<td>waited</td><td><b><%= warmer.getWaitTime() / 1000 %></b></td>
+    <td>s for live requests</td>
+  </tr>
+</table>
+<%
+} else {
+%>
+<p>not configured</p>
+<%
+}
+%>
+
 <h2>JVM configuration</h2>
 
 <table>